@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.Set;
+import java.util.UUID;
+
+import org.bson.types.ObjectId;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import com.microsoft.protection.data.AzureStorageRepository;
+import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.data.model.ProtectionRequest.Right;
+import com.microsoft.protection.data.model.ProtectionRequest.Status;
+
+/**
+ * Local stand-ins for the benchmarks, nothing in here talks to Azure.
+ */
+public final class BenchmarkFixtures {
+    private static final String EMULATOR = "http://127.0.0.1:10000/devstoreaccount1";
+
+    private BenchmarkFixtures() {
+        // Utility class
+    }
+
+    public static ProtectionServiceProperties properties() {
+        final ProtectionServiceProperties properties = new ProtectionServiceProperties();
+        properties.setUser("benchmark@contoso.com");
+        properties.getAad().setTenant("benchmark");
+        properties.setSpoolDirectory(System.getProperty("java.io.tmpdir") + "/protection-benchmark");
+        return properties;
+    }
+
+    /**
+     * @return repository that only computes URIs like the storage emulator
+     *         account would, all other operations fail. A stub only mock does
+     *         not record its invocations, so it does not grow during a run.
+     */
+    public static AzureStorageRepository azureStorageRepository(final ProtectionServiceProperties properties) {
+        final String containerName = properties.getStorageContainerName();
+        final AzureStorageRepository repository = mock(AzureStorageRepository.class,
+                withSettings().stubOnly().defaultAnswer(invocation -> {
+                    throw new UnsupportedOperationException(invocation.getMethod().getName());
+                }));
+        doAnswer(invocation -> {
+            final String id = invocation.getArgument(0);
+            final String fileName = invocation.getArgument(1);
+            return UriComponentsBuilder.fromHttpUrl(EMULATOR).pathSegment(containerName, id, fileName).build()
+                    .encode().toUri();
+        }).when(repository).getUri(anyString(), anyString());
+        return repository;
+    }
+
+    public static ProtectionRequest request(final Status status) {
+        final ProtectionRequest request = new ProtectionRequest();
+        request.setId(new ObjectId().toHexString());
+        request.setVersion(1L);
+        request.setStatus(status);
+        request.setCorrelationId(UUID.randomUUID().toString());
+        request.setRights(Set.of(Right.READ, Right.VIEW));
+        request.setUrl("https://download.here/filename.pdf");
+        request.setUser("user@contoso.com");
+        request.setFileName("filename.pdf");
+        request.setContentType("application/pdf");
+        request.setSize(123L);
+        return request;
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.microsoft.protection.BenchmarkFixtures;
+
+/**
+ * Cached token lookups of many protection workers at once, AAD is replaced by
+ * a stand-in that hands out tokens valid for an hour.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+public class AadHandlerBenchmark {
+
+    private AadHandler aadHandler;
+
+    @Setup
+    public void setup() {
+        aadHandler = new AadHandler(BenchmarkFixtures.properties(),
+                key -> new AadHandler.Token("token-" + key.getTenant(),
+                        System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        aadHandler.close();
+    }
+
+    @Benchmark
+    public Optional<String> getAccessToken() {
+        return aadHandler.getAccessToken();
+    }
+}
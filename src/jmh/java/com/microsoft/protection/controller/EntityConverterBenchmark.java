@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import static org.springframework.hateoas.mvc.ControllerLinkBuilder.linkTo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.hateoas.mvc.ControllerLinkBuilder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import com.microsoft.protection.BenchmarkFixtures;
+import com.microsoft.protection.controller.model.ProtectionRequestGet;
+import com.microsoft.protection.data.AzureStorageRepository;
+import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.data.model.ProtectionRequest.Status;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EntityConverterBenchmark {
+
+    private AzureStorageRepository azureStorageRepository;
+    private ProtectionRequest processing;
+    private ProtectionRequest complete;
+
+    @Setup
+    public void setup() {
+        // link building resolves the current request
+        RequestContextHolder.setRequestAttributes(
+                new ServletRequestAttributes(new MockHttpServletRequest("GET", "/v1/protection")));
+
+        azureStorageRepository = BenchmarkFixtures.azureStorageRepository(BenchmarkFixtures.properties());
+        processing = BenchmarkFixtures.request(Status.PROCESSING);
+        complete = BenchmarkFixtures.request(Status.COMPLETE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    @Benchmark
+    public ProtectionRequestGet selfLink() {
+        return EntityConverter.toProtectionRequestGetWithSelfLink(processing, azureStorageRepository);
+    }
+
+    @Benchmark
+    public ProtectionRequestGet selfAndDownloadLink() {
+        return EntityConverter.toProtectionRequestGetWithSelfLink(complete, azureStorageRepository);
+    }
+
+    /**
+     * The way listings build their links.
+     */
+    @Benchmark
+    public ProtectionRequestGet selfLinkFromBase() {
+        final ControllerLinkBuilder base = linkTo(ProtectionRequestController.class);
+        return EntityConverter.toProtectionRequestGetWithSelfLink(processing, azureStorageRepository, base);
+    }
+}
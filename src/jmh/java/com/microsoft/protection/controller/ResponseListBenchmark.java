@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import static org.springframework.hateoas.mvc.ControllerLinkBuilder.linkTo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.hateoas.core.DefaultRelProvider;
+import org.springframework.hateoas.hal.Jackson2HalModule;
+import org.springframework.hateoas.mvc.ControllerLinkBuilder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.protection.BenchmarkFixtures;
+import com.microsoft.protection.controller.model.ProtectionRequestGet;
+import com.microsoft.protection.controller.model.ResponseList;
+import com.microsoft.protection.data.AzureStorageRepository;
+import com.microsoft.protection.data.model.ProtectionRequest.Status;
+
+/**
+ * HAL serialization of a listing page.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ResponseListBenchmark {
+
+    @Param({ "10", "500" })
+    private int size;
+
+    private ObjectMapper halObjectMapper;
+    private ResponseList<ProtectionRequestGet> page;
+
+    @Setup
+    public void setup() {
+        RequestContextHolder.setRequestAttributes(
+                new ServletRequestAttributes(new MockHttpServletRequest("GET", "/v1/protection")));
+
+        halObjectMapper = new ObjectMapper();
+        halObjectMapper.registerModule(new Jackson2HalModule());
+        halObjectMapper.setHandlerInstantiator(
+                new Jackson2HalModule.HalHandlerInstantiator(new DefaultRelProvider(), null, null));
+
+        final AzureStorageRepository azureStorageRepository = BenchmarkFixtures
+                .azureStorageRepository(BenchmarkFixtures.properties());
+        final ControllerLinkBuilder base = linkTo(ProtectionRequestController.class);
+        page = new ResponseList<>(IntStream.range(0, size)
+                .mapToObj(i -> EntityConverter.toProtectionRequestGetWithSelfLink(
+                        BenchmarkFixtures.request(i % 2 == 0 ? Status.COMPLETE : Status.PROCESSING),
+                        azureStorageRepository, base))
+                .collect(Collectors.toList()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    @Benchmark
+    public byte[] serialize() throws JsonProcessingException {
+        return halObjectMapper.writeValueAsBytes(page);
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockMultipartFile;
+
+import com.microsoft.protection.BenchmarkFixtures;
+
+/**
+ * The paths that stage source files in the spool area: downloads with and
+ * without content hash and multipart uploads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SpoolAreaBenchmark {
+    private static final String ID = "benchmark";
+
+    @Param({ "1048576", "33554432" })
+    private int size;
+
+    private SpoolArea spoolArea;
+    private byte[] content;
+    private Path target;
+
+    @Setup
+    public void setup() {
+        spoolArea = new SpoolArea(BenchmarkFixtures.properties());
+        content = new byte[size];
+        new Random(42).nextBytes(content);
+        target = spoolArea.allocate(ID, "filename.pdf");
+    }
+
+    @TearDown
+    public void tearDown() {
+        spoolArea.release(ID);
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        try (ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(content))) {
+            return spoolArea.transferFrom(in, target);
+        }
+    }
+
+    @Benchmark
+    public long downloadWithContentHash() throws IOException {
+        try (ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(content))) {
+            return spoolArea.transferFrom(in, target, ProtectedContentCache.newDigest());
+        }
+    }
+
+    @Benchmark
+    public long multipartUpload() throws IOException {
+        final File file = target.toFile();
+        new MockMultipartFile("file", "filename.pdf", "application/pdf", content).transferTo(file);
+        return file.length();
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data.model;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.microsoft.protection.BenchmarkFixtures;
+import com.microsoft.protection.data.model.ProtectionRequest.Status;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ProtectionRequestBenchmark {
+
+    private ProtectionRequest request;
+
+    @Setup
+    public void setup() {
+        request = BenchmarkFixtures.request(Status.PROCESSING);
+    }
+
+    @Benchmark
+    public ProtectionRequest setRightsAsString() {
+        request.setRightsAsString("READ, VIEW");
+        return request;
+    }
+
+    @Benchmark
+    public String getRightsAsString() {
+        return request.getRightsAsString();
+    }
+}
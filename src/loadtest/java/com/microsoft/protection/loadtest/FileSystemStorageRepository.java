@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Optional;
+
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.data.AzureStorageRepository;
+import com.microsoft.protection.error.FileStorageFailedException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Stand-in for Azure Storage that keeps the protected files in a local
+ * directory, with the same layout as the blob container. Direct uploads are
+ * expected in its <i>incoming</i> subdirectory, staged chunks are kept next to
+ * the file they become.
+ */
+@Slf4j
+public class FileSystemStorageRepository extends AzureStorageRepository {
+
+    private final Path root;
+    private final long latencyMillis;
+
+    public FileSystemStorageRepository(final ProtectionServiceProperties properties,
+            final LoadTestProperties.Storage settings) {
+        super(properties);
+        this.root = Paths.get(settings.getDirectory());
+        this.latencyMillis = settings.getLatencyMillis();
+    }
+
+    @Override
+    public void store(final File file, final String contentType, final String id) {
+        SimulatedLatency.pause(latencyMillis, 0);
+
+        final Path target = path(id, file.getName());
+        try {
+            Files.createDirectories(target.getParent());
+            Files.copy(file.toPath(), target);
+        } catch (final FileAlreadyExistsException e) {
+            log.warn("Artifact {} already exists in {}, don't need to store twice", id, root);
+        } catch (final IOException e) {
+            throw new FileStorageFailedException("Failed to store file", e);
+        }
+    }
+
+    @Override
+    public boolean copy(final String sourceId, final String sourceFileName, final String id, final String fileName) {
+        SimulatedLatency.pause(latencyMillis, 0);
+
+        final Path source = path(sourceId, sourceFileName);
+        if (!Files.exists(source)) {
+            return false;
+        }
+
+        final Path target = path(id, fileName);
+        try {
+            Files.createDirectories(target.getParent());
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (final IOException e) {
+            throw new FileStorageFailedException("Failed to copy file", e);
+        }
+    }
+
+    @Override
+    public void delete(final String id, final String fileName) {
+        SimulatedLatency.pause(latencyMillis, 0);
+
+        final Path file = path(id, fileName);
+        try {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(file.getParent());
+        } catch (final IOException e) {
+            throw new FileStorageFailedException("Failed to delete file", e);
+        }
+    }
+
+    @Override
+    public URI getUri(final String id, final String fileName) {
+        return path(id, fileName).toUri();
+    }
+
+    @Override
+    public URI getUploadUri(final String id, final String fileName, final Date expiresAt) {
+        return incoming(id, fileName).toUri();
+    }
+
+    @Override
+    public Optional<IncomingFile> getIncoming(final String id, final String fileName) {
+        final File file = incoming(id, fileName).toFile();
+        // the modification time stands in for the ETag
+        return file.exists() ? Optional.of(new IncomingFile(file.length(), String.valueOf(file.lastModified())))
+                : Optional.empty();
+    }
+
+    @Override
+    public void stageIncomingChunk(final String id, final String fileName, final int chunk, final Path content) {
+        SimulatedLatency.pause(latencyMillis, 0);
+
+        final Path target = chunk(id, fileName, chunk);
+        try {
+            Files.createDirectories(target.getParent());
+            Files.copy(content, target, StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException e) {
+            throw new FileStorageFailedException("Failed to stage chunk " + chunk, e);
+        }
+    }
+
+    @Override
+    public IncomingFile commitIncomingChunks(final String id, final String fileName, final int chunkCount) {
+        SimulatedLatency.pause(latencyMillis, 0);
+
+        try (OutputStream out = Files.newOutputStream(incoming(id, fileName))) {
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                Files.copy(chunk(id, fileName, chunk), out);
+            }
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                Files.delete(chunk(id, fileName, chunk));
+            }
+        } catch (final IOException e) {
+            throw new FileStorageFailedException("Failed to commit chunks", e);
+        }
+        return getIncoming(id, fileName).orElseThrow();
+    }
+
+    @Override
+    public InputStream openIncoming(final String id, final String fileName, final String etag) {
+        SimulatedLatency.pause(latencyMillis, 0);
+
+        if (etag != null && !etag.equals(String.valueOf(incoming(id, fileName).toFile().lastModified()))) {
+            throw new FileStorageFailedException("Uploaded file has been changed after the commit");
+        }
+
+        try {
+            return Files.newInputStream(incoming(id, fileName));
+        } catch (final IOException e) {
+            throw new FileStorageFailedException("Failed to open uploaded file", e);
+        }
+    }
+
+    @Override
+    public void deleteIncoming(final String id, final String fileName) {
+        final Path file = incoming(id, fileName);
+        try {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(file.getParent());
+        } catch (final IOException e) {
+            throw new FileStorageFailedException("Failed to delete uploaded file", e);
+        }
+    }
+
+    private Path path(final String id, final String fileName) {
+        return root.resolve(id).resolve(fileName);
+    }
+
+    private Path incoming(final String id, final String fileName) {
+        return root.resolve("incoming").resolve(id).resolve(fileName);
+    }
+
+    private Path chunk(final String id, final String fileName, final int chunk) {
+        return root.resolve("incoming").resolve(id).resolve(fileName + ".chunk-" + chunk);
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.loadtest;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Value;
+
+/**
+ * Records the latencies of one operation, both for the current report
+ * interval and for the whole run.
+ */
+class Latencies {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private long[] interval = new long[INITIAL_CAPACITY];
+    private int intervalCount;
+
+    private long[] total = new long[INITIAL_CAPACITY];
+    private int totalCount;
+
+    synchronized void record(final long startNanos) {
+        final long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+
+        if (intervalCount == interval.length) {
+            interval = Arrays.copyOf(interval, intervalCount * 2);
+        }
+        interval[intervalCount++] = micros;
+
+        if (totalCount == total.length) {
+            total = Arrays.copyOf(total, totalCount * 2);
+        }
+        total[totalCount++] = micros;
+    }
+
+    /**
+     * @return summary of the interval, which starts over
+     */
+    synchronized Summary nextInterval() {
+        final Summary summary = Summary.of(Arrays.copyOf(interval, intervalCount));
+        intervalCount = 0;
+        return summary;
+    }
+
+    synchronized Summary total() {
+        return Summary.of(Arrays.copyOf(total, totalCount));
+    }
+
+    @Value
+    static class Summary {
+        private final int count;
+        private final double p50Millis;
+        private final double p99Millis;
+        private final double maxMillis;
+
+        private static Summary of(final long[] micros) {
+            if (micros.length == 0) {
+                return new Summary(0, 0, 0, 0);
+            }
+
+            Arrays.sort(micros);
+            return new Summary(micros.length, percentile(micros, 0.5), percentile(micros, 0.99),
+                    micros[micros.length - 1] / 1000.0);
+        }
+
+        private static double percentile(final long[] sorted, final double percentile) {
+            final int rank = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, rank)] / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("p50 %.1f ms, p99 %.1f ms, max %.1f ms (%d)", p50Millis, p99Millis, maxMillis,
+                    count);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.loadtest;
+
+import java.io.File;
+
+import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.mip.MipSdkCaller;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Stand-in for the MIP SDK file sample that leaves the file as it is and only
+ * takes as long as a real protection call.
+ */
+@RequiredArgsConstructor
+public class LatencyMipSdkCaller implements MipSdkCaller {
+
+    private final LoadTestProperties.Mip settings;
+
+    @Override
+    public File protect(final ProtectionRequest request, final File toProtect, final String accessToken) {
+        SimulatedLatency.pause(settings.getLatencyMillis(), settings.getJitterMillis());
+        return toProtect;
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.loadtest;
+
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.cloud.stream.messaging.Source;
+import org.springframework.cloud.stream.test.binder.MessageCollector;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.protection.controller.ProtectionJobScheduler;
+import com.microsoft.protection.controller.ProtectionJobScheduler.Stage;
+import com.microsoft.protection.controller.model.ProtectionRequestGet;
+import com.microsoft.protection.controller.model.ProtectionRequestPost;
+import com.microsoft.protection.data.model.ProtectionJobLease;
+import com.microsoft.protection.data.model.ProtectionOutboxMessage;
+import com.microsoft.protection.data.model.ProtectionRequest.Status;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Drives POST, GET and DELETE traffic against the running service and reports
+ * throughput, latencies and the depth of its queues.
+ */
+@Slf4j
+@RequiredArgsConstructor
+public class LoadDriver {
+    private static final String BASE_PATH = "/v1/protection";
+
+    private final LoadTestProperties settings;
+    private final ProtectionJobScheduler scheduler;
+    private final MongoOperations mongoOperations;
+    private final MessageCollector messageCollector;
+    private final Source source;
+    private final RestTemplate restTemplate = new RestTemplate();
+
+    private final Latencies postLatencies = new Latencies();
+    private final Latencies getLatencies = new Latencies();
+    private final Latencies deleteLatencies = new Latencies();
+    private final Latencies doneLatencies = new Latencies();
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private long published;
+
+    /**
+     * Runs the configured number of virtual users for the configured duration.
+     *
+     * @param port
+     *            the service listens on
+     * @throws InterruptedException
+     *             if interrupted while waiting for the users
+     */
+    public void run(final int port) throws InterruptedException {
+        final String baseUrl = "http://localhost:" + port + BASE_PATH;
+        final String sourceUrl = settings.getSourceUrl() != null ? settings.getSourceUrl()
+                : "http://localhost:" + port + "/test.pdf";
+
+        log.info("Starting load test with {} users for {} seconds against {}", settings.getUsers(),
+                settings.getDurationSeconds(), baseUrl);
+
+        final ExecutorService users = Executors.newFixedThreadPool(settings.getUsers(),
+                new ThreadFactoryBuilder().setNameFormat("load-user-%d").setDaemon(true).build());
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.SECONDS.toNanos(settings.getDurationSeconds());
+
+        for (int i = 0; i < settings.getUsers(); i++) {
+            final String user = "load-" + i + "@contoso.com";
+            users.execute(() -> {
+                while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+                    iterate(baseUrl, sourceUrl, user);
+                }
+            });
+        }
+        users.shutdown();
+
+        long intervalStart = start;
+        long intervalCompleted = 0;
+        while (!users.awaitTermination(settings.getReportSeconds(), TimeUnit.SECONDS)) {
+            final long now = System.nanoTime();
+            final long done = completed.sum();
+            report(now - start, perSecond(done - intervalCompleted, now - intervalStart));
+            intervalStart = now;
+            intervalCompleted = done;
+        }
+
+        summarize(System.nanoTime() - start);
+    }
+
+    private void iterate(final String baseUrl, final String sourceUrl, final String user) {
+        final ProtectionRequestPost post = new ProtectionRequestPost();
+        post.setUrl(sourceUrl);
+        post.setUser(user);
+        post.setRights("READ, VIEW");
+        post.setCorrelationId(UUID.randomUUID().toString());
+
+        final long start = System.nanoTime();
+        final String id;
+        try {
+            id = restTemplate.postForObject(baseUrl, post, ProtectionRequestGet.class).getEntityId();
+            postLatencies.record(start);
+        } catch (final HttpStatusCodeException e) {
+            postLatencies.record(start);
+            if (HttpStatus.SERVICE_UNAVAILABLE == e.getStatusCode()) {
+                rejected.increment();
+                backOff(e);
+            } else {
+                errors.increment();
+                log.debug("Failed to create request", e);
+            }
+            return;
+        } catch (final RestClientException e) {
+            errors.increment();
+            log.debug("Failed to create request", e);
+            return;
+        }
+
+        final String status = awaitDone(baseUrl, id, start);
+        if (status == null) {
+            return;
+        }
+        doneLatencies.record(start);
+        if (Status.COMPLETE.name().equals(status)) {
+            completed.increment();
+        } else {
+            failed.increment();
+        }
+
+        if (ThreadLocalRandom.current().nextDouble() < settings.getDeleteRatio()) {
+            final long deleteStart = System.nanoTime();
+            try {
+                restTemplate.delete(baseUrl + "/{id}", id);
+                deleteLatencies.record(deleteStart);
+            } catch (final RestClientException e) {
+                errors.increment();
+                log.debug("Failed to delete request {}", id, e);
+            }
+        }
+    }
+
+    /**
+     * @return final status or <code>null</code> if the request did not finish
+     *         in time
+     */
+    private String awaitDone(final String baseUrl, final String id, final long start) {
+        final long timeout = start + TimeUnit.SECONDS.toNanos(settings.getTimeoutSeconds());
+
+        while (System.nanoTime() < timeout) {
+            SimulatedLatency.pause(settings.getPollMillis(), 0);
+            if (Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+
+            final long getStart = System.nanoTime();
+            try {
+                final String status = restTemplate
+                        .getForObject(baseUrl + "/{id}", ProtectionRequestGet.class, id).getStatus();
+                getLatencies.record(getStart);
+                if (!Status.PROCESSING.name().equals(status)) {
+                    return status;
+                }
+            } catch (final RestClientException e) {
+                errors.increment();
+                log.debug("Failed to get request {}", id, e);
+            }
+        }
+
+        timedOut.increment();
+        return null;
+    }
+
+    private void backOff(final HttpStatusCodeException e) {
+        final String retryAfter = e.getResponseHeaders() == null ? null
+                : e.getResponseHeaders().getFirst("Retry-After");
+        final long seconds = retryAfter == null ? 1 : Long.parseLong(retryAfter);
+        SimulatedLatency.pause(TimeUnit.SECONDS.toMillis(seconds), settings.getPollMillis());
+    }
+
+    private void report(final long elapsedNanos, final double throughput) {
+        // keeps the collected completion messages from piling up
+        published += messageCollector.forChannel(source.output()).size();
+        messageCollector.forChannel(source.output()).clear();
+
+        log.info("{}s: {} completed/s, {} rejected, {} failed, {} timed out, {} errors",
+                TimeUnit.NANOSECONDS.toSeconds(elapsedNanos), String.format("%.1f", throughput), rejected.sum(),
+                failed.sum(), timedOut.sum(), errors.sum());
+        log.info("  POST {}", postLatencies.nextInterval());
+        log.info("  GET {}", getLatencies.nextInterval());
+        log.info("  DELETE {}", deleteLatencies.nextInterval());
+        log.info("  done {}", doneLatencies.nextInterval());
+        log.info("  pending jobs {} (queued fetch {}, protect {}, store {}, publish {}), leases {}, outbox {}, "
+                + "published {}", scheduler.getPendingJobs(), scheduler.getQueuedJobs(Stage.FETCH),
+                scheduler.getQueuedJobs(Stage.PROTECT), scheduler.getQueuedJobs(Stage.STORE),
+                scheduler.getQueuedJobs(Stage.PUBLISH), mongoOperations.count(new Query(), ProtectionJobLease.class),
+                mongoOperations.count(new Query(), ProtectionOutboxMessage.class), published);
+    }
+
+    private void summarize(final long elapsedNanos) {
+        report(elapsedNanos, 0);
+
+        log.info("Load test finished after {}s with {} users", TimeUnit.NANOSECONDS.toSeconds(elapsedNanos),
+                settings.getUsers());
+        log.info("  throughput {} completed/s ({} completed, {} failed, {} rejected, {} timed out, {} errors)",
+                String.format("%.1f", perSecond(completed.sum(), elapsedNanos)), completed.sum(), failed.sum(),
+                rejected.sum(), timedOut.sum(), errors.sum());
+        log.info("  POST {}", postLatencies.total());
+        log.info("  GET {}", getLatencies.total());
+        log.info("  DELETE {}", deleteLatencies.total());
+        log.info("  done {}", doneLatencies.total());
+    }
+
+    private static double perSecond(final long count, final long nanos) {
+        return nanos == 0 ? 0 : count * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+}
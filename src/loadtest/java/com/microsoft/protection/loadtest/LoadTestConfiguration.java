@@ -0,0 +1,58 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.loadtest;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.cloud.stream.messaging.Source;
+import org.springframework.cloud.stream.test.binder.MessageCollector;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.MongoOperations;
+
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.controller.AadHandler;
+import com.microsoft.protection.controller.ProtectionJobScheduler;
+import com.microsoft.protection.data.AzureStorageRepository;
+import com.microsoft.protection.mip.MipSdkCaller;
+
+/**
+ * Replaces the beans that talk to Azure Storage, AAD and the MIP SDK with
+ * local stand-ins. The bean names match the ones of
+ * {@link com.microsoft.protection.ProtectionServiceConfiguration} so that
+ * these definitions override them.
+ */
+@Configuration
+@EnableConfigurationProperties(LoadTestProperties.class)
+public class LoadTestConfiguration {
+
+    @Bean
+    AzureStorageRepository azureStorageRepository(final ProtectionServiceProperties properties,
+            final LoadTestProperties settings) {
+        return new FileSystemStorageRepository(properties, settings.getStorage());
+    }
+
+    @Bean
+    AadHandler aadHandler(final ProtectionServiceProperties properties, final LoadTestProperties settings) {
+        final LoadTestProperties.Aad aad = settings.getAad();
+        return new AadHandler(properties, key -> {
+            SimulatedLatency.pause(aad.getLatencyMillis(), 0);
+            return new AadHandler.Token("loadtest-" + key.getTenant(),
+                    System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(aad.getTokenLifetimeSeconds()));
+        });
+    }
+
+    @Bean
+    MipSdkCaller mipSdkCaller(final LoadTestProperties settings) {
+        return new LatencyMipSdkCaller(settings.getMip());
+    }
+
+    @Bean
+    LoadDriver loadDriver(final LoadTestProperties settings, final ProtectionJobScheduler protectionJobScheduler,
+            final MongoOperations mongoOperations, final MessageCollector messageCollector, final Source source) {
+        return new LoadDriver(settings, protectionJobScheduler, mongoOperations, messageCollector, source);
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.loadtest;
+
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotBlank;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@ConfigurationProperties("loadtest")
+@Getter
+@Setter
+public class LoadTestProperties {
+    /**
+     * Concurrent virtual users, each one creates a request, polls it until it
+     * is done and deletes it afterwards.
+     */
+    @Min(1)
+    private int users = 16;
+
+    @Min(1)
+    private int durationSeconds = 60;
+
+    /**
+     * Interval of the intermediate reports.
+     */
+    @Min(1)
+    private int reportSeconds = 5;
+
+    /**
+     * Pause between two status polls of a virtual user.
+     */
+    @Min(1)
+    private long pollMillis = 200;
+
+    /**
+     * Requests that are not done by then count as timed out.
+     */
+    @Min(1)
+    private int timeoutSeconds = 120;
+
+    /**
+     * Share of done requests that are deleted again.
+     */
+    @DecimalMin("0.0")
+    @DecimalMax("1.0")
+    private double deleteRatio = 0.5;
+
+    /**
+     * File to protect, defaults to the test file served by the service itself.
+     */
+    private String sourceUrl;
+
+    private Mip mip = new Mip();
+
+    private Aad aad = new Aad();
+
+    private Storage storage = new Storage();
+
+    /**
+     * Stand-in for the MIP SDK file sample.
+     */
+    @Getter
+    @Setter
+    public static class Mip {
+        @Min(0)
+        private long latencyMillis = 500;
+
+        /**
+         * Uniformly distributed on top of the latency.
+         */
+        @Min(0)
+        private long jitterMillis = 250;
+    }
+
+    /**
+     * Stand-in for AAD.
+     */
+    @Getter
+    @Setter
+    public static class Aad {
+        @Min(0)
+        private long latencyMillis = 300;
+
+        @Min(1)
+        private long tokenLifetimeSeconds = 3600;
+    }
+
+    /**
+     * Stand-in for Azure Storage that keeps the files on the local file system.
+     */
+    @Getter
+    @Setter
+    public static class Storage {
+        @NotBlank
+        private String directory = System.getProperty("java.io.tmpdir") + "/protection-loadtest";
+
+        @Min(0)
+        private long latencyMillis = 50;
+    }
+}
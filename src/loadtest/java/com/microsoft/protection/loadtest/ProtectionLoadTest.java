@@ -0,0 +1,30 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.loadtest;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.microsoft.protection.ProtectionServiceConfiguration;
+
+/**
+ * Boots the service on embedded Mongo and the test binder with local
+ * stand-ins for Azure Storage, AAD and the MIP SDK and puts it under load.
+ * Settings are taken from {@link LoadTestProperties}, e.g.
+ * <code>--loadtest.users=64</code>.
+ */
+public final class ProtectionLoadTest {
+    private ProtectionLoadTest() {
+        // Utility class
+    }
+
+    public static void main(final String[] args) throws InterruptedException {
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(
+                ProtectionServiceConfiguration.class, LoadTestConfiguration.class).profiles("loadtest").run(args)) {
+            context.getBean(LoadDriver.class)
+                    .run(context.getEnvironment().getRequiredProperty("local.server.port", Integer.class));
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+final class SimulatedLatency {
+    private SimulatedLatency() {
+        // Utility class
+    }
+
+    /**
+     * Blocks the caller like a remote call would. An interrupt ends the pause
+     * early and is left for the caller to observe.
+     *
+     * @param millis
+     *            to wait at least
+     * @param jitterMillis
+     *            to wait at most on top
+     */
+    static void pause(final long millis, final long jitterMillis) {
+        final long pause = millis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+        if (pause == 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(pause);
+        } catch (final InterruptedException e) {
+            log.warn("Interrupted!", e);
+            // Restore interrupted state...
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -4,81 +4,258 @@
  */
 package com.microsoft.protection;
 
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.cloud.stream.annotation.EnableBinding;
+import org.springframework.cloud.stream.messaging.Sink;
 import org.springframework.cloud.stream.messaging.Source;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.task.TaskExecutor;
+import org.springframework.data.mongodb.config.EnableMongoAuditing;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
 import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
+import org.springframework.data.mongodb.repository.config.EnableReactiveMongoRepositories;
 import org.springframework.hateoas.config.EnableHypermediaSupport;
 import org.springframework.hateoas.config.EnableHypermediaSupport.HypermediaType;
-import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.concurrent.ConcurrentTaskExecutor;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.microsoft.applicationinsights.core.dependencies.googlecommon.util.concurrent.ThreadFactoryBuilder;
 import com.microsoft.azure.storage.CloudStorageAccount;
 import com.microsoft.protection.controller.AadHandler;
+import com.microsoft.protection.controller.ProtectionExceptionHandler;
 import com.microsoft.protection.controller.ProtectionHandler;
+import com.microsoft.protection.controller.ProtectionJobReclaimer;
+import com.microsoft.protection.controller.ProtectionJobScheduler;
 import com.microsoft.protection.controller.ProtectionPublisher;
 import com.microsoft.protection.controller.ProtectionRequestController;
+import com.microsoft.protection.controller.ProtectionRequestListener;
+import com.microsoft.protection.controller.ProtectionStatusChangeStream;
+import com.microsoft.protection.controller.ProtectionStatusEvents;
+import com.microsoft.protection.controller.ProtectionTelemetry;
+import com.microsoft.protection.controller.ReactiveProtectionRequestController;
+import com.microsoft.protection.controller.UploadSessionSweeper;
 import com.microsoft.protection.data.AzureStorageRepository;
+import com.microsoft.protection.data.BlockUploader;
+import com.microsoft.protection.data.MongoIndexInitializer;
+import com.microsoft.protection.data.ProtectedContentCache;
+import com.microsoft.protection.data.ProtectedContentRepository;
+import com.microsoft.protection.data.ProtectionJobQueue;
+import com.microsoft.protection.data.ProtectionOutbox;
 import com.microsoft.protection.data.ProtectionRequestRepository;
+import com.microsoft.protection.data.ReactiveProtectionRequestRepository;
+import com.microsoft.protection.data.SourceDownloader;
+import com.microsoft.protection.data.SpoolArea;
+import com.microsoft.protection.data.model.ProtectionJobLease;
+import com.microsoft.protection.data.model.ProtectionOutboxMessage;
+import com.microsoft.protection.data.model.ProtectionRequest;
 import com.microsoft.protection.mip.FileSampleMipSdkCaller;
 import com.microsoft.protection.mip.MipSdkCaller;
+import com.microsoft.protection.mip.PooledMipSdkCaller;
 
+import brave.Tracing;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
 import lombok.extern.slf4j.Slf4j;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.reporter.Reporter;
 
 @EnableAutoConfiguration
-@EnableBinding(Source.class)
+@EnableBinding({ Source.class, Sink.class })
 @Configuration
 @Slf4j
 @EnableConfigurationProperties(ProtectionServiceProperties.class)
-@EnableAsync
 @EnableMongoRepositories({ "com.microsoft.protection.data" })
+@EnableReactiveMongoRepositories({ "com.microsoft.protection.data" })
+@EnableMongoAuditing
 @EnableHypermediaSupport(type = { HypermediaType.HAL })
 public class ProtectionServiceConfiguration {
 
     private static final int MAX_POOL_SIZE = 10;
     private static final int KEEP_ALIVE_SECONDS = 60;
     private static final int CORE_POOL_SIZE = 2;
+    private static final String POOL_NAME = "executor-pool";
 
     @Bean
     ProtectionRequestController protectionRequestController(
             final ProtectionRequestRepository protectionRequestRepository, final ProtectionHandler mipHandler,
-            final AzureStorageRepository azureStorageRepository) {
-        return new ProtectionRequestController(protectionRequestRepository, mipHandler, azureStorageRepository);
+            final AzureStorageRepository azureStorageRepository,
+            @Qualifier("_halObjectMapper") final ObjectMapper halObjectMapper,
+            final ProtectionServiceProperties properties, final ProtectionStatusEvents protectionStatusEvents) {
+        return new ProtectionRequestController(protectionRequestRepository, mipHandler, azureStorageRepository,
+                halObjectMapper, properties, protectionStatusEvents);
+    }
+
+    @Bean
+    ReactiveProtectionRequestController reactiveProtectionRequestController(
+            final ReactiveProtectionRequestRepository reactiveProtectionRequestRepository,
+            final ProtectionHandler mipHandler, final AzureStorageRepository azureStorageRepository,
+            final ProtectionStatusEvents protectionStatusEvents) {
+        return new ReactiveProtectionRequestController(reactiveProtectionRequestRepository, mipHandler,
+                azureStorageRepository, protectionStatusEvents);
+    }
+
+    @Bean
+    ProtectionRequestListener protectionRequestListener(
+            final ProtectionRequestRepository protectionRequestRepository, final ProtectionHandler mipHandler,
+            final ProtectionStatusEvents protectionStatusEvents, final ObjectMapper objectMapper,
+            final ProtectionServiceProperties properties) {
+        return new ProtectionRequestListener(protectionRequestRepository, mipHandler, protectionStatusEvents,
+                objectMapper, properties);
+    }
+
+    @Bean
+    ProtectionExceptionHandler protectionExceptionHandler() {
+        return new ProtectionExceptionHandler();
+    }
+
+    @Bean
+    ProtectionStatusEvents protectionStatusEvents() {
+        return new ProtectionStatusEvents();
+    }
+
+    @Bean
+    @ConditionalOnProperty("com.microsoft.protection.status-events.change-streams")
+    ProtectionStatusChangeStream protectionStatusChangeStream(final ReactiveMongoOperations reactiveMongoOperations,
+            final ProtectionStatusEvents protectionStatusEvents) {
+        return new ProtectionStatusChangeStream(reactiveMongoOperations, protectionStatusEvents);
     }
 
     @Bean
-    ProtectionPublisher protectionPublisher(final Source source, final AzureStorageRepository azureStorageRepository) {
-        return new ProtectionPublisher(source, azureStorageRepository);
+    ProtectionPublisher protectionPublisher(final Source source, final AzureStorageRepository azureStorageRepository,
+            final ProtectionOutbox protectionOutbox, final ObjectMapper objectMapper,
+            final ProtectionTelemetry protectionTelemetry, final ProtectionServiceProperties properties) {
+        return new ProtectionPublisher(source, azureStorageRepository, protectionOutbox, objectMapper,
+                protectionTelemetry, properties);
+    }
+
+    @Bean
+    ProtectionTelemetry protectionTelemetry(final MeterRegistry meterRegistry, final Tracing tracing) {
+        return new ProtectionTelemetry(meterRegistry, tracing);
+    }
+
+    /**
+     * @return writes finished spans to the debug log if they are not reported
+     *         to a Zipkin collector
+     */
+    @Bean
+    @ConditionalOnProperty(value = "spring.zipkin.enabled", havingValue = "false")
+    Reporter<Span> loggingSpanReporter() {
+        return span -> {
+            if (log.isDebugEnabled()) {
+                log.debug("Span {}", new String(SpanBytesEncoder.JSON_V2.encode(span), StandardCharsets.UTF_8));
+            }
+        };
+    }
+
+    @Bean
+    ProtectionOutbox protectionOutbox(final MongoOperations mongoOperations,
+            final ProtectionServiceProperties properties) {
+        return new ProtectionOutbox(mongoOperations, properties);
     }
 
     @Bean
     ProtectionHandler mipHandler(final ProtectionRequestRepository protectionRequestRepository,
             final AzureStorageRepository azureStorageRepository, final AadHandler aadHandler,
-            final MipSdkCaller mipSdkCaller, final ProtectionPublisher protectionPublisher) {
+            final MipSdkCaller mipSdkCaller, final ProtectionPublisher protectionPublisher,
+            final SpoolArea spoolArea, final ProtectionJobScheduler protectionJobScheduler,
+            final ProtectionJobQueue protectionJobQueue, final ProtectionServiceProperties properties,
+            final ProtectedContentCache protectedContentCache, final ProtectionTelemetry protectionTelemetry,
+            final ProtectionStatusEvents protectionStatusEvents, final SourceDownloader sourceDownloader) {
         return new ProtectionHandler(protectionRequestRepository, azureStorageRepository, aadHandler, mipSdkCaller,
-                protectionPublisher);
+                protectionPublisher, spoolArea, protectionJobScheduler, protectionJobQueue, properties,
+                protectedContentCache, protectionTelemetry, protectionStatusEvents, sourceDownloader);
+    }
+
+    @Bean
+    ProtectedContentCache protectedContentCache(final ProtectedContentRepository protectedContentRepository,
+            final AzureStorageRepository azureStorageRepository) {
+        return new ProtectedContentCache(protectedContentRepository, azureStorageRepository);
+    }
+
+    @Bean
+    ProtectionJobQueue protectionJobQueue(final MongoOperations mongoOperations,
+            final ProtectionServiceProperties properties) {
+        return new ProtectionJobQueue(mongoOperations, properties);
+    }
+
+    @Bean
+    MongoIndexInitializer mongoIndexInitializer(final MongoOperations mongoOperations,
+            final MongoMappingContext mongoMappingContext) {
+        return new MongoIndexInitializer(mongoOperations, mongoMappingContext,
+                List.of(ProtectionRequest.class, ProtectionJobLease.class, ProtectionOutboxMessage.class));
+    }
+
+    @Bean
+    ProtectionJobReclaimer protectionJobReclaimer(final ProtectionJobQueue protectionJobQueue,
+            final ProtectionHandler mipHandler, final ProtectionJobScheduler protectionJobScheduler,
+            final ProtectionRequestRepository protectionRequestRepository,
+            final ProtectionServiceProperties properties) {
+        return new ProtectionJobReclaimer(protectionJobQueue, mipHandler, protectionJobScheduler,
+                protectionRequestRepository, properties);
+    }
+
+    @Bean
+    UploadSessionSweeper uploadSessionSweeper(final ProtectionRequestRepository protectionRequestRepository,
+            final AzureStorageRepository azureStorageRepository, final ProtectionServiceProperties properties) {
+        return new UploadSessionSweeper(protectionRequestRepository, azureStorageRepository, properties);
+    }
+
+    /**
+     * @return staged scheduler that runs all protection jobs, independent of
+     *         the general purpose {@link #threadPoolExecutor()}
+     */
+    @Bean
+    ProtectionJobScheduler protectionJobScheduler(final ProtectionServiceProperties properties,
+            final Tracing tracing, final SpoolArea spoolArea) {
+        return new ProtectionJobScheduler(properties, tracing, spoolArea);
+    }
+
+    @Bean
+    SpoolArea spoolArea(final ProtectionServiceProperties properties) {
+        return new SpoolArea(properties);
+    }
+
+    @Bean
+    SourceDownloader sourceDownloader(final ProtectionServiceProperties properties, final SpoolArea spoolArea) {
+        return new SourceDownloader(properties, spoolArea);
     }
 
     @Bean
     MipSdkCaller mipSdkCaller(final ProtectionServiceProperties properties) {
+        if (properties.getMipPool().isEnabled()) {
+            return new PooledMipSdkCaller(properties);
+        }
         return new FileSampleMipSdkCaller(properties);
     }
 
     @Bean
     AzureStorageRepository azureStorageRepository(final CloudStorageAccount storageAccount,
-            final ProtectionServiceProperties properties) {
-        return new AzureStorageRepository(storageAccount, properties);
+            final ProtectionServiceProperties properties, final BlockUploader blockUploader) {
+        return new AzureStorageRepository(storageAccount, properties, blockUploader);
+    }
+
+    @Bean
+    BlockUploader blockUploader(final ProtectionServiceProperties properties) {
+        return new BlockUploader(properties);
     }
 
     @Bean
@@ -100,14 +277,36 @@ public class ProtectionServiceConfiguration {
     ThreadPoolExecutor threadPoolExecutor() {
         final BlockingQueue<Runnable> blockingQueue = new ArrayBlockingQueue<>(100);
         return new ThreadPoolExecutor(CORE_POOL_SIZE, MAX_POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
-                blockingQueue, new ThreadFactoryBuilder().setNameFormat("executor-pool-%d").build(),
+                blockingQueue, new ThreadFactoryBuilder().setNameFormat(POOL_NAME + "-%d").build(),
                 new PoolSizeExceededPolicy());
     }
 
+    /**
+     * @return active threads, queue depth and caller runs of the
+     *         {@link #threadPoolExecutor()}
+     */
+    @Bean
+    MeterBinder threadPoolExecutorMetrics(final ThreadPoolExecutor threadPoolExecutor) {
+        return registry -> {
+            new ExecutorServiceMetrics(threadPoolExecutor, POOL_NAME, Tags.empty()).bindTo(registry);
+            if (threadPoolExecutor.getRejectedExecutionHandler() instanceof PoolSizeExceededPolicy) {
+                FunctionCounter
+                        .builder("executor.caller.runs",
+                                (PoolSizeExceededPolicy) threadPoolExecutor.getRejectedExecutionHandler(),
+                                policy -> policy.callerRuns.sum())
+                        .tag("name", POOL_NAME).description("Tasks the caller had to run on its own")
+                        .register(registry);
+            }
+        };
+    }
+
     private static class PoolSizeExceededPolicy extends CallerRunsPolicy {
+        private final LongAdder callerRuns = new LongAdder();
+
         @Override
         public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
             log.warn("Caller has to run on its own, reached limit of queue size {}", executor.getQueue().size());
+            callerRuns.increment();
             super.rejectedExecution(r, executor);
         }
     }
@@ -4,11 +4,17 @@
  */
 package com.microsoft.protection;
 
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotBlank;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import com.microsoft.protection.data.model.ProtectionRequest.Priority;
+
+import lombok.AllArgsConstructor;
 import lombok.Getter;
+import lombok.NoArgsConstructor;
 import lombok.Setter;
 
 @ConfigurationProperties("com.microsoft.protection")
@@ -27,8 +33,34 @@ public class ProtectionServiceProperties {
     @NotBlank
     private String storageContainerName = "artifactrepository";
 
+    /**
+     * Local directory where files are staged for protection.
+     */
+    @NotBlank
+    private String spoolDirectory = System.getProperty("java.io.tmpdir") + "/protection-spool";
+
     private AAD aad = new AAD();
 
+    private MipPool mipPool = new MipPool();
+
+    private Scheduler scheduler = new Scheduler();
+
+    private Queue queue = new Queue();
+
+    private StorageUpload storageUpload = new StorageUpload();
+
+    private Batch batch = new Batch();
+
+    private Outbox outbox = new Outbox();
+
+    private Dedup dedup = new Dedup();
+
+    private UploadSession uploadSession = new UploadSession();
+
+    private StatusEvents statusEvents = new StatusEvents();
+
+    private Download download = new Download();
+
     @Getter
     @Setter
     public static class AAD {
@@ -44,5 +76,493 @@ public class ProtectionServiceProperties {
 
         @NotBlank
         private String authorityHost = "https://login.microsoftonline.com/";
+
+        /**
+         * Tokens are not handed out anymore that close to their expiry.
+         */
+        @Min(0)
+        private long expiryBufferMillis = 10_000;
+
+        /**
+         * Tokens are refreshed that long before their expiry, at the latest
+         * half way through their lifetime.
+         */
+        @Min(0)
+        private long refreshAheadMillis = 300_000;
+
+        /**
+         * Delay before a failed refresh is retried while the old token is
+         * still valid.
+         */
+        @Min(1)
+        private long refreshRetryMillis = 30_000;
+
+        /**
+         * Tokens not asked for that long are dropped instead of refreshed.
+         */
+        @Min(1)
+        private long idleMillis = 3_600_000;
+    }
+
+    /**
+     * Pool of long lived MIP SDK worker processes, see
+     * {@link com.microsoft.protection.mip.PooledMipSdkCaller}.
+     */
+    @Getter
+    @Setter
+    public static class MipPool {
+        /**
+         * Use the pool instead of one file API CLI call per request.
+         */
+        private boolean enabled;
+
+        /**
+         * Command that starts a worker accepting jobs on stdin.
+         */
+        private String workerCommand;
+
+        @Min(1)
+        private int size = Runtime.getRuntime().availableProcessors();
+
+        /**
+         * Worker is recycled after that number of jobs.
+         */
+        @Min(1)
+        private int maxJobsPerWorker = 1_000;
+
+        @Min(1)
+        private int jobTimeoutMinutes = 60;
+
+        @Min(1)
+        private int acquireTimeoutSeconds = 30;
+
+        @Min(1)
+        private int healthCheckIntervalSeconds = 30;
+    }
+
+    /**
+     * Limits of the {@link com.microsoft.protection.controller.ProtectionJobScheduler}
+     * stages.
+     */
+    @Getter
+    @Setter
+    public static class Scheduler {
+        /**
+         * Jobs that are accepted but not completed yet, further requests are
+         * rejected.
+         */
+        @Min(1)
+        private int maxPendingJobs = 100;
+
+        @Min(1)
+        private int retryAfterSeconds = 5;
+
+        /**
+         * Concurrent downloads, I/O bound.
+         */
+        @Min(1)
+        private int fetchConcurrency = 2 * Runtime.getRuntime().availableProcessors();
+
+        /**
+         * Concurrent MIP SDK calls, CPU bound.
+         */
+        @Min(1)
+        private int protectConcurrency = Runtime.getRuntime().availableProcessors();
+
+        /**
+         * Concurrent uploads, I/O bound.
+         */
+        @Min(1)
+        private int storeConcurrency = 2 * Runtime.getRuntime().availableProcessors();
+
+        @Min(1)
+        private int publishConcurrency = 2;
+
+        /**
+         * Single requests, a user is usually waiting for them.
+         */
+        private Lane interactive = new Lane(4, 100, 100);
+
+        /**
+         * Batches and requests from the message broker, they soak up the
+         * capacity that interactive requests leave.
+         */
+        private Lane bulk = new Lane(1, 80, 75);
+
+        public Lane getLane(final Priority priority) {
+            return priority == Priority.BULK ? bulk : interactive;
+        }
+
+        /**
+         * Spool space that jobs in the small file pool may reserve, a job
+         * reserves twice its size for the source and the protected file.
+         */
+        @Min(1)
+        private long smallFilesMaxSpoolBytes = 8L * 1024 * 1024 * 1024;
+
+        /**
+         * Spool space that all admitted jobs may reserve together.
+         */
+        @Min(1)
+        private long maxSpoolBytes = 32L * 1024 * 1024 * 1024;
+
+        /**
+         * Spool space that is left free, jobs are only admitted if their
+         * reservation fits into the usable space beyond it.
+         */
+        @Min(0)
+        private long minFreeSpoolBytes = 1024L * 1024 * 1024;
+
+        /**
+         * Pool of the stages for large files, the other stage settings apply
+         * to the small file pool.
+         */
+        private LargeFiles largeFiles = new LargeFiles();
+
+        private VirtualThreads virtualThreads = new VirtualThreads();
+
+        @Getter
+        @Setter
+        public static class LargeFiles {
+            /**
+             * Files of at least this size run in the large file pool.
+             */
+            @Min(1)
+            private long thresholdBytes = 64L * 1024 * 1024;
+
+            /**
+             * Assumed size of files whose size is not known before they are
+             * downloaded, they run in the large file pool.
+             */
+            @Min(1)
+            private long unknownSizeBytes = 256L * 1024 * 1024;
+
+            @Min(1)
+            private int fetchConcurrency = 2;
+
+            @Min(1)
+            private int protectConcurrency = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+            @Min(1)
+            private int storeConcurrency = 2;
+
+            /**
+             * Spool space that jobs in the large file pool may reserve. A
+             * single job may exceed it if the pool is idle.
+             */
+            @Min(1)
+            private long maxSpoolBytes = 24L * 1024 * 1024 * 1024;
+        }
+
+        @Getter
+        @Setter
+        public static class VirtualThreads {
+            /**
+             * Runs the fetch, store and publish stages on a thread per job,
+             * virtual threads if the JVM provides them. Their concurrency
+             * settings do not apply then, jobs are only limited by admission,
+             * the spool budgets and the limits below. The protect stages keep
+             * their bounded pools, the MIP processes are the scarce resource
+             * there.
+             */
+            private boolean enabled;
+
+            /**
+             * Uploads to Azure Storage in flight at once.
+             */
+            @Min(1)
+            private int maxStorageConnections = 64;
+        }
+
+        /**
+         * Share of the scheduler that jobs of one {@link Priority} get.
+         */
+        @Getter
+        @Setter
+        @NoArgsConstructor
+        @AllArgsConstructor
+        public static class Lane {
+            /**
+             * Relative share of the stage threads while other lanes have work
+             * too.
+             */
+            @Min(1)
+            private int weight = 1;
+
+            /**
+             * Percentage of the pending jobs this lane may hold, further jobs
+             * of the lane are rejected.
+             */
+            @Min(1)
+            @Max(100)
+            private int maxPendingPercent = 100;
+
+            /**
+             * Percentage of the threads of each stage this lane may occupy.
+             */
+            @Min(1)
+            @Max(100)
+            private int maxConcurrencyPercent = 100;
+        }
+    }
+
+    /**
+     * Lease based job queue shared by all instances of the service.
+     */
+    @Getter
+    @Setter
+    public static class Queue {
+        /**
+         * Time after which a job of a worker that stopped renewing its lease is
+         * claimed by another one.
+         */
+        @Min(1)
+        private int leaseSeconds = 60;
+
+        @Min(1)
+        private int heartbeatSeconds = 20;
+
+        /**
+         * Interval to look for jobs with expired leases.
+         */
+        @Min(1)
+        private int pollSeconds = 10;
+
+        /**
+         * Jobs that have been claimed more often are set to error.
+         */
+        @Min(1)
+        private int maxAttempts = 3;
+    }
+
+    /**
+     * Tuning of protected file uploads to Azure Storage.
+     */
+    @Getter
+    @Setter
+    public static class StorageUpload {
+        /**
+         * Files up to that size are uploaded in one request, bigger ones in
+         * blocks of that size.
+         */
+        @Min(1)
+        private int blockSizeBytes = 8 * 1024 * 1024;
+
+        /**
+         * Blocks that are staged in parallel.
+         */
+        @Min(1)
+        private int concurrency = 8;
+    }
+
+    /**
+     * Batch submissions of many requests at once.
+     */
+    @Getter
+    @Setter
+    public static class Batch {
+        /**
+         * Requests of the same user and rights are protected together by jobs
+         * of up to that size.
+         */
+        @Min(1)
+        private int maxGroupSize = 50;
+
+        /**
+         * Groups this node had no capacity for are kept that long before
+         * their leases are left to any node.
+         */
+        @Min(1)
+        private int maxDeferredSeconds = 300;
+    }
+
+    /**
+     * Publishing of completion messages, see
+     * {@link com.microsoft.protection.controller.ProtectionPublisher}.
+     */
+    @Getter
+    @Setter
+    public static class Outbox {
+        /**
+         * Messages waiting to be sent in memory, further ones are picked up
+         * from the database.
+         */
+        @Min(1)
+        private int capacity = 10_000;
+
+        /**
+         * Messages that are removed from the outbox together once sent.
+         */
+        @Min(1)
+        private int batchSize = 100;
+
+        /**
+         * Interval to look for messages that are due in the database.
+         */
+        @Min(1)
+        private int sweepSeconds = 10;
+
+        /**
+         * Time after which a message that is neither sent nor failed is sent
+         * again.
+         */
+        @Min(1)
+        private int redeliverSeconds = 60;
+
+        @Min(1)
+        private int maxBackoffSeconds = 300;
+    }
+
+    /**
+     * Reuse of protected files for identical requests, see
+     * {@link com.microsoft.protection.data.ProtectedContentCache}.
+     */
+    @Getter
+    @Setter
+    public static class Dedup {
+        /**
+         * Hash source files and copy the protected file of an earlier request
+         * with the same content, user and rights.
+         */
+        private boolean enabled = true;
+
+        /**
+         * A server side copy that is not done by then is aborted and the file
+         * is protected and uploaded again.
+         */
+        @Min(1)
+        private int copyTimeoutSeconds = 30;
+    }
+
+    /**
+     * Uploads directly to Azure Storage with a pre-signed URL, or in resumable
+     * chunks through the service, instead of one multipart request.
+     */
+    @Getter
+    @Setter
+    public static class UploadSession {
+        /**
+         * Private container the clients upload to, files are removed once they
+         * have been protected.
+         */
+        @NotBlank
+        private String incomingContainerName = "incoming";
+
+        /**
+         * Lifetime of the upload URL.
+         */
+        @Min(1)
+        private int validityMinutes = 60;
+
+        /**
+         * Size of the chunks of uploads through the service, only the last
+         * chunk of a file may be smaller.
+         */
+        @Min(1)
+        private int chunkSizeBytes = 8 * 1024 * 1024;
+
+        /**
+         * Upload sessions not committed that long after their creation are
+         * removed together with what has been uploaded.
+         */
+        @Min(1)
+        private int abandonedAfterMinutes = 24 * 60;
+
+        /**
+         * Interval of the search for abandoned upload sessions.
+         */
+        @Min(1)
+        private int sweepMinutes = 15;
+    }
+
+    /**
+     * Clients waiting for status changes instead of polling.
+     */
+    @Getter
+    @Setter
+    public static class StatusEvents {
+        /**
+         * Upper bound of the <i>wait</i> parameter of long-polls.
+         */
+        @Min(1)
+        private int maxWaitSeconds = 60;
+
+        /**
+         * Watch the Mongo change stream for status changes made by other
+         * instances, requires a replica set.
+         */
+        private boolean changeStreams;
+
+        /**
+         * Interval in which the broker listener reads the requests of its
+         * unacknowledged messages from Mongo, they may be finished by another
+         * instance without an event reaching this one.
+         */
+        @Min(1)
+        private int listenerPollSeconds = 30;
+    }
+
+    /**
+     * Client for the source URLs of protection requests.
+     */
+    @Getter
+    @Setter
+    public static class Download {
+        @Min(1)
+        private int connectTimeoutMillis = 2_000;
+
+        /**
+         * Longest pause between two packets of a response.
+         */
+        @Min(1)
+        private int readTimeoutMillis = 30_000;
+
+        /**
+         * Idle connections that are kept open for reuse.
+         */
+        @Min(0)
+        private int maxIdleConnections = 32;
+
+        @Min(1)
+        private int keepAliveSeconds = 300;
+
+        /**
+         * Requests to the same host in flight at once, ranges of one file
+         * count separately.
+         */
+        @Min(1)
+        private int maxConnectionsPerHost = 8;
+
+        /**
+         * Attempts of every request, failed connections, timeouts and server
+         * errors are retried.
+         */
+        @Min(1)
+        private int maxAttempts = 3;
+
+        /**
+         * Backoff before the first retry, doubled for every further one.
+         */
+        @Min(0)
+        private long retryBackoffMillis = 500;
+
+        @Min(0)
+        private long maxRetryBackoffMillis = 5_000;
+
+        /**
+         * Files of at least that size are fetched in parallel byte ranges if
+         * the server accepts them.
+         */
+        @Min(1)
+        private long rangeThresholdBytes = 32L * 1024 * 1024;
+
+        @Min(1)
+        private int rangeSizeBytes = 8 * 1024 * 1024;
+
+        /**
+         * Ranges of one file fetched at once.
+         */
+        @Min(1)
+        private int rangeParallelism = 4;
     }
 }
@@ -6,79 +6,231 @@ package com.microsoft.protection.controller;
 
 import java.net.MalformedURLException;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.springframework.web.util.UriComponentsBuilder;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.microsoft.aad.adal4j.AuthenticationContext;
 import com.microsoft.aad.adal4j.AuthenticationResult;
 import com.microsoft.aad.adal4j.ClientCredential;
 import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.error.ProtectionFailedException;
 
-import lombok.RequiredArgsConstructor;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 
-@RequiredArgsConstructor
+/**
+ * Provides AAD access tokens per tenant and resource. Tokens are kept as
+ * immutable snapshots and refreshed in the background ahead of their expiry,
+ * so callers only wait for AAD if there is no valid token at all. Concurrent
+ * acquisitions for the same key are coalesced into one AAD call. Tokens that
+ * have not been asked for a while are dropped instead of refreshed.
+ */
 @Slf4j
-public class AadHandler {
+public class AadHandler implements AutoCloseable {
 
-    private static final int BUFFER_MILLISECONDS = 10_000;
-    private String accessToken;
-    private long accessTokenExpiresAfter;
+    private static final int ACQUIRE_TIMEOUT_SECONDS = 5;
 
-    private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+    private final ConcurrentMap<TokenKey, AtomicReference<Token>> tokens = new ConcurrentHashMap<>();
+    private final ConcurrentMap<TokenKey, Long> lastUsed = new ConcurrentHashMap<>();
+    private final ConcurrentMap<TokenKey, CompletableFuture<Token>> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AuthenticationContext> contexts = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("aad-refresher-%d").setDaemon(true).build());
+    // the blocking AAD calls, so that a slow tenant does not hold up the
+    // refreshes of the others
+    private final ExecutorService acquirer = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("aad-acquirer-%d").setDaemon(true).build());
 
     private final ThreadPoolExecutor threadPoolExecutor;
     private final ProtectionServiceProperties protectionServiceProperties;
+    private final TokenSource tokenSource;
+
+    public AadHandler(final ThreadPoolExecutor threadPoolExecutor,
+            final ProtectionServiceProperties protectionServiceProperties) {
+        this.threadPoolExecutor = threadPoolExecutor;
+        this.protectionServiceProperties = protectionServiceProperties;
+        this.tokenSource = this::acquire;
+    }
+
+    /**
+     * @param protectionServiceProperties
+     *            of the service
+     * @param tokenSource
+     *            local stand-in for AAD, e.g. for load tests
+     */
+    public AadHandler(final ProtectionServiceProperties protectionServiceProperties, final TokenSource tokenSource) {
+        this.threadPoolExecutor = null;
+        this.protectionServiceProperties = protectionServiceProperties;
+        this.tokenSource = tokenSource;
+    }
 
+    /**
+     * @return token for the configured tenant and protection service
+     */
     public Optional<String> getAccessToken() {
-        rwLock.readLock().lock();
+        return getAccessToken(protectionServiceProperties.getAad().getTenant(),
+                protectionServiceProperties.getProtectionBaseurl());
+    }
+
+    /**
+     * @param tenant
+     *            to authenticate against
+     * @param resource
+     *            the token is for
+     * @return valid token or empty if AAD could not be reached
+     */
+    public Optional<String> getAccessToken(final String tenant, final String resource) {
+        final TokenKey key = new TokenKey(tenant, resource);
+        lastUsed.put(key, System.currentTimeMillis());
+
+        final Token current = snapshot(key).get();
+        if (current != null && current.isValid(aad().getExpiryBufferMillis())) {
+            return Optional.of(current.getAccessToken());
+        }
+
         try {
-            if (accessToken != null && System.currentTimeMillis() < (accessTokenExpiresAfter - BUFFER_MILLISECONDS)) {
-                return Optional.of(accessToken);
+            return Optional.of(refresh(key).get(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS).getAccessToken());
+        } catch (ExecutionException | TimeoutException e) {
+            log.error("Failed to call AAD!", e);
+            return Optional.empty();
+        } catch (final InterruptedException e) {
+            log.warn("Interrupted!", e);
+            // Restore interrupted state...
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+    }
+
+    private AtomicReference<Token> snapshot(final TokenKey key) {
+        return tokens.computeIfAbsent(key, k -> new AtomicReference<>());
+    }
+
+    private CompletableFuture<Token> refresh(final TokenKey key) {
+        final CompletableFuture<Token> promise = new CompletableFuture<>();
+        final CompletableFuture<Token> running = inFlight.putIfAbsent(key, promise);
+        if (running != null) {
+            return running;
+        }
+
+        CompletableFuture.supplyAsync(() -> tokenSource.acquire(key), acquirer).whenComplete((token, failure) -> {
+            if (failure == null) {
+                snapshot(key).set(token);
+                scheduleRefresh(key, token.getRefreshAt(aad().getRefreshAheadMillis()) - System.currentTimeMillis());
+                promise.complete(token);
+            } else {
+                final Token stale = snapshot(key).get();
+                if (stale != null && stale.isValid(aad().getExpiryBufferMillis())) {
+                    scheduleRefresh(key, aad().getRefreshRetryMillis());
+                }
+                promise.completeExceptionally(failure);
             }
-        } finally {
-            rwLock.readLock().unlock();
+            inFlight.remove(key, promise);
+        });
+
+        return promise;
+    }
+
+    private void scheduleRefresh(final TokenKey key, final long delayMillis) {
+        refresher.schedule(() -> refreshIfUsed(key), Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    private void refreshIfUsed(final TokenKey key) {
+        final Long used = lastUsed.get(key);
+        if (used != null && System.currentTimeMillis() - used < aad().getIdleMillis()) {
+            refresh(key);
+            return;
         }
 
-        try {
-            final String authority = UriComponentsBuilder
-                    .fromHttpUrl(protectionServiceProperties.getAad().getAuthorityHost())
-                    .path(protectionServiceProperties.getAad().getTenant()).build().toUriString();
+        // a concurrent use keeps the token, it is acquired again on demand
+        // otherwise
+        if (used == null || lastUsed.remove(key, used)) {
+            log.debug("Dropping idle token for {}", key);
+            tokens.remove(key);
+        }
+    }
 
-            final AuthenticationContext context = new AuthenticationContext(authority, false, threadPoolExecutor);
+    private ProtectionServiceProperties.AAD aad() {
+        return protectionServiceProperties.getAad();
+    }
+
+    private Token acquire(final TokenKey key) {
+        final AuthenticationContext context = contexts.computeIfAbsent(key.getTenant(), this::createContext);
 
+        try {
             final AuthenticationResult response = context
-                    .acquireToken(protectionServiceProperties.getProtectionBaseurl(),
+                    .acquireToken(key.getResource(),
                             new ClientCredential(protectionServiceProperties.getAad().getClientId(),
                                     protectionServiceProperties.getAad().getClientSecret()),
                             null)
-                    .get(5, TimeUnit.SECONDS);
+                    .get(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
 
-            rwLock.writeLock().lock();
-            accessToken = response.getAccessToken();
-            accessTokenExpiresAfter = TimeUnit.MILLISECONDS.convert(response.getExpiresAfter(), TimeUnit.SECONDS);
-        } catch (MalformedURLException | ExecutionException | TimeoutException e) {
-            log.error("Failed to call AAD!", e);
-            return Optional.empty();
+            return new Token(response.getAccessToken(),
+                    System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(response.getExpiresAfter()));
+        } catch (ExecutionException | TimeoutException e) {
+            throw new ProtectionFailedException("Failed to acquire token for " + key, e);
         } catch (final InterruptedException e) {
-            log.warn("Interrupted!", e);
             // Restore interrupted state...
             Thread.currentThread().interrupt();
-        } finally {
-            rwLock.writeLock().unlock();
+            throw new ProtectionFailedException("Interrupted while acquiring token for " + key, e);
         }
+    }
 
-        rwLock.readLock().lock();
+    private AuthenticationContext createContext(final String tenant) {
+        final String authority = UriComponentsBuilder
+                .fromHttpUrl(protectionServiceProperties.getAad().getAuthorityHost()).path(tenant).build()
+                .toUriString();
         try {
-            return Optional.ofNullable(accessToken);
-        } finally {
-            rwLock.readLock().unlock();
+            return new AuthenticationContext(authority, false, threadPoolExecutor);
+        } catch (final MalformedURLException e) {
+            throw new ProtectionFailedException("Invalid AAD authority " + authority, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+        acquirer.shutdownNow();
+    }
+
+    /**
+     * Where tokens come from, AAD unless replaced by a local stand-in.
+     */
+    @FunctionalInterface
+    public interface TokenSource {
+        Token acquire(TokenKey key);
+    }
+
+    @Value
+    public static class TokenKey {
+        private final String tenant;
+        private final String resource;
+    }
+
+    @Value
+    public static class Token {
+        private final String accessToken;
+        private final long expiresAt;
+
+        boolean isValid(final long bufferMillis) {
+            return System.currentTimeMillis() < expiresAt - bufferMillis;
+        }
+
+        long getRefreshAt(final long refreshAheadMillis) {
+            final long lifetime = expiresAt - System.currentTimeMillis();
+            return expiresAt - Math.min(refreshAheadMillis, lifetime / 2);
         }
     }
 }
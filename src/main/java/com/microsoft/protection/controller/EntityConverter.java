@@ -7,9 +7,21 @@ package com.microsoft.protection.controller;
 import static org.springframework.hateoas.mvc.ControllerLinkBuilder.linkTo;
 import static org.springframework.hateoas.mvc.ControllerLinkBuilder.methodOn;
 
+import java.net.URI;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
 import org.springframework.hateoas.Link;
+import org.springframework.hateoas.mvc.ControllerLinkBuilder;
 
+import com.microsoft.protection.controller.model.ProtectionBatchGet;
 import com.microsoft.protection.controller.model.ProtectionRequestGet;
+import com.microsoft.protection.controller.model.ProtectionUploadSessionGet;
 import com.microsoft.protection.data.AzureStorageRepository;
 import com.microsoft.protection.data.model.ProtectionRequest;
 import com.microsoft.protection.data.model.ProtectionRequest.Status;
@@ -29,6 +41,21 @@ public final class EntityConverter {
         return response;
     }
 
+    /**
+     * @param base
+     *            link to the {@link ProtectionRequestController}, resolved once
+     *            for many entities
+     */
+    static ProtectionRequestGet toProtectionRequestGetWithSelfLink(final ProtectionRequest entity,
+            final AzureStorageRepository azureStorageRepository, final ControllerLinkBuilder base) {
+
+        final ProtectionRequestGet response = toProtectionRequestGet(entity, azureStorageRepository);
+
+        response.add(base.slash(entity.getId()).withSelfRel());
+
+        return response;
+    }
+
     static ProtectionRequestGet toProtectionRequestGet(final ProtectionRequest entity,
             final AzureStorageRepository azureStorageRepository) {
 
@@ -44,4 +71,56 @@ public final class EntityConverter {
 
         return response;
     }
+
+    static ProtectionBatchGet toProtectionBatchGetWithLinks(final String batchId, final Map<Status, Long> counts) {
+        final long total = counts.values().stream().mapToLong(Long::longValue).sum();
+
+        final Status status;
+        if (counts.getOrDefault(Status.PROCESSING, 0L) > 0) {
+            status = Status.PROCESSING;
+        } else if (counts.getOrDefault(Status.COMPLETE, 0L) == total) {
+            status = Status.COMPLETE;
+        } else {
+            status = Status.ERROR;
+        }
+
+        final Map<String, Long> statusCounts = new LinkedHashMap<>();
+        counts.forEach((key, count) -> statusCounts.put(key.toString(), count));
+
+        final ProtectionBatchGet response = new ProtectionBatchGet(batchId, status.toString(), total, statusCounts);
+        response.add(linkTo(methodOn(ProtectionRequestController.class).getBatch(batchId)).withSelfRel());
+        response.add(new Link(linkTo(ProtectionRequestController.class).toUriComponentsBuilder()
+                .queryParam("batchId", batchId).toUriString(), "requests"));
+
+        return response;
+    }
+
+    static ProtectionUploadSessionGet toProtectionUploadSessionGetWithLinks(final ProtectionRequest entity,
+            final URI uploadUri, final Date expiresAt) {
+        return withUploadSessionLinks(entity,
+                new ProtectionUploadSessionGet(entity.getId(), uploadUri.toString(), expiresAt, null, null));
+    }
+
+    static ProtectionUploadSessionGet toChunkedUploadSessionGetWithLinks(final ProtectionRequest entity) {
+        final Set<Integer> received = entity.getReceivedChunks() == null ? Set.of() : entity.getReceivedChunks();
+        final List<Integer> missing = IntStream.range(0, entity.getChunkCount()).filter(i -> !received.contains(i))
+                .boxed().collect(Collectors.toList());
+
+        return withUploadSessionLinks(entity,
+                new ProtectionUploadSessionGet(entity.getId(),
+                        linkTo(ProtectionRequestController.class).slash(entity.getId()).slash("chunks").toString(),
+                        null, entity.getChunkSize(), missing));
+    }
+
+    private static ProtectionUploadSessionGet withUploadSessionLinks(final ProtectionRequest entity,
+            final ProtectionUploadSessionGet response) {
+        response.add(linkTo(methodOn(ProtectionRequestController.class).getUploadSession(entity.getId()))
+                .withSelfRel());
+        response.add(linkTo(methodOn(ProtectionRequestController.class).getRequest(entity.getId()))
+                .withRel("request"));
+        response.add(linkTo(methodOn(ProtectionRequestController.class).commitUpload(entity.getId()))
+                .withRel("commit"));
+
+        return response;
+    }
 }
@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.data.model.ProtectionRequest.Priority;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Hands the tasks of one stage to its thread pool in weighted fair order
+ * instead of FIFO. Lanes with work get threads in proportion to their weight,
+ * an idle lane does not save up credit. Within a lane the tenants take turns,
+ * so one tenant with many tasks does not delay the others. A lane never
+ * occupies more threads than its cap, which keeps threads free for the other
+ * lanes. Tasks wait here, the pool never holds more than it can run.
+ */
+@Slf4j
+class FairStageExecutor {
+    private final ThreadPoolExecutor pool;
+    private final int concurrency;
+    private final Map<Priority, Lane> lanes = new EnumMap<>(Priority.class);
+
+    private double virtualTime;
+    private int running;
+
+    FairStageExecutor(final ThreadPoolExecutor pool, final int concurrency,
+            final ProtectionServiceProperties.Scheduler properties) {
+        this.pool = pool;
+        this.concurrency = concurrency;
+        for (final Priority priority : Priority.values()) {
+            final ProtectionServiceProperties.Scheduler.Lane lane = properties.getLane(priority);
+            lanes.put(priority, new Lane(lane.getWeight(),
+                    Math.max(1, concurrency * lane.getMaxConcurrencyPercent() / 100)));
+        }
+    }
+
+    /**
+     * @param priority
+     *            lane of the tasks
+     * @param tenant
+     *            that owns the tasks, tenants of a lane take turns
+     * @return executor that queues its tasks in the given lane
+     */
+    Executor forJob(final Priority priority, final String tenant) {
+        return task -> execute(priority, Objects.toString(tenant, ""), task);
+    }
+
+    private synchronized void execute(final Priority priority, final String tenant, final Runnable task) {
+        if (pool.isShutdown()) {
+            throw new RejectedExecutionException("Stage is shut down");
+        }
+        final Lane lane = lanes.get(priority);
+        if (lane.queued == 0 && lane.running == 0) {
+            // no credit for the time the lane has been idle
+            lane.pass = Math.max(lane.pass, virtualTime);
+        }
+        lane.enqueue(tenant, task);
+        dispatch();
+    }
+
+    private synchronized void dispatch() {
+        while (running < concurrency) {
+            final Lane lane = nextLane();
+            if (lane == null) {
+                return;
+            }
+            final Runnable task = lane.poll();
+            virtualTime = lane.pass;
+            lane.pass += lane.stride;
+            lane.running++;
+            running++;
+            try {
+                pool.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        finished(lane);
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                // only while shutting down, the pool has room for all running
+                // tasks
+                log.debug("Discarding task of shut down stage", e);
+                lane.running--;
+                running--;
+            }
+        }
+    }
+
+    private Lane nextLane() {
+        Lane next = null;
+        for (final Lane lane : lanes.values()) {
+            if (lane.queued > 0 && lane.running < lane.maxRunning && (next == null || lane.pass < next.pass)) {
+                next = lane;
+            }
+        }
+        return next;
+    }
+
+    private synchronized void finished(final Lane lane) {
+        lane.running--;
+        running--;
+        dispatch();
+    }
+
+    /**
+     * @return number of tasks waiting for a thread
+     */
+    synchronized int getQueued() {
+        return lanes.values().stream().mapToInt(lane -> lane.queued).sum();
+    }
+
+    synchronized int getQueued(final Priority priority) {
+        return lanes.get(priority).queued;
+    }
+
+    synchronized int getRunning(final Priority priority) {
+        return lanes.get(priority).running;
+    }
+
+    /**
+     * @return number of tenants with tasks waiting in the lane
+     */
+    synchronized int getWaitingTenants(final Priority priority) {
+        return lanes.get(priority).tenants.size();
+    }
+
+    private static class Lane {
+        private final double stride;
+        private final int maxRunning;
+        // in the order of their turns
+        private final Map<String, Deque<Runnable>> tenants = new LinkedHashMap<>();
+
+        private double pass;
+        private int running;
+        private int queued;
+
+        Lane(final int weight, final int maxRunning) {
+            this.stride = 1.0 / weight;
+            this.maxRunning = maxRunning;
+        }
+
+        void enqueue(final String tenant, final Runnable task) {
+            tenants.computeIfAbsent(tenant, k -> new ArrayDeque<>()).add(task);
+            queued++;
+        }
+
+        Runnable poll() {
+            final Iterator<Map.Entry<String, Deque<Runnable>>> turns = tenants.entrySet().iterator();
+            final Map.Entry<String, Deque<Runnable>> turn = turns.next();
+            final Runnable task = turn.getValue().poll();
+            turns.remove();
+            if (!turn.getValue().isEmpty()) {
+                // back in line behind the other tenants
+                tenants.put(turn.getKey(), turn.getValue());
+            }
+            queued--;
+            return task;
+        }
+    }
+}
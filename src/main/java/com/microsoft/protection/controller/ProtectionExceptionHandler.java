@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import static org.springframework.hateoas.mvc.ControllerLinkBuilder.linkTo;
+import static org.springframework.hateoas.mvc.ControllerLinkBuilder.methodOn;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+import com.microsoft.protection.error.DuplicateProtectionRequestException;
+import com.microsoft.protection.error.ProtectionCapacityExceededException;
+
+/**
+ * Maps the errors of the blocking and the reactive controller to responses.
+ */
+@RestControllerAdvice(assignableTypes = { ProtectionRequestController.class,
+        ReactiveProtectionRequestController.class })
+public class ProtectionExceptionHandler {
+
+    @ExceptionHandler(ProtectionCapacityExceededException.class)
+    public ResponseEntity<Void> handleCapacityExceeded(final ProtectionCapacityExceededException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds())).build();
+    }
+
+    @ExceptionHandler(DuplicateProtectionRequestException.class)
+    public ResponseEntity<Void> handleDuplicate(final DuplicateProtectionRequestException e) {
+        final ResponseEntity.BodyBuilder response = ResponseEntity.status(HttpStatus.CONFLICT);
+        if (e.getExistingId() != null) {
+            response.location(linkTo(methodOn(ProtectionRequestController.class).getRequest(e.getExistingId()))
+                    .toUri());
+        }
+        return response.build();
+    }
+}
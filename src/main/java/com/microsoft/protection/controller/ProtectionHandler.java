@@ -5,25 +5,47 @@
 package com.microsoft.protection.controller;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.URL;
-import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 
+import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
-import com.google.common.io.Files;
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.controller.ProtectionTelemetry.Measurement;
+import com.microsoft.protection.controller.ProtectionTelemetry.Operation;
 import com.microsoft.protection.data.AzureStorageRepository;
+import com.microsoft.protection.data.ProtectedContentCache;
+import com.microsoft.protection.data.ProtectionJobQueue;
 import com.microsoft.protection.data.ProtectionRequestRepository;
+import com.microsoft.protection.data.SourceDownloader;
+import com.microsoft.protection.data.SpoolArea;
 import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.data.model.ProtectionRequest.Priority;
 import com.microsoft.protection.data.model.ProtectionRequest.Status;
+import com.microsoft.protection.error.ProtectionCapacityExceededException;
 import com.microsoft.protection.error.ProtectionFailedException;
 import com.microsoft.protection.mip.MipSdkCaller;
 
@@ -34,64 +56,244 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class ProtectionHandler {
 
-    private static final int READ_TIMEOUT_MS = 2_000;
-    private static final int CONNECT_TIMEOUT_MS = 2_000;
     private final ProtectionRequestRepository protectionRequestRepository;
     private final AzureStorageRepository azureStorageRepository;
     private final AadHandler aadHandler;
     private final MipSdkCaller mipSdkCaller;
     private final ProtectionPublisher protectionPublisher;
+    private final SpoolArea spoolArea;
+    private final ProtectionJobScheduler scheduler;
+    private final ProtectionJobQueue jobQueue;
+    private final ProtectionServiceProperties properties;
+    private final ProtectedContentCache protectedContentCache;
+    private final ProtectionTelemetry telemetry;
+    private final ProtectionStatusEvents statusEvents;
+    private final SourceDownloader sourceDownloader;
+
+    // groups of a batch this node had no capacity for, in the order they came
+    private final Queue<DeferredGroup> deferred = new ConcurrentLinkedQueue<>();
 
-    @Async
     void protect(final ProtectionRequest request, final MultipartFile file) {
         Assert.notNull(file, "File must not be null!");
 
-        copyAndprotect(request, file);
+        scheduler.submit(new ProtectionJob(request, file, false));
     }
 
-    @Async
     void protect(final ProtectionRequest request) {
         Assert.hasLength(request.getUrl(), "URL must not be empty");
 
-        copyAndprotect(request, null);
+        scheduler.submit(new ProtectionJob(request, null, false));
+    }
+
+    /**
+     * Protects a request whose file has been uploaded to the incoming
+     * container of the storage account, directly or in chunks.
+     *
+     * @param request
+     *            to protect
+     */
+    void protectUploaded(final ProtectionRequest request) {
+        Assert.isTrue(request.isIncomingUpload(), "Request must be an upload");
+
+        scheduler.submit(new ProtectionJob(request, null, false));
     }
 
-    private static long copyMultipart(final MultipartFile file, final File toProtect) throws IOException {
-        try (final InputStream upload = file.getInputStream()) {
-            try (OutputStream temp = new FileOutputStream(toProtect)) {
-                return ByteStreams.copy(upload, temp);
+    /**
+     * Stages one chunk of a resumable upload in the incoming container. The
+     * chunk is spooled and verified first, so that a broken attempt does not
+     * replace a chunk that has been staged before. Chunks may be written in
+     * any order and again, e.g. after a failed attempt.
+     *
+     * @param request
+     *            awaiting its upload
+     * @param chunk
+     *            index of the chunk
+     * @param content
+     *            of the chunk
+     * @param md5
+     *            the content must have
+     */
+    void writeChunk(final ProtectionRequest request, final int chunk, final InputStream content,
+            final byte[] md5) {
+        Assert.isTrue(chunk >= 0 && chunk < request.getChunkCount(), "Chunk index out of range");
+
+        final long expected = Math.min(request.getChunkSize(),
+                request.getSize() - (long) chunk * request.getChunkSize());
+        // unique, the same chunk may be sent again while an attempt is still running
+        final Path spooled = spoolArea.allocate(request.getId(), "chunk-" + chunk + "-" + UUID.randomUUID());
+        final MessageDigest digest = newMd5();
+        try (Measurement measurement = telemetry.start(Operation.UPLOAD_COPY);
+                ReadableByteChannel in = Channels.newChannel(ByteStreams.limit(content, expected))) {
+            final long written = spoolArea.transferFrom(in, spooled, digest);
+            measurement.bytes(written);
+            if (written != expected) {
+                throw new ProtectionFailedException(
+                        "Chunk " + chunk + " has " + written + " bytes instead of " + expected);
+            }
+            if (!MessageDigest.isEqual(digest.digest(), md5)) {
+                throw new ProtectionFailedException("Checksum of chunk " + chunk + " does not match");
             }
+            azureStorageRepository.stageIncomingChunk(request.getId(), request.getFileName(), chunk, spooled);
+        } catch (final IOException e) {
+            throw new ProtectionFailedException("Failed to write chunk " + chunk, e);
+        } finally {
+            try {
+                Files.deleteIfExists(spooled);
+            } catch (final IOException e) {
+                log.warn("Failed to delete spooled chunk {}", spooled, e);
+            }
+        }
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported", e);
         }
     }
 
-    private void copyAndprotect(final ProtectionRequest request, final MultipartFile file) {
+    /**
+     * Protects requests of a batch that are stored already. Requests of the
+     * same user and rights are grouped into jobs that share admission, the AAD
+     * token and the final bulk update. Groups the scheduler has no capacity
+     * for are deferred: this node holds their leases, so that no other node
+     * picks up uploads that only exist in its spool area, and submits them as
+     * soon as capacity is available, see {@link #resumeDeferred()}. Groups
+     * that stay deferred too long are handed over to all nodes, see
+     * {@link #expireDeferred()}.
+     *
+     * @param requests
+     *            to protect
+     * @param uploads
+     *            files of the requests in the same order or <code>null</code>
+     *            to download them from the request URL
+     */
+    void protect(final List<ProtectionRequest> requests, final List<MultipartFile> uploads) {
+        Assert.isTrue(uploads == null || uploads.size() == requests.size(), "Every request needs a file");
 
-        final File myTempDir = Files.createTempDir();
-        final File toProtect = new File(myTempDir, request.getFileName());
+        final Map<String, List<ProtectionJob>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            final ProtectionRequest request = requests.get(i);
+            final MultipartFile upload = uploads == null ? null : uploads.get(i);
+            Assert.isTrue(upload != null || StringUtils.hasLength(request.getUrl()), "URL must not be empty");
 
-        try {
-            final long size;
-            if (file == null) {
-                size = copyFromUrl(request, toProtect);
+            final String group = request.getUser() + "|" + new TreeSet<>(request.getRights());
+            groups.computeIfAbsent(group, k -> new ArrayList<>()).add(new ProtectionJob(request, upload, false));
+        }
 
-            } else {
-                size = copyMultipart(file, toProtect);
+        int deferredRequests = 0;
+        for (final List<ProtectionJob> group : groups.values()) {
+            for (final List<ProtectionJob> members : Lists.partition(group,
+                    properties.getBatch().getMaxGroupSize())) {
+                try {
+                    scheduler.submit(new ProtectionBatchJob(members, false));
+                } catch (final ProtectionCapacityExceededException e) {
+                    jobQueue.enqueueAll(ids(members));
+                    members.forEach(ProtectionJob::prepare);
+                    deferred.add(new DeferredGroup(members));
+                    deferredRequests += members.size();
+                }
             }
+        }
+
+        if (deferredRequests > 0) {
+            log.info("No capacity for {} of {} requests, deferring them", deferredRequests, requests.size());
+        }
+    }
 
-            verifySize(request, size);
+    /**
+     * Submits the oldest group that has been deferred by
+     * {@link #protect(List, List)}.
+     *
+     * @return <code>false</code> if there is none or still no capacity
+     */
+    boolean resumeDeferred() {
+        final DeferredGroup group = deferred.peek();
+        if (group == null) {
+            return false;
+        }
+        try {
+            scheduler.submit(new ProtectionBatchJob(group.members, true));
+        } catch (final ProtectionCapacityExceededException e) {
+            return false;
+        }
+        deferred.remove();
+        return true;
+    }
 
-            final String accessToken = aadHandler.getAccessToken()
-                    .orElseThrow(() -> new ProtectionFailedException("Could not get access token from AAD"));
-            final File protectedFile = mipSdkCaller.protect(request, toProtect, accessToken);
-            azureStorageRepository.store(protectedFile, request.getContentType(), request.getId());
-            request.setStatus(Status.COMPLETE);
+    /**
+     * Postpones the leases of groups that have been deferred for longer than
+     * {@link ProtectionServiceProperties.Batch#getMaxDeferredSeconds()}, so
+     * that any node with capacity can claim them while this one stays busy.
+     * Uploads spooled on this node fail on the others.
+     */
+    void expireDeferred() {
+        final long deferredBefore = System.currentTimeMillis()
+                - TimeUnit.SECONDS.toMillis(properties.getBatch().getMaxDeferredSeconds());
+        DeferredGroup group;
+        while ((group = deferred.peek()) != null && group.deferredAt < deferredBefore) {
+            deferred.remove();
+            log.info("Handing over {} requests that have been deferred for too long", group.members.size());
+            ids(group.members).forEach(jobQueue::postpone);
+        }
+    }
+
+    /**
+     * Continues a job that has been claimed from the {@link ProtectionJobQueue}.
+     *
+     * @param request
+     *            to protect
+     * @return <code>false</code> if there is no capacity for it, its lease is
+     *         postponed then
+     */
+    boolean resume(final ProtectionRequest request) {
+        try {
+            scheduler.submit(new ProtectionJob(request, null, true));
+            return true;
+        } catch (final ProtectionCapacityExceededException e) {
+            log.debug("No capacity to resume {}, leave it to the next poll", request.getId());
+            jobQueue.postpone(request.getId());
+            return false;
+        }
+    }
+
+    /**
+     * Gives up on a job that has been claimed from the
+     * {@link ProtectionJobQueue}.
+     *
+     * @param request
+     *            to set to {@link Status#ERROR}
+     * @param reason
+     *            of the failure
+     */
+    void abandon(final ProtectionRequest request, final String reason) {
+        new ProtectionJob(request, null, true).complete(new ProtectionFailedException(reason));
+    }
+
+    /**
+     * Records the completion of a request that reached its final state,
+     * but whose job did not get to publish it.
+     *
+     * @param request
+     *            in its final state
+     */
+    void republish(final ProtectionRequest request) {
+        protectionPublisher.orderComplete(request);
+        jobQueue.complete(request.getId());
+    }
+
+    private static List<String> ids(final Collection<ProtectionJob> jobs) {
+        return jobs.stream().map(job -> job.request.getId()).collect(Collectors.toList());
+    }
 
-        } catch (final Exception e) {
-            log.error("Failed to protect " + request, e);
-            request.setStatus(Status.ERROR);
-            request.setStatusReason(e.getMessage());
+    private long copyMultipart(final MultipartFile file, final File toProtect) throws IOException {
+        try (Measurement measurement = telemetry.start(Operation.UPLOAD_COPY)) {
+            // moves the upload if the container has it on disk already
+            file.transferTo(toProtect);
+            measurement.bytes(toProtect.length());
+            return toProtect.length();
         }
-        protectionPublisher.orderComplete(protectionRequestRepository.save(request));
     }
 
     private static void verifySize(final ProtectionRequest request, final long size) {
@@ -103,13 +305,310 @@ public class ProtectionHandler {
         }
     }
 
-    private static long copyFromUrl(final ProtectionRequest request, final File toProtect) throws IOException {
+    private String accessToken() {
+        try (Measurement measurement = telemetry.start(Operation.AAD_TOKEN)) {
+            return aadHandler.getAccessToken()
+                    .orElseThrow(() -> new ProtectionFailedException("Could not get access token from AAD"));
+        }
+    }
+
+    private long copyFromUrl(final ProtectionRequest request, final File toProtect, final MessageDigest digest)
+            throws IOException {
+
+        try (Measurement measurement = telemetry.start(Operation.DOWNLOAD)) {
+            final Map<String, String> headers = new HashMap<>();
+            telemetry.inject(headers, Map::put);
+
+            try {
+                final long size = sourceDownloader.download(request.getUrl(), toProtect.toPath(), request.getSize(),
+                        digest, headers);
+                measurement.bytes(size);
+                return size;
+            } catch (final IOException e) {
+                measurement.failed(e);
+                throw e;
+            }
+        }
+    }
+
+    private long copyFromIncoming(final ProtectionRequest request, final File toProtect, final MessageDigest digest)
+            throws IOException {
+
+        try (Measurement measurement = telemetry.start(Operation.DOWNLOAD);
+                ReadableByteChannel in = Channels.newChannel(
+                        azureStorageRepository.openIncoming(request.getId(), request.getFileName(),
+                                request.getIncomingEtag()))) {
+            final long size = digest == null ? spoolArea.transferFrom(in, toProtect.toPath())
+                    : spoolArea.transferFrom(in, toProtect.toPath(), digest);
+            measurement.bytes(size);
+            return size;
+        }
+    }
+
+    @RequiredArgsConstructor
+    private class ProtectionJob implements ProtectionJobScheduler.Job {
+        private final ProtectionRequest request;
+        private final MultipartFile upload;
+        private final boolean resumed;
+
+        private File toProtect;
+        private File protectedFile;
+        private Exception acceptFailure;
+        private String contentKey;
+        private boolean reused;
+
+        private Throwable stageFailure;
+
+        @Override
+        public Priority getPriority() {
+            return request.getPriority();
+        }
+
+        @Override
+        public String getTenant() {
+            return request.getUser();
+        }
+
+        @Override
+        public Long getSize() {
+            return request.getSize();
+        }
+
+        @Override
+        public void accept() {
+            telemetry.tag(request);
+            if (!resumed) {
+                jobQueue.enqueue(request.getId());
+            }
+            prepare();
+        }
+
+        void prepare() {
+            toProtect = spoolArea.allocate(request.getId(), request.getFileName()).toFile();
+
+            // the upload is only available during the HTTP request
+            if (upload != null) {
+                try {
+                    verifySize(request, copyMultipart(upload, toProtect));
+                } catch (final IOException | RuntimeException e) {
+                    acceptFailure = e;
+                }
+            } else if (request.getUrl() == null && !request.isIncomingUpload() && !toProtect.exists()) {
+                acceptFailure = new ProtectionFailedException("Uploaded file is not available anymore");
+            }
+        }
 
-        final URLConnection connection = new URL(request.getUrl()).openConnection();
-        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
-        connection.setReadTimeout(READ_TIMEOUT_MS);
-        try (InputStream in = connection.getInputStream(); OutputStream out = FileUtils.openOutputStream(toProtect)) {
-            return IOUtils.copyLarge(in, out);
+        @Override
+        public void fetch() {
+            if (acceptFailure != null) {
+                throw new ProtectionFailedException(acceptFailure.getMessage(), acceptFailure);
+            }
+
+            final MessageDigest digest = properties.getDedup().isEnabled() ? ProtectedContentCache.newDigest()
+                    : null;
+            try {
+                if (request.getUrl() != null) {
+                    verifySize(request, copyFromUrl(request, toProtect, digest));
+                } else if (request.isIncomingUpload()) {
+                    verifySize(request, copyFromIncoming(request, toProtect, digest));
+                } else if (digest != null) {
+                    spoolArea.digest(toProtect.toPath(), digest);
+                }
+            } catch (final IOException e) {
+                throw new ProtectionFailedException(e.getMessage(), e);
+            }
+
+            if (digest != null) {
+                contentKey = ProtectedContentCache.key(digest, request);
+                reused = protectedContentCache.reuse(contentKey, request);
+            }
+        }
+
+        boolean needsProtection() {
+            return !reused;
+        }
+
+        @Override
+        public void protect() {
+            if (needsProtection()) {
+                protect(accessToken());
+            }
+        }
+
+        void protect(final String accessToken) {
+            if (needsProtection()) {
+                try (Measurement measurement = telemetry.start(Operation.MIP_PROTECT)) {
+                    if (request.getSize() != null) {
+                        measurement.bytes(request.getSize());
+                    }
+                    protectedFile = mipSdkCaller.protect(request, toProtect, accessToken);
+                }
+            }
+        }
+
+        @Override
+        public void store() {
+            if (!reused) {
+                try (Measurement measurement = telemetry.start(Operation.STORAGE_UPLOAD)) {
+                    measurement.bytes(protectedFile.length());
+                    azureStorageRepository.store(protectedFile, request.getContentType(), request.getId());
+                }
+                if (contentKey != null) {
+                    protectedContentCache.remember(contentKey, request, protectedFile.getName());
+                }
+            }
+            request.setStatus(Status.COMPLETE);
+        }
+
+        @Override
+        public void complete(final Throwable failure) {
+            finish(failure);
+
+            final ProtectionRequest saved;
+            try (Measurement measurement = telemetry.start(Operation.MONGO_SAVE)) {
+                saved = protectionRequestRepository.save(request);
+            } catch (final RuntimeException e) {
+                // let another worker retry
+                jobQueue.release(request.getId());
+                throw e;
+            }
+            completed(saved);
+        }
+
+        void finish(final Throwable failure) {
+            if (failure != null) {
+                log.error("Failed to protect " + request, failure);
+                request.setStatus(Status.ERROR);
+                request.setStatusReason(failure.getMessage());
+            }
+
+            spoolArea.release(request.getId());
+        }
+
+        void completed(final ProtectionRequest saved) {
+            announce(saved);
+            protectionPublisher.orderComplete(saved);
+            settle();
+        }
+
+        void announce(final ProtectionRequest saved) {
+            telemetry.completed(saved.getStatus());
+            statusEvents.publish(saved);
+        }
+
+        /**
+         * Removes what is left of the job, only after its completion has been
+         * recorded in the outbox.
+         */
+        void settle() {
+            jobQueue.complete(request.getId());
+
+            if (request.isIncomingUpload()) {
+                try {
+                    azureStorageRepository.deleteIncoming(request.getId(), request.getFileName());
+                } catch (final RuntimeException e) {
+                    log.warn("Failed to delete uploaded file of {}", request.getId(), e);
+                }
+            }
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static class DeferredGroup {
+        private final List<ProtectionJob> members;
+        private final long deferredAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Group of jobs for the same user and rights. A failing member does not
+     * affect the others.
+     */
+    @RequiredArgsConstructor
+    private class ProtectionBatchJob implements ProtectionJobScheduler.Job {
+        private final List<ProtectionJob> members;
+        // leased and prepared when it was deferred
+        private final boolean deferred;
+
+        @Override
+        public Priority getPriority() {
+            return members.get(0).getPriority();
+        }
+
+        @Override
+        public String getTenant() {
+            return members.get(0).getTenant();
+        }
+
+        @Override
+        public Long getSize() {
+            long size = 0;
+            for (final ProtectionJob member : members) {
+                if (member.getSize() == null) {
+                    return null;
+                }
+                size += member.getSize();
+            }
+            return size;
+        }
+
+        @Override
+        public void accept() {
+            if (!deferred) {
+                jobQueue.enqueueAll(ids(members));
+                members.forEach(ProtectionJob::prepare);
+            }
+        }
+
+        @Override
+        public void fetch() {
+            forEachPending(ProtectionJob::fetch);
+        }
+
+        @Override
+        public void protect() {
+            if (members.stream().noneMatch(member -> member.stageFailure == null && member.needsProtection())) {
+                return;
+            }
+            final String accessToken = accessToken();
+            forEachPending(member -> member.protect(accessToken));
+        }
+
+        @Override
+        public void store() {
+            forEachPending(ProtectionJob::store);
+        }
+
+        @Override
+        public void complete(final Throwable failure) {
+            members.forEach(member -> member.finish(member.stageFailure != null ? member.stageFailure : failure));
+
+            final List<ProtectionRequest> saved = new ArrayList<>();
+            try (Measurement measurement = telemetry.start(Operation.MONGO_SAVE)) {
+                protectionRequestRepository.saveAll(members.stream().map(member -> member.request)
+                        .collect(Collectors.toList())).forEach(saved::add);
+            } catch (final RuntimeException e) {
+                // let another worker retry
+                ids(members).forEach(jobQueue::release);
+                throw e;
+            }
+
+            for (int i = 0; i < members.size(); i++) {
+                members.get(i).announce(saved.get(i));
+            }
+            protectionPublisher.orderComplete(saved);
+            members.forEach(ProtectionJob::settle);
+        }
+
+        private void forEachPending(final Consumer<ProtectionJob> stage) {
+            for (final ProtectionJob member : members) {
+                if (member.stageFailure == null) {
+                    try {
+                        stage.accept(member);
+                    } catch (final RuntimeException e) {
+                        member.stageFailure = e;
+                    }
+                }
+            }
         }
     }
 
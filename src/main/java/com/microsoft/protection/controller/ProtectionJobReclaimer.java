@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.data.ProtectionJobQueue;
+import com.microsoft.protection.data.ProtectionRequestRepository;
+import com.microsoft.protection.data.model.ProtectionJobLease;
+import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.data.model.ProtectionRequest.Status;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Renews the leases of this worker and, as long as the
+ * {@link ProtectionJobScheduler} has capacity left, submits the jobs this
+ * worker deferred before it claims jobs with expired leases from the
+ * {@link ProtectionJobQueue}.
+ */
+@Slf4j
+public class ProtectionJobReclaimer implements AutoCloseable {
+
+    private final ProtectionJobQueue jobQueue;
+    private final ProtectionHandler protectionHandler;
+    private final ProtectionJobScheduler scheduler;
+    private final ProtectionRequestRepository protectionRequestRepository;
+    private final int maxAttempts;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("job-reclaimer-%d").setDaemon(true).build());
+
+    public ProtectionJobReclaimer(final ProtectionJobQueue jobQueue, final ProtectionHandler protectionHandler,
+            final ProtectionJobScheduler scheduler, final ProtectionRequestRepository protectionRequestRepository,
+            final ProtectionServiceProperties properties) {
+        this.jobQueue = jobQueue;
+        this.protectionHandler = protectionHandler;
+        this.scheduler = scheduler;
+        this.protectionRequestRepository = protectionRequestRepository;
+        this.maxAttempts = properties.getQueue().getMaxAttempts();
+
+        final ProtectionServiceProperties.Queue queue = properties.getQueue();
+        executor.scheduleWithFixedDelay(this::renew, queue.getHeartbeatSeconds(), queue.getHeartbeatSeconds(),
+                TimeUnit.SECONDS);
+        executor.scheduleWithFixedDelay(this::reclaim, queue.getPollSeconds(), queue.getPollSeconds(),
+                TimeUnit.SECONDS);
+    }
+
+    private void renew() {
+        try {
+            jobQueue.renew();
+        } catch (final RuntimeException e) {
+            log.error("Failed to renew leases", e);
+        }
+    }
+
+    private void reclaim() {
+        try {
+            protectionHandler.expireDeferred();
+            while (scheduler.hasCapacity()) {
+                if (protectionHandler.resumeDeferred()) {
+                    continue;
+                }
+                final Optional<ProtectionJobLease> lease = jobQueue.claimNext();
+                if (!lease.isPresent() || !resume(lease.get())) {
+                    // nothing left or no capacity, claiming more would only
+                    // postpone them again
+                    return;
+                }
+            }
+        } catch (final RuntimeException e) {
+            log.error("Failed to reclaim jobs", e);
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the scheduler had no capacity for the job
+     */
+    private boolean resume(final ProtectionJobLease lease) {
+        final Optional<ProtectionRequest> request = protectionRequestRepository.findById(lease.getId());
+
+        if (!request.isPresent()) {
+            jobQueue.complete(lease.getId());
+            return true;
+        }
+
+        if (Status.PROCESSING != request.get().getStatus()) {
+            // the worker is gone after saving the final state
+            protectionHandler.republish(request.get());
+            return true;
+        }
+
+        if (lease.getAttempts() > maxAttempts) {
+            log.warn("Giving up on {} after {} attempts", lease.getId(), maxAttempts);
+            protectionHandler.abandon(request.get(), "Gave up after " + maxAttempts + " attempts");
+            return true;
+        }
+
+        if (!scheduler.hasCapacity(request.get().getPriority(), request.get().getSize())) {
+            // its lane or the spool is full, the scheduler would reject it anyway
+            jobQueue.postpone(lease.getId());
+            return false;
+        }
+
+        log.info("Resuming {} with expired lease (attempt {})", lease.getId(), lease.getAttempts());
+        return protectionHandler.resume(request.get());
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
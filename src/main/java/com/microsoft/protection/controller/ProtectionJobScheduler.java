@@ -0,0 +1,464 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.data.SpoolArea;
+import com.microsoft.protection.data.model.ProtectionRequest.Priority;
+import com.microsoft.protection.error.ProtectionCapacityExceededException;
+
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs protection jobs through separate {@link Stage}s, each with its own
+ * bounded thread pool. Admission is limited to a fixed number of pending jobs
+ * so that callers are rejected with {@link ProtectionCapacityExceededException}
+ * instead of running jobs on their own thread. Jobs wait for the threads of a
+ * stage in the lane of their {@link Priority}, see {@link FairStageExecutor},
+ * and each lane may only hold its share of the pending jobs. Small and large
+ * files run in separate {@link Pool}s, so a few large files do not hold up all
+ * threads, and a job is only admitted if the spool space it needs is
+ * available. Active threads and queue depth of each stage and lane are exposed
+ * as metrics. Each job runs in its own span, a child of the span that
+ * submitted it, across all stages.
+ * <p>
+ * With virtual threads enabled, the I/O bound stages run every job on a
+ * thread of its own and are shared by both pools. Only the storage uploads
+ * and the protect stages stay limited, the spool budgets and the admission
+ * bound everything else.
+ */
+@Slf4j
+public class ProtectionJobScheduler implements MeterBinder, AutoCloseable {
+    private static final int KEEP_ALIVE_SECONDS = 60;
+
+    public enum Stage {
+        FETCH, PROTECT, STORE, PUBLISH;
+    }
+
+    /**
+     * Stage threads and spool budget shared by jobs of similar size. Both pools
+     * share the {@link Stage#PUBLISH} threads, publishing does not depend on
+     * the size.
+     */
+    public enum Pool {
+        SMALL, LARGE;
+    }
+
+    /**
+     * A protection job as seen by the scheduler.
+     */
+    public interface Job {
+        /**
+         * Runs on the thread of the caller after the job has been admitted.
+         */
+        default void accept() {
+            // nothing to prepare by default
+        }
+
+        void fetch();
+
+        void protect();
+
+        void store();
+
+        /**
+         * Runs always as last stage.
+         *
+         * @param failure
+         *            of an earlier stage or <code>null</code>
+         */
+        void complete(Throwable failure);
+
+        default Priority getPriority() {
+            return Priority.INTERACTIVE;
+        }
+
+        /**
+         * @return owner of the job, jobs of different tenants in the same lane
+         *         take turns
+         */
+        default String getTenant() {
+            return null;
+        }
+
+        /**
+         * @return bytes of the files to protect or <code>null</code> if not
+         *         known before they are fetched
+         */
+        default Long getSize() {
+            return null;
+        }
+    }
+
+    private final Map<Pool, Map<Stage, ThreadPoolExecutor>> executors = new EnumMap<>(Pool.class);
+    private final Map<Pool, Map<Stage, FairStageExecutor>> fairExecutors = new EnumMap<>(Pool.class);
+    private final Map<Priority, Semaphore> laneAdmissions = new EnumMap<>(Priority.class);
+    private final Map<Priority, Integer> laneMaxPendingJobs = new EnumMap<>(Priority.class);
+    private final Tracing tracing;
+    private final SpoolArea spoolArea;
+    private final Semaphore admission;
+    private final int maxPendingJobs;
+    private final int retryAfterSeconds;
+
+    private final long largeFileThresholdBytes;
+    private final long unknownSizeBytes;
+    private final long maxSpoolBytes;
+    private final long minFreeSpoolBytes;
+    private final Map<Pool, Long> poolMaxSpoolBytes = new EnumMap<>(Pool.class);
+    // guarded by this
+    private final Map<Pool, Long> reservedPoolBytes = new EnumMap<>(Pool.class);
+    private long reservedSpoolBytes;
+
+    public ProtectionJobScheduler(final ProtectionServiceProperties properties, final Tracing tracing,
+            final SpoolArea spoolArea) {
+        this.tracing = tracing;
+        this.spoolArea = spoolArea;
+        final ProtectionServiceProperties.Scheduler scheduler = properties.getScheduler();
+        final ProtectionServiceProperties.Scheduler.LargeFiles largeFiles = scheduler.getLargeFiles();
+        this.maxPendingJobs = scheduler.getMaxPendingJobs();
+        this.retryAfterSeconds = scheduler.getRetryAfterSeconds();
+        this.admission = new Semaphore(maxPendingJobs);
+        for (final Priority priority : Priority.values()) {
+            final int lanePendingJobs = Math.max(1,
+                    maxPendingJobs * scheduler.getLane(priority).getMaxPendingPercent() / 100);
+            laneMaxPendingJobs.put(priority, lanePendingJobs);
+            laneAdmissions.put(priority, new Semaphore(lanePendingJobs));
+        }
+
+        this.largeFileThresholdBytes = largeFiles.getThresholdBytes();
+        this.unknownSizeBytes = largeFiles.getUnknownSizeBytes();
+        this.maxSpoolBytes = scheduler.getMaxSpoolBytes();
+        this.minFreeSpoolBytes = scheduler.getMinFreeSpoolBytes();
+        poolMaxSpoolBytes.put(Pool.SMALL, scheduler.getSmallFilesMaxSpoolBytes());
+        poolMaxSpoolBytes.put(Pool.LARGE, largeFiles.getMaxSpoolBytes());
+        reservedPoolBytes.put(Pool.SMALL, 0L);
+        reservedPoolBytes.put(Pool.LARGE, 0L);
+
+        addStage(Pool.SMALL, Stage.PROTECT, scheduler.getProtectConcurrency(), scheduler);
+        addStage(Pool.LARGE, Stage.PROTECT, largeFiles.getProtectConcurrency(), scheduler);
+        if (scheduler.getVirtualThreads().isEnabled()) {
+            final ThreadFactory threadFactory = virtualThreadFactory();
+            addThreadPerJobStage(Stage.FETCH, maxPendingJobs, threadFactory, scheduler);
+            addThreadPerJobStage(Stage.STORE, scheduler.getVirtualThreads().getMaxStorageConnections(),
+                    threadFactory, scheduler);
+            addThreadPerJobStage(Stage.PUBLISH, maxPendingJobs, threadFactory, scheduler);
+        } else {
+            addStage(Pool.SMALL, Stage.FETCH, scheduler.getFetchConcurrency(), scheduler);
+            addStage(Pool.SMALL, Stage.STORE, scheduler.getStoreConcurrency(), scheduler);
+            addStage(Pool.SMALL, Stage.PUBLISH, scheduler.getPublishConcurrency(), scheduler);
+            addStage(Pool.LARGE, Stage.FETCH, largeFiles.getFetchConcurrency(), scheduler);
+            addStage(Pool.LARGE, Stage.STORE, largeFiles.getStoreConcurrency(), scheduler);
+        }
+    }
+
+    private void addStage(final Pool pool, final Stage stage, final int concurrency,
+            final ProtectionServiceProperties.Scheduler scheduler) {
+        // the fair executor never hands over more tasks than there are threads,
+        // apart from the moment a thread finishes one and picks up the next
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<>(concurrency),
+                new ThreadFactoryBuilder().setNameFormat(stageName(pool, stage) + "-%d").build());
+        executor.allowCoreThreadTimeOut(true);
+        addStage(pool, stage, executor, concurrency, scheduler);
+    }
+
+    /**
+     * Shared by both pools, the fair executor limits the jobs in flight.
+     */
+    private void addThreadPerJobStage(final Stage stage, final int concurrency, final ThreadFactory threadFactory,
+            final ProtectionServiceProperties.Scheduler scheduler) {
+        // no idle threads are kept, every job gets a fresh one
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), threadFactory);
+        addStage(Pool.SMALL, stage, executor, concurrency, scheduler);
+    }
+
+    private void addStage(final Pool pool, final Stage stage, final ThreadPoolExecutor executor,
+            final int concurrency, final ProtectionServiceProperties.Scheduler scheduler) {
+        executors.computeIfAbsent(pool, k -> new EnumMap<>(Stage.class)).put(stage, executor);
+        fairExecutors.computeIfAbsent(pool, k -> new EnumMap<>(Stage.class)).put(stage,
+                new FairStageExecutor(executor, concurrency, scheduler));
+    }
+
+    /**
+     * Virtual threads are looked up reflectively, so the service still runs
+     * on JDKs without them.
+     *
+     * @return factory of virtual threads or of platform threads if the JVM
+     *         does not provide them
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            final Object virtual = builder.getMethod("name", String.class, long.class)
+                    .invoke(Thread.class.getMethod("ofVirtual").invoke(null), "virtual-stage-", 0L);
+            log.info("Running I/O bound protection stages on virtual threads");
+            return (ThreadFactory) builder.getMethod("factory").invoke(virtual);
+        } catch (final ReflectiveOperationException | LinkageError e) {
+            log.warn("Virtual threads are not available on Java {}, using a platform thread per job",
+                    System.getProperty("java.version"));
+            return new ThreadFactoryBuilder().setNameFormat("job-stage-%d").setDaemon(true).build();
+        }
+    }
+
+    /**
+     * @param job
+     *            to run
+     * @throws ProtectionCapacityExceededException
+     *             if the job cannot be admitted
+     */
+    public void submit(final Job job) {
+        final Priority priority = job.getPriority();
+        final Semaphore laneAdmission = laneAdmissions.get(priority);
+        final long size = job.getSize() == null ? unknownSizeBytes : job.getSize();
+        final Pool pool = pool(job.getSize());
+        final long spoolBytes = spoolBytes(job.getSize());
+
+        if (!admission.tryAcquire()) {
+            log.warn("Rejecting protection job, reached limit of {} pending jobs", maxPendingJobs);
+            throw new ProtectionCapacityExceededException(
+                    "Reached limit of " + maxPendingJobs + " pending protection jobs", retryAfterSeconds);
+        }
+        if (!laneAdmission.tryAcquire()) {
+            admission.release();
+            log.warn("Rejecting {} protection job, reached limit of {} pending jobs of the lane", priority,
+                    laneMaxPendingJobs.get(priority));
+            throw new ProtectionCapacityExceededException("Reached limit of " + laneMaxPendingJobs.get(priority)
+                    + " pending " + priority.name().toLowerCase() + " protection jobs", retryAfterSeconds);
+        }
+        if (!reserveSpool(pool, spoolBytes)) {
+            laneAdmission.release();
+            admission.release();
+            log.warn("Rejecting protection job of {} bytes, not enough spool space for the {} file pool", size,
+                    pool.name().toLowerCase());
+            throw new ProtectionCapacityExceededException("Not enough spool space for a protection job of " + size
+                    + " bytes", retryAfterSeconds);
+        }
+
+        final Span span = tracing.tracer().nextSpan().name("protection-job").start();
+        try (Tracer.SpanInScope scope = tracing.tracer().withSpanInScope(span)) {
+            job.accept();
+
+            CompletableFuture.runAsync(job::fetch, traced(pool, Stage.FETCH, job))
+                    .thenRunAsync(job::protect, traced(pool, Stage.PROTECT, job))
+                    .thenRunAsync(job::store, traced(pool, Stage.STORE, job)).handleAsync((ignored, failure) -> {
+                        final Throwable cause = unwrap(failure);
+                        if (cause != null) {
+                            span.error(cause);
+                        }
+                        job.complete(cause);
+                        return null;
+                    }, traced(pool, Stage.PUBLISH, job)).whenComplete((ignored, failure) -> {
+                        span.finish();
+                        releaseSpool(pool, spoolBytes);
+                        laneAdmission.release();
+                        admission.release();
+                        if (failure != null) {
+                            log.error("Failed to complete protection job", failure);
+                        }
+                    });
+        } catch (final RuntimeException e) {
+            span.error(e).finish();
+            releaseSpool(pool, spoolBytes);
+            laneAdmission.release();
+            admission.release();
+            if (e instanceof RejectedExecutionException) {
+                throw new ProtectionCapacityExceededException("Protection scheduler is not accepting jobs",
+                        retryAfterSeconds);
+            }
+            throw e;
+        }
+    }
+
+    private Pool pool(final Long size) {
+        return size == null || size >= largeFileThresholdBytes ? Pool.LARGE : Pool.SMALL;
+    }
+
+    /**
+     * @return spool space of the source and the protected file
+     */
+    private long spoolBytes(final Long size) {
+        return 2 * (size == null ? unknownSizeBytes : size);
+    }
+
+    private synchronized boolean reserveSpool(final Pool pool, final long bytes) {
+        if (!fitsSpool(pool, bytes)) {
+            return false;
+        }
+        reservedPoolBytes.put(pool, reservedPoolBytes.get(pool) + bytes);
+        reservedSpoolBytes += bytes;
+        return true;
+    }
+
+    /**
+     * A single job larger than a budget is admitted while nothing else holds
+     * on to it, otherwise it would never run. The free space check counts the
+     * parts of admitted jobs that are written already twice, which errs on
+     * the safe side.
+     */
+    private synchronized boolean fitsSpool(final Pool pool, final long bytes) {
+        final long reservedByPool = reservedPoolBytes.get(pool);
+        return !(reservedByPool > 0 && reservedByPool + bytes > poolMaxSpoolBytes.get(pool)
+                || reservedSpoolBytes > 0 && reservedSpoolBytes + bytes > maxSpoolBytes
+                || spoolArea.getUsableSpace() - minFreeSpoolBytes < reservedSpoolBytes + bytes);
+    }
+
+    private synchronized void releaseSpool(final Pool pool, final long bytes) {
+        reservedPoolBytes.put(pool, reservedPoolBytes.get(pool) - bytes);
+        reservedSpoolBytes -= bytes;
+    }
+
+    /**
+     * @return number of jobs that are admitted but not completed yet
+     */
+    public int getPendingJobs() {
+        return maxPendingJobs - admission.availablePermits();
+    }
+
+    /**
+     * @param priority
+     *            lane of the jobs
+     * @return number of jobs of the lane that are admitted but not completed
+     *         yet
+     */
+    public int getPendingJobs(final Priority priority) {
+        return laneMaxPendingJobs.get(priority) - laneAdmissions.get(priority).availablePermits();
+    }
+
+    /**
+     * @param pool
+     *            of the jobs
+     * @return spool bytes reserved by admitted jobs of the pool
+     */
+    public synchronized long getReservedSpoolBytes(final Pool pool) {
+        return reservedPoolBytes.get(pool);
+    }
+
+    /**
+     * @param stage
+     *            of the jobs
+     * @return number of jobs waiting for a thread of the stage
+     */
+    public int getQueuedJobs(final Stage stage) {
+        int queued = 0;
+        for (final Pool pool : Pool.values()) {
+            if (fairExecutors.containsKey(pool) && fairExecutors.get(pool).containsKey(stage)) {
+                queued += fairExecutors.get(pool).get(stage).getQueued()
+                        + executors.get(pool).get(stage).getQueue().size();
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * @return <code>true</code> if a job of at least one lane may be admitted
+     */
+    public boolean hasCapacity() {
+        return admission.availablePermits() > 0
+                && laneAdmissions.values().stream().anyMatch(lane -> lane.availablePermits() > 0);
+    }
+
+    /**
+     * @param priority
+     *            lane of the job
+     * @return <code>true</code> if a job of the lane may be admitted
+     */
+    public boolean hasCapacity(final Priority priority) {
+        return admission.availablePermits() > 0 && laneAdmissions.get(priority).availablePermits() > 0;
+    }
+
+    /**
+     * @param priority
+     *            lane of the job
+     * @param size
+     *            bytes of the files to protect or <code>null</code> if not
+     *            known before they are fetched
+     * @return <code>true</code> if the job may be admitted, unless another one
+     *         takes the capacity first
+     */
+    public boolean hasCapacity(final Priority priority, final Long size) {
+        return hasCapacity(priority) && fitsSpool(pool(size), spoolBytes(size));
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        executors.forEach((pool, stages) -> stages.forEach((stage, executor) -> new ExecutorServiceMetrics(
+                executor, stageName(pool, stage), Tags.empty()).bindTo(registry)));
+        Gauge.builder("protection.jobs.pending", this, ProtectionJobScheduler::getPendingJobs)
+                .description("Protection jobs that are admitted but not completed yet").register(registry);
+        for (final Pool pool : Pool.values()) {
+            Gauge.builder("protection.spool.reserved", this, scheduler -> scheduler.getReservedSpoolBytes(pool))
+                    .tags("pool", pool.name().toLowerCase()).baseUnit("bytes")
+                    .description("Spool space reserved by admitted protection jobs").register(registry);
+        }
+        for (final Priority priority : Priority.values()) {
+            final Tags lane = Tags.of("lane", priority.name().toLowerCase());
+            Gauge.builder("protection.jobs.lane.pending", this, scheduler -> scheduler.getPendingJobs(priority))
+                    .tags(lane).description("Protection jobs of the lane that are admitted but not completed yet")
+                    .register(registry);
+            fairExecutors.forEach((pool, stages) -> stages.forEach((stage, executor) -> {
+                final Tags tags = lane.and("pool", pool.name().toLowerCase()).and("stage",
+                        stage.name().toLowerCase());
+                Gauge.builder("protection.jobs.lane.queued", executor, fair -> fair.getQueued(priority)).tags(tags)
+                        .description("Protection jobs of the lane waiting for a thread of the stage")
+                        .register(registry);
+                Gauge.builder("protection.jobs.lane.running", executor, fair -> fair.getRunning(priority))
+                        .tags(tags).description("Protection jobs of the lane running in the stage")
+                        .register(registry);
+                Gauge.builder("protection.jobs.lane.tenants", executor, fair -> fair.getWaitingTenants(priority))
+                        .tags(tags).description("Tenants with jobs of the lane waiting for a thread of the stage")
+                        .register(registry);
+            }));
+        }
+    }
+
+    private static String stageName(final Pool pool, final Stage stage) {
+        // small file stages keep their names from before there were pools
+        return (pool == Pool.LARGE ? "large-" : "") + stage.name().toLowerCase() + "-stage";
+    }
+
+    private Executor traced(final Pool pool, final Stage stage, final Job job) {
+        // stages that are not separated by pool are registered for the small
+        // one
+        final FairStageExecutor executor = fairExecutors.get(pool).getOrDefault(stage,
+                fairExecutors.get(Pool.SMALL).get(stage));
+        // carries the trace context of the submitting thread to the stage
+        return tracing.currentTraceContext().executor(executor.forJob(job.getPriority(), job.getTenant()));
+    }
+
+    private static Throwable unwrap(final Throwable failure) {
+        if (failure instanceof CompletionException && failure.getCause() != null) {
+            return failure.getCause();
+        }
+        return failure;
+    }
+
+    @Override
+    public void close() {
+        executors.values().forEach(stages -> stages.values().forEach(ThreadPoolExecutor::shutdown));
+    }
+}
@@ -4,23 +4,229 @@
  */
 package com.microsoft.protection.controller;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
 import org.springframework.cloud.stream.messaging.Source;
+import org.springframework.integration.annotation.ServiceActivator;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.MessagingException;
+import org.springframework.messaging.support.ErrorMessage;
 import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeTypeUtils;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.controller.ProtectionTelemetry.Measurement;
+import com.microsoft.protection.controller.ProtectionTelemetry.Operation;
 import com.microsoft.protection.data.AzureStorageRepository;
+import com.microsoft.protection.data.ProtectionOutbox;
+import com.microsoft.protection.data.model.ProtectionOutboxMessage;
 import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.error.ProtectionFailedException;
 
-import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 
-@RequiredArgsConstructor
-public class ProtectionPublisher {
+/**
+ * Publishes completed requests through the {@link ProtectionOutbox}. Callers
+ * only record the message, a dispatcher sends them to the broker and retries
+ * messages the broker did not accept. The binder sends one message at a time,
+ * the dispatcher takes whatever is queued and removes the sent messages from
+ * the outbox together. Each message continues the trace it was recorded in
+ * and carries its context in the message headers.
+ */
+@Slf4j
+public class ProtectionPublisher implements AutoCloseable {
+    static final String OUTBOX_ID_HEADER = "protectionOutboxId";
+    static final String OUTBOX_ATTEMPTS_HEADER = "protectionOutboxAttempts";
+    static final String OUTBOX_TRACE_HEADER = "protectionOutboxTrace";
 
     private final Source source;
     private final AzureStorageRepository azureStorageRepository;
+    private final ProtectionOutbox outbox;
+    private final ObjectMapper objectMapper;
+    private final ProtectionTelemetry telemetry;
+
+    private final BlockingQueue<ProtectionOutboxMessage> pending;
+    private final int batchSize;
 
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2,
+            new ThreadFactoryBuilder().setNameFormat("publisher-%d").setDaemon(true).build());
+
+    public ProtectionPublisher(final Source source, final AzureStorageRepository azureStorageRepository,
+            final ProtectionOutbox outbox, final ObjectMapper objectMapper, final ProtectionTelemetry telemetry,
+            final ProtectionServiceProperties properties) {
+        this.source = source;
+        this.azureStorageRepository = azureStorageRepository;
+        this.outbox = outbox;
+        this.objectMapper = objectMapper;
+        this.telemetry = telemetry;
+
+        final ProtectionServiceProperties.Outbox settings = properties.getOutbox();
+        this.pending = new ArrayBlockingQueue<>(settings.getCapacity());
+        this.batchSize = settings.getBatchSize();
+
+        executor.execute(this::dispatch);
+        executor.scheduleWithFixedDelay(this::sweep, settings.getSweepSeconds(), settings.getSweepSeconds(),
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Records the completion message, it is sent asynchronously.
+     *
+     * @param entity
+     *            that reached a final state
+     */
     public void orderComplete(final ProtectionRequest entity) {
-        source.output().send(MessageBuilder
-                .withPayload(EntityConverter.toProtectionRequestGet(entity, azureStorageRepository)).build());
+        offer(outbox.add(entity.getId(), payload(entity), telemetry.currentTrace()));
+    }
+
+    /**
+     * Records the completion messages of many requests with one write, they
+     * are sent asynchronously.
+     *
+     * @param entities
+     *            that reached a final state
+     */
+    public void orderComplete(final List<ProtectionRequest> entities) {
+        final String trace = telemetry.currentTrace();
+        final List<ProtectionOutboxMessage> messages = entities.stream()
+                .map(entity -> new ProtectionOutboxMessage(entity.getId(), payload(entity), trace, null, 0))
+                .collect(Collectors.toList());
+        outbox.addAll(messages);
+        messages.forEach(this::offer);
+    }
+
+    private String payload(final ProtectionRequest entity) {
+        try {
+            return objectMapper
+                    .writeValueAsString(EntityConverter.toProtectionRequestGet(entity, azureStorageRepository));
+        } catch (final JsonProcessingException e) {
+            throw new ProtectionFailedException("Failed to serialize completion of " + entity.getId(), e);
+        }
+    }
+
+    private void offer(final ProtectionOutboxMessage message) {
+        if (!pending.offer(message)) {
+            log.debug("Outbox is full, {} is picked up by the next sweep", message.getId());
+        }
     }
 
+    private void dispatch() {
+        final List<ProtectionOutboxMessage> batch = new ArrayList<>(batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(pending.take());
+                // takes what is queued already, without waiting for more
+                pending.drainTo(batch, batchSize - 1);
+
+                send(batch);
+            } catch (final InterruptedException e) {
+                log.warn("Interrupted!", e);
+                // Restore interrupted state...
+                Thread.currentThread().interrupt();
+            } catch (final RuntimeException e) {
+                log.error("Failed to dispatch completion messages", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void send(final List<ProtectionOutboxMessage> batch) {
+        final List<ProtectionOutboxMessage> sent = new ArrayList<>(batch.size());
+        for (final ProtectionOutboxMessage message : batch) {
+            try (Measurement measurement = telemetry.start(Operation.PUBLISH, message.getTrace())) {
+                final Message<byte[]> toSend = toMessage(message);
+                measurement.bytes(toSend.getPayload().length);
+                try {
+                    source.output().send(toSend);
+                    sent.add(message);
+                } catch (final MessagingException e) {
+                    measurement.failed(e);
+                    log.warn("Failed to send completion of {}, retrying later", message.getId(), e);
+                    outbox.retry(message);
+                }
+            }
+        }
+
+        if (!sent.isEmpty()) {
+            outbox.remove(sent);
+        }
+    }
+
+    private Message<byte[]> toMessage(final ProtectionOutboxMessage message) {
+        final MessageBuilder<byte[]> builder = MessageBuilder
+                .withPayload(message.getPayload().getBytes(StandardCharsets.UTF_8))
+                .setHeader(MessageHeaders.CONTENT_TYPE, MimeTypeUtils.APPLICATION_JSON_VALUE)
+                .setHeader(OUTBOX_ID_HEADER, message.getId())
+                .setHeader(OUTBOX_ATTEMPTS_HEADER, message.getAttempts());
+        if (message.getTrace() != null) {
+            // continued by the retry if the broker does not accept the message
+            builder.setHeader(OUTBOX_TRACE_HEADER, message.getTrace());
+        }
+        telemetry.inject(builder, MessageBuilder::setHeader);
+        return builder.build();
+    }
+
+    /**
+     * Picks up messages that are due, because the outbox was full, the broker
+     * rejected them or their worker is gone.
+     */
+    private void sweep() {
+        try {
+            while (pending.remainingCapacity() > 0) {
+                final Optional<ProtectionOutboxMessage> due = outbox.claimDue();
+                if (!due.isPresent()) {
+                    return;
+                }
+                pending.offer(due.get());
+            }
+        } catch (final RuntimeException e) {
+            log.error("Failed to sweep outbox", e);
+        }
+    }
+
+    /**
+     * Publisher confirms: messages the broker negatively acknowledged or
+     * returned are scheduled for another attempt.
+     *
+     * @param error
+     *            of the output binding
+     */
+    @ServiceActivator(inputChannel = "protection.requests.errors")
+    public void onSendFailure(final ErrorMessage error) {
+        if (!(error.getPayload() instanceof MessagingException)) {
+            log.error("Unexpected error on output binding", error.getPayload());
+            return;
+        }
+
+        final Message<?> failed = ((MessagingException) error.getPayload()).getFailedMessage();
+        final String id = failed == null ? null : failed.getHeaders().get(OUTBOX_ID_HEADER, String.class);
+        final Integer attempts = failed == null ? null : failed.getHeaders().get(OUTBOX_ATTEMPTS_HEADER, Integer.class);
+        if (id == null || attempts == null || !(failed.getPayload() instanceof byte[])) {
+            log.error("Broker did not accept message", error.getPayload());
+            return;
+        }
+
+        log.warn("Broker did not accept completion of {}, retrying later", id);
+        outbox.retry(new ProtectionOutboxMessage(id, new String((byte[]) failed.getPayload(), StandardCharsets.UTF_8),
+                failed.getHeaders().get(OUTBOX_TRACE_HEADER, String.class), null, attempts));
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
 }
@@ -4,43 +4,83 @@
  */
 package com.microsoft.protection.controller;
 
+import static org.springframework.hateoas.mvc.ControllerLinkBuilder.linkTo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.validation.Valid;
 
-import org.springframework.data.domain.PageRequest;
+import org.bson.types.ObjectId;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.hateoas.Link;
 import org.springframework.hateoas.MediaTypes;
+import org.springframework.hateoas.mvc.ControllerLinkBuilder;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.controller.model.ProtectionBatchGet;
+import com.microsoft.protection.controller.model.ProtectionBatchPost;
 import com.microsoft.protection.controller.model.ProtectionRequestGet;
 import com.microsoft.protection.controller.model.ProtectionRequestPost;
+import com.microsoft.protection.controller.model.ProtectionUploadSessionGet;
 import com.microsoft.protection.controller.model.ResponseList;
 import com.microsoft.protection.data.AzureStorageRepository;
+import com.microsoft.protection.data.AzureStorageRepository.IncomingFile;
+import com.microsoft.protection.data.ProtectionRequestFilter;
 import com.microsoft.protection.data.ProtectionRequestRepository;
+import com.microsoft.protection.data.ProtectionRequestRepository.IdOnly;
+import com.microsoft.protection.data.ProtectionRequestRepository.StoredFile;
 import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.data.model.ProtectionRequest.Priority;
+import com.microsoft.protection.data.model.ProtectionRequest.Status;
+import com.microsoft.protection.error.DuplicateProtectionRequestException;
+import com.microsoft.protection.error.ProtectionCapacityExceededException;
+import com.microsoft.protection.error.ProtectionFailedException;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import reactor.core.Disposable;
 
 @RestController
 @RequiredArgsConstructor
 @RequestMapping("/v1/protection")
 @Slf4j
 public class ProtectionRequestController {
-    private static final int LIMIT = 500;
+    static final String NDJSON_VALUE = "application/x-ndjson";
 
     private final ProtectionRequestRepository protectionRequestRepository;
 
@@ -48,13 +88,58 @@ public class ProtectionRequestController {
 
     private final AzureStorageRepository azureStorageRepository;
 
-    // TODO limit and filter by parameter
+    private final ObjectMapper halObjectMapper;
+
+    private final ProtectionServiceProperties properties;
+
+    private final ProtectionStatusEvents statusEvents;
+
+    /**
+     * One page of requests ordered by id. If the page is full a <i>next</i>
+     * link to the following page is returned in the {@link HttpHeaders#LINK}
+     * header.
+     */
     @GetMapping
-    @ResponseStatus(HttpStatus.OK)
-    public List<ProtectionRequestGet> getAllRequests() {
-        return new ResponseList<>(protectionRequestRepository.findAll(PageRequest.of(0, LIMIT)).stream()
-                .map(entity -> EntityConverter.toProtectionRequestGetWithSelfLink(entity, azureStorageRepository))
-                .collect(Collectors.toList()));
+    public ResponseEntity<List<ProtectionRequestGet>> getAllRequests(@Valid final ProtectionRequestFilter filter) {
+        final ControllerLinkBuilder base = linkTo(ProtectionRequestController.class);
+        final List<ProtectionRequest> page = protectionRequestRepository.findByFilter(filter);
+
+        final ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (page.size() == filter.getLimit()) {
+            final String next = ServletUriComponentsBuilder.fromCurrentRequest()
+                    .replaceQueryParam("after", page.get(page.size() - 1).getId()).toUriString();
+            response.header(HttpHeaders.LINK, new Link(next, Link.REL_NEXT).toString());
+        }
+
+        return response.body(new ResponseList<>(page.stream()
+                .map(entity -> EntityConverter.toProtectionRequestGetWithSelfLink(entity, azureStorageRepository, base))
+                .collect(Collectors.toList())));
+    }
+
+    /**
+     * Streams all matching requests as newline delimited HAL documents while
+     * they are read from the database, without page limit.
+     */
+    @GetMapping(produces = NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamAllRequests(@Valid final ProtectionRequestFilter filter) {
+        // resolved here, the body is written outside of the request thread
+        final ControllerLinkBuilder base = linkTo(ProtectionRequestController.class);
+
+        final StreamingResponseBody body = out -> {
+            try (CloseableIterator<ProtectionRequest> entities = protectionRequestRepository.streamByFilter(filter)) {
+                while (entities.hasNext()) {
+                    writeLine(out, EntityConverter.toProtectionRequestGetWithSelfLink(entities.next(),
+                            azureStorageRepository, base));
+                }
+            }
+        };
+
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON_VALUE)).body(body);
+    }
+
+    private void writeLine(final OutputStream out, final ProtectionRequestGet entity) throws IOException {
+        out.write(halObjectMapper.writeValueAsBytes(entity));
+        out.write('\n');
     }
 
     @PostMapping("/upload")
@@ -71,8 +156,8 @@ public class ProtectionRequestController {
         toCreate.setContentType(file.getContentType());
         toCreate.setSize(file.getSize());
 
-        final ProtectionRequest stored = protectionRequestRepository.save(toCreate);
-        mipHandler.protect(stored, file);
+        final ProtectionRequest stored = saveNew(toCreate);
+        dispatch(stored, () -> mipHandler.protect(stored, file));
 
         return EntityConverter.toProtectionRequestGetWithSelfLink(stored, azureStorageRepository);
     }
@@ -80,39 +165,374 @@ public class ProtectionRequestController {
     @PostMapping
     @ResponseStatus(HttpStatus.CREATED)
     public ProtectionRequestGet createRequest(@Valid @RequestBody final ProtectionRequestPost request) {
-        final ProtectionRequest toCreate = new ProtectionRequest();
-        toCreate.setCorrelationId(request.getCorrelationId());
-        toCreate.setRightsAsString(request.getRights());
-        toCreate.setUrl(request.getUrl());
-        toCreate.setUser(request.getUser());
-        toCreate.setFileName(request.getFileName());
-        toCreate.setContentType(request.getContentType());
-        toCreate.setSize(request.getSize());
-
-        final ProtectionRequest stored = protectionRequestRepository.save(toCreate);
-        mipHandler.protect(stored);
+        final ProtectionRequest stored = saveNew(toEntity(request));
+        dispatch(stored, () -> mipHandler.protect(stored));
 
         return EntityConverter.toProtectionRequestGetWithSelfLink(stored, azureStorageRepository);
     }
 
+    /**
+     * Creates a request in status {@link Status#AWAITING_UPLOAD} and returns a
+     * short-lived URL to PUT its file directly to the storage account, so large
+     * files do not pass through the service. The <i>url</i> of the request is
+     * ignored.
+     */
+    @PostMapping("/upload-session")
+    @ResponseStatus(HttpStatus.CREATED)
+    public ProtectionUploadSessionGet createUploadSession(@Valid @RequestBody final ProtectionRequestPost request) {
+        if (!StringUtils.hasLength(request.getFileName())) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "File name must not be empty");
+        }
+
+        final ProtectionRequest toCreate = toEntity(request);
+        toCreate.setUrl(null);
+        toCreate.setDirectUpload(true);
+        toCreate.setStatus(Status.AWAITING_UPLOAD);
+
+        return toDirectUploadSession(saveNew(toCreate));
+    }
+
+    private ProtectionUploadSessionGet toDirectUploadSession(final ProtectionRequest request) {
+        final Date expiresAt = new Date(System.currentTimeMillis()
+                + TimeUnit.MINUTES.toMillis(properties.getUploadSession().getValidityMinutes()));
+        return EntityConverter.toProtectionUploadSessionGetWithLinks(request,
+                azureStorageRepository.getUploadUri(request.getId(), request.getFileName(), expiresAt), expiresAt);
+    }
+
+    /**
+     * Creates a request in status {@link Status#AWAITING_UPLOAD} whose file is
+     * uploaded through the service in chunks of fixed size. Chunks can be
+     * sent in any order, in parallel and again after a failure; only the
+     * missing ones need to be sent after a dropped connection. The
+     * <i>fileName</i> and <i>size</i> of the request are required, its
+     * <i>url</i> is ignored.
+     */
+    @PostMapping("/chunked-upload")
+    @ResponseStatus(HttpStatus.CREATED)
+    public ProtectionUploadSessionGet createChunkedUpload(@Valid @RequestBody final ProtectionRequestPost request) {
+        if (!StringUtils.hasLength(request.getFileName()) || request.getSize() == null || request.getSize() < 1) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "File name and size must be given");
+        }
+
+        final ProtectionRequest toCreate = toEntity(request);
+        toCreate.setUrl(null);
+        toCreate.setChunkSize(properties.getUploadSession().getChunkSizeBytes());
+        toCreate.setStatus(Status.AWAITING_UPLOAD);
+
+        return EntityConverter.toChunkedUploadSessionGetWithLinks(saveNew(toCreate));
+    }
+
+    /**
+     * Current state of an upload session, i.e. the chunks that are missing or
+     * a new pre-signed URL.
+     */
+    @GetMapping(value = "/{id}/upload-session", produces = { MediaTypes.HAL_JSON_VALUE,
+            MediaType.APPLICATION_JSON_VALUE })
+    public ResponseEntity<ProtectionUploadSessionGet> getUploadSession(@PathVariable final String id) {
+        final ProtectionRequest request = protectionRequestRepository.findById(id).orElse(null);
+        if (request == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
+        }
+        verifyAwaitingUpload(request);
+
+        return ResponseEntity.ok(request.getChunkSize() != null
+                ? EntityConverter.toChunkedUploadSessionGetWithLinks(request)
+                : toDirectUploadSession(request));
+    }
+
+    /**
+     * Stores one chunk of a resumable upload. The chunk is only accepted if
+     * its base64 encoded MD5 matches the <code>Content-MD5</code> header, a
+     * rejected chunk leaves the one sent before in place.
+     */
+    @PutMapping("/{id}/chunks/{chunk}")
+    public ResponseEntity<Void> uploadChunk(@PathVariable final String id, @PathVariable final int chunk,
+            @RequestHeader("Content-MD5") final String contentMd5, final HttpServletRequest content)
+            throws IOException {
+        final ProtectionRequest request = protectionRequestRepository.findById(id).orElse(null);
+        if (request == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        verifyAwaitingUpload(request);
+        if (request.getChunkSize() == null) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Request is not a chunked upload");
+        }
+        if (chunk < 0 || chunk >= request.getChunkCount()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "Chunk must be between 0 and " + (request.getChunkCount() - 1));
+        }
+        final long expected = Math.min(request.getChunkSize(),
+                request.getSize() - (long) chunk * request.getChunkSize());
+        if (content.getContentLengthLong() != expected) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "Chunk " + chunk + " must have a content length of " + expected);
+        }
+
+        try {
+            mipHandler.writeChunk(request, chunk, content.getInputStream(), decodeMd5(contentMd5));
+        } catch (final ProtectionFailedException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+
+        if (!protectionRequestRepository.addReceivedChunk(id, chunk)) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Upload has been committed already");
+        }
+        return ResponseEntity.noContent().build();
+    }
+
+    private static byte[] decodeMd5(final String contentMd5) {
+        try {
+            return Base64.getDecoder().decode(contentMd5);
+        } catch (final IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Content-MD5 must be base64 encoded", e);
+        }
+    }
+
+    private static void verifyAwaitingUpload(final ProtectionRequest request) {
+        if (Status.AWAITING_UPLOAD != request.getStatus()) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Request is not awaiting an upload");
+        }
+    }
+
+    /**
+     * Confirms that the file of an upload session has been uploaded completely
+     * and starts its protection.
+     */
+    @PostMapping("/{id}/commit")
+    public ResponseEntity<ProtectionRequestGet> commitUpload(@PathVariable final String id) {
+        final ProtectionRequest request = protectionRequestRepository.findById(id).orElse(null);
+        if (request == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
+        }
+        verifyAwaitingUpload(request);
+
+        final IncomingFile uploaded;
+        if (request.getChunkSize() != null) {
+            final int received = request.getReceivedChunks() == null ? 0 : request.getReceivedChunks().size();
+            if (received < request.getChunkCount()) {
+                throw new ResponseStatusException(HttpStatus.CONFLICT,
+                        (request.getChunkCount() - received) + " chunks are missing");
+            }
+            uploaded = azureStorageRepository.commitIncomingChunks(id, request.getFileName(),
+                    request.getChunkCount());
+        } else {
+            uploaded = azureStorageRepository.getIncoming(id, request.getFileName())
+                    .orElseThrow(() -> new ResponseStatusException(HttpStatus.CONFLICT, "File has not been uploaded"));
+        }
+        if (request.getSize() != null && request.getSize() != uploaded.getSize()) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Provide file size " + request.getSize()
+                    + " does not match with uploaded file size " + uploaded.getSize());
+        }
+        request.setIncomingEtag(uploaded.getEtag());
+
+        request.setStatus(Status.PROCESSING);
+        final ProtectionRequest committed;
+        try {
+            committed = protectionRequestRepository.save(request);
+        } catch (final OptimisticLockingFailureException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Upload has been committed already", e);
+        }
+
+        try {
+            mipHandler.protectUploaded(committed);
+        } catch (final ProtectionCapacityExceededException e) {
+            // keep the upload, the client may commit again later
+            committed.setStatus(Status.AWAITING_UPLOAD);
+            protectionRequestRepository.save(committed);
+            throw e;
+        }
+
+        return ResponseEntity.status(HttpStatus.ACCEPTED)
+                .body(EntityConverter.toProtectionRequestGetWithSelfLink(committed, azureStorageRepository));
+    }
+
+    /**
+     * Stores all requests with one bulk insert and protects them in groups,
+     * see {@link ProtectionHandler#protect(List, List)}.
+     */
+    @PostMapping("/batch")
+    @ResponseStatus(HttpStatus.CREATED)
+    public ProtectionBatchGet createBatch(@Valid @RequestBody final ProtectionBatchPost batch) {
+        if (batch.getRequests().stream().anyMatch(request -> !StringUtils.hasLength(request.getUrl()))) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "URL must not be empty");
+        }
+
+        final String batchId = new ObjectId().toHexString();
+        final List<ProtectionRequest> stored = saveNewBatch(batchId,
+                batch.getRequests().stream().map(ProtectionRequestController::toEntity).collect(Collectors.toList()));
+        mipHandler.protect(stored, null);
+
+        return EntityConverter.toProtectionBatchGetWithLinks(batchId, countStatuses(stored));
+    }
+
+    @PostMapping("/batch/upload")
+    @ResponseStatus(HttpStatus.CREATED)
+    public ProtectionBatchGet createBatchWithUpload(@RequestParam("file") final List<MultipartFile> files,
+            @RequestParam(name = "rights", required = false) final String rights,
+            @RequestParam(name = "user") final String user) {
+        if (files.isEmpty() || files.size() > ProtectionBatchPost.MAX_REQUESTS) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "Between 1 and " + ProtectionBatchPost.MAX_REQUESTS + " files are supported");
+        }
+
+        final String batchId = new ObjectId().toHexString();
+        final List<ProtectionRequest> stored = saveNewBatch(batchId, files.stream().map(file -> {
+            final ProtectionRequest toCreate = new ProtectionRequest();
+            toCreate.setRightsAsString(rights);
+            toCreate.setUser(user);
+            toCreate.setFileName(file.getOriginalFilename());
+            toCreate.setContentType(file.getContentType());
+            toCreate.setSize(file.getSize());
+            return toCreate;
+        }).collect(Collectors.toList()));
+        mipHandler.protect(stored, files);
+
+        return EntityConverter.toProtectionBatchGetWithLinks(batchId, countStatuses(stored));
+    }
+
+    @GetMapping(value = "/batch/{batchId}", produces = { MediaTypes.HAL_JSON_VALUE, MediaType.APPLICATION_JSON_VALUE })
+    public ResponseEntity<ProtectionBatchGet> getBatch(@PathVariable final String batchId) {
+        final Map<Status, Long> counts = protectionRequestRepository.countStatusesOfBatch(batchId);
+        if (counts.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
+        }
+        return ResponseEntity.ok(EntityConverter.toProtectionBatchGetWithLinks(batchId, counts));
+    }
+
+    /**
+     * The version of the request is returned as {@link HttpHeaders#ETAG}, so
+     * clients can ask with {@link HttpHeaders#IF_NONE_MATCH} whether it has
+     * changed.
+     */
     @GetMapping(value = "/{id}", produces = { MediaTypes.HAL_JSON_VALUE, MediaType.APPLICATION_JSON_VALUE })
     public ResponseEntity<ProtectionRequestGet> getRequest(@PathVariable final String id) {
-        return protectionRequestRepository.findById(id).map(
-                entity -> ResponseEntity.ok(EntityConverter.toProtectionRequestGetWithSelfLink(entity, azureStorageRepository)))
+        final ControllerLinkBuilder base = linkTo(ProtectionRequestController.class);
+        return protectionRequestRepository.findById(id).map(entity -> toResponse(entity, base))
                 .orElse(ResponseEntity.status(HttpStatus.NOT_FOUND).body(null));
     }
 
+    /**
+     * Long-poll: answers as soon as the request differs from the version in
+     * {@link HttpHeaders#IF_NONE_MATCH}, or with
+     * {@link HttpStatus#NOT_MODIFIED} if it did not change within <i>wait</i>
+     * seconds. Requests in a final state are answered right away.
+     */
+    @GetMapping(value = "/{id}", params = "wait", produces = { MediaTypes.HAL_JSON_VALUE,
+            MediaType.APPLICATION_JSON_VALUE })
+    public DeferredResult<ResponseEntity<ProtectionRequestGet>> waitForChange(@PathVariable final String id,
+            @RequestParam("wait") final int waitSeconds,
+            @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false) final String ifNoneMatch) {
+        // resolved here, the result may be set outside of the request thread
+        final ControllerLinkBuilder base = linkTo(ProtectionRequestController.class);
+        final long timeout = TimeUnit.SECONDS
+                .toMillis(Math.min(Math.max(waitSeconds, 1), properties.getStatusEvents().getMaxWaitSeconds()));
+        final DeferredResult<ResponseEntity<ProtectionRequestGet>> result = new DeferredResult<>(timeout);
+
+        // subscribed before reading, so no change is missed
+        final Disposable changes = statusEvents.changesOf(id)
+                .subscribe(changed -> result.setResult(toResponse(changed, base)));
+        result.onCompletion(changes::dispose);
+
+        final Optional<ProtectionRequest> current;
+        try {
+            current = protectionRequestRepository.findById(id);
+        } catch (final RuntimeException e) {
+            changes.dispose();
+            throw e;
+        }
+        if (!current.isPresent()) {
+            result.setResult(ResponseEntity.status(HttpStatus.NOT_FOUND).body(null));
+            return result;
+        }
+
+        // a response with the same ETag ends up as 304
+        final ResponseEntity<ProtectionRequestGet> response = toResponse(current.get(), base);
+        result.onTimeout(() -> result.setResult(response));
+        if (!response.getHeaders().getETag().equals(ifNoneMatch) || current.get().getStatus().isFinal()) {
+            result.setResult(response);
+        }
+        return result;
+    }
+
+    private ResponseEntity<ProtectionRequestGet> toResponse(final ProtectionRequest entity,
+            final ControllerLinkBuilder base) {
+        return ResponseEntity.ok().eTag(String.valueOf(entity.getVersion()))
+                .body(EntityConverter.toProtectionRequestGetWithSelfLink(entity, azureStorageRepository, base));
+    }
+
     @DeleteMapping("/{id}")
     @ResponseStatus(HttpStatus.OK)
     public void deleteRequest(@PathVariable final String id) {
 
-        final ProtectionRequest entity = protectionRequestRepository.findById(id).orElseThrow();
+        final StoredFile stored = protectionRequestRepository.findFileById(id).orElseThrow();
 
-        azureStorageRepository.delete(id, entity.getFileName());
+        if (Status.AWAITING_UPLOAD != stored.getStatus()) {
+            azureStorageRepository.delete(id, stored.getFileName());
+        }
+        if (stored.isIncomingUpload()) {
+            azureStorageRepository.deleteIncoming(id, stored.getFileName());
+        }
 
         // TODO miphandler -> invalidate
-        protectionRequestRepository.delete(entity);
+        protectionRequestRepository.deleteById(id);
+
+    }
+
+    static ProtectionRequest toEntity(final ProtectionRequestPost request) {
+        final ProtectionRequest toCreate = new ProtectionRequest();
+        toCreate.setCorrelationId(request.getCorrelationId());
+        toCreate.setRightsAsString(request.getRights());
+        toCreate.setUrl(request.getUrl());
+        toCreate.setUser(request.getUser());
+        toCreate.setFileName(request.getFileName());
+        toCreate.setContentType(request.getContentType());
+        toCreate.setSize(request.getSize());
+        return toCreate;
+    }
+
+    private static Map<Status, Long> countStatuses(final List<ProtectionRequest> requests) {
+        return requests.stream().collect(Collectors.groupingBy(ProtectionRequest::getStatus,
+                () -> new EnumMap<>(Status.class), Collectors.counting()));
+    }
+
+    private List<ProtectionRequest> saveNewBatch(final String batchId, final List<ProtectionRequest> toCreate) {
+        toCreate.forEach(request -> {
+            request.setBatchId(batchId);
+            // nobody waits for a single one of them
+            request.setPriority(Priority.BULK);
+        });
+        try {
+            // new entities only, so this is one insertMany
+            final List<ProtectionRequest> stored = new ArrayList<>(toCreate.size());
+            protectionRequestRepository.saveAll(toCreate).forEach(stored::add);
+            return stored;
+        } catch (final DuplicateKeyException e) {
+            // the insert is ordered and stops at the duplicate
+            protectionRequestRepository.deleteByBatchId(batchId);
+            throw new DuplicateProtectionRequestException("Batch contains a correlation id that exists already",
+                    null, e);
+        }
+    }
+
+    private ProtectionRequest saveNew(final ProtectionRequest toCreate) {
+        try {
+            return protectionRequestRepository.save(toCreate);
+        } catch (final DuplicateKeyException e) {
+            final String existingId = protectionRequestRepository.findIdByCorrelationId(toCreate.getCorrelationId())
+                    .map(IdOnly::getId).orElse(null);
+            throw new DuplicateProtectionRequestException(
+                    "Request with correlation id " + toCreate.getCorrelationId() + " exists already", existingId, e);
+        }
+    }
 
+    private void dispatch(final ProtectionRequest stored, final Runnable protect) {
+        try {
+            protect.run();
+        } catch (final ProtectionCapacityExceededException e) {
+            // not accepted, so there is nothing to keep track of
+            protectionRequestRepository.delete(stored);
+            throw e;
+        }
     }
 
 }
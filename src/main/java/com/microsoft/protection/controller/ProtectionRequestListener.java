@@ -0,0 +1,206 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.cloud.stream.annotation.StreamListener;
+import org.springframework.cloud.stream.messaging.Sink;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.messaging.Message;
+import org.springframework.util.StringUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.controller.model.ProtectionRequestPost;
+import com.microsoft.protection.data.ProtectionRequestRepository;
+import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.data.model.ProtectionRequest.Priority;
+import com.microsoft.protection.error.ProtectionCapacityExceededException;
+import com.rabbitmq.client.Channel;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Accepts {@link ProtectionRequestPost} messages from the broker as an
+ * alternative to {@link ProtectionRequestController#createRequest}. A message
+ * is only acknowledged once its request reached a final state, so the prefetch
+ * of the binding bounds the jobs in flight and unfinished jobs are redelivered
+ * if the instance goes away. Malformed messages are rejected to the dead letter
+ * queue.
+ */
+@Slf4j
+public class ProtectionRequestListener {
+
+    private final ProtectionRequestRepository protectionRequestRepository;
+    private final ProtectionHandler mipHandler;
+    private final ProtectionStatusEvents statusEvents;
+    private final ObjectMapper objectMapper;
+    private final Duration pollInterval;
+
+    public ProtectionRequestListener(final ProtectionRequestRepository protectionRequestRepository,
+            final ProtectionHandler mipHandler, final ProtectionStatusEvents statusEvents,
+            final ObjectMapper objectMapper, final ProtectionServiceProperties properties) {
+        this.protectionRequestRepository = protectionRequestRepository;
+        this.mipHandler = mipHandler;
+        this.statusEvents = statusEvents;
+        this.objectMapper = objectMapper;
+        this.pollInterval = Duration.ofSeconds(properties.getStatusEvents().getListenerPollSeconds());
+    }
+
+    @StreamListener(Sink.INPUT)
+    public void onRequest(final Message<byte[]> message) {
+        final Delivery delivery = new Delivery(message.getHeaders().get(AmqpHeaders.CHANNEL, Channel.class),
+                message.getHeaders().get(AmqpHeaders.DELIVERY_TAG, Long.class));
+
+        final ProtectionRequest toCreate;
+        try {
+            toCreate = toEntity(objectMapper.readValue(message.getPayload(), ProtectionRequestPost.class));
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Rejecting malformed protection request", e);
+            delivery.reject();
+            return;
+        }
+        toCreate.setPriority(Priority.BULK);
+        if (toCreate.getCorrelationId() == null) {
+            // makes redeliveries idempotent
+            toCreate.setCorrelationId(message.getHeaders().get(AmqpHeaders.MESSAGE_ID, String.class));
+        }
+
+        final ProtectionRequest stored;
+        try {
+            stored = protectionRequestRepository.save(toCreate);
+        } catch (final DuplicateKeyException e) {
+            redelivered(toCreate.getCorrelationId(), delivery);
+            return;
+        } catch (final RuntimeException e) {
+            log.error("Failed to store protection request, requeueing it", e);
+            delivery.requeue();
+            return;
+        }
+
+        final Disposable acknowledgement = acknowledgeOnceFinal(stored.getId(), delivery);
+        try {
+            submit(stored);
+        } catch (final InterruptedException e) {
+            log.warn("Interrupted!", e);
+            // Restore interrupted state...
+            Thread.currentThread().interrupt();
+            acknowledgement.dispose();
+            protectionRequestRepository.delete(stored);
+            delivery.requeue();
+        } catch (final RuntimeException e) {
+            log.error("Failed to submit protection request, rejecting it", e);
+            // must not acknowledge the rejected delivery later on
+            acknowledgement.dispose();
+            protectionRequestRepository.delete(stored);
+            delivery.reject();
+        }
+    }
+
+    private static ProtectionRequest toEntity(final ProtectionRequestPost request) {
+        if (!StringUtils.hasLength(request.getUrl()) || !StringUtils.hasLength(request.getUser())
+                || !StringUtils.hasLength(request.getFileName())) {
+            throw new IllegalArgumentException("URL, user and file name must not be empty");
+        }
+        return ProtectionRequestController.toEntity(request);
+    }
+
+    private void redelivered(final String correlationId, final Delivery delivery) {
+        final Optional<ProtectionRequest> existing = protectionRequestRepository.findByCorrelationId(correlationId);
+        if (existing.isPresent()) {
+            // may still be processed, e.g. resumed by another worker
+            acknowledgeOnceFinal(existing.get().getId(), delivery);
+        } else {
+            delivery.requeue();
+        }
+    }
+
+    /**
+     * Acknowledges on the status event of this instance or, as the request may
+     * be finished by another one, once it is read from Mongo in a final state
+     * or not at all anymore. The events are subscribed before the first read,
+     * so a change in between is not missed.
+     */
+    private Disposable acknowledgeOnceFinal(final String id, final Delivery delivery) {
+        final Flux<Boolean> events = statusEvents.changesOf(id).map(request -> request.getStatus().isFinal());
+        final Flux<Boolean> polls = Flux.interval(Duration.ZERO, pollInterval).onBackpressureDrop()
+                .concatMap(tick -> Mono.fromCallable(() -> protectionRequestRepository.findById(id)
+                        .map(request -> request.getStatus().isFinal()).orElse(true))
+                        .subscribeOn(Schedulers.elastic())
+                        .onErrorResume(e -> {
+                            log.warn("Failed to read status of {}", id, e);
+                            return Mono.just(false);
+                        }));
+        return Flux.merge(events, polls).filter(Boolean::booleanValue).next()
+                .subscribe(isFinal -> delivery.ack());
+    }
+
+    /**
+     * Waits for capacity instead of rejecting, the listener threads are the
+     * backpressure towards the broker.
+     */
+    private void submit(final ProtectionRequest request) throws InterruptedException {
+        while (true) {
+            try {
+                mipHandler.protect(request);
+                return;
+            } catch (final ProtectionCapacityExceededException e) {
+                log.debug("No capacity for {}, retrying in {}s", request.getId(), e.getRetryAfterSeconds());
+                TimeUnit.SECONDS.sleep(e.getRetryAfterSeconds());
+            }
+        }
+    }
+
+    /**
+     * Manual acknowledgement of one message, nothing to do if the binding
+     * acknowledges automatically.
+     */
+    @RequiredArgsConstructor
+    private static class Delivery {
+        private final Channel channel;
+        private final Long deliveryTag;
+
+        void ack() {
+            if (channel != null) {
+                try {
+                    channel.basicAck(deliveryTag, false);
+                } catch (final IOException e) {
+                    log.error("Failed to acknowledge message {}, it will be redelivered", deliveryTag, e);
+                }
+            }
+        }
+
+        void requeue() {
+            if (channel != null) {
+                try {
+                    channel.basicNack(deliveryTag, false, true);
+                } catch (final IOException e) {
+                    log.error("Failed to requeue message {}", deliveryTag, e);
+                }
+            }
+        }
+
+        void reject() {
+            if (channel != null) {
+                try {
+                    // dead lettered as the queue is bound to a DLQ
+                    channel.basicReject(deliveryTag, false);
+                } catch (final IOException e) {
+                    log.error("Failed to reject message {}", deliveryTag, e);
+                }
+            }
+        }
+    }
+}
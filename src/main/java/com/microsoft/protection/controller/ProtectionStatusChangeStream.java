@@ -0,0 +1,44 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import java.time.Duration;
+
+import org.springframework.data.mongodb.core.ChangeStreamEvent;
+import org.springframework.data.mongodb.core.ChangeStreamOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+
+import com.microsoft.protection.data.model.ProtectionRequest;
+
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.Disposable;
+
+/**
+ * Feeds changes of requests that have been saved by other instances into the
+ * {@link ProtectionStatusEvents}, so clients can wait on any instance. Changes
+ * of this instance arrive twice, subscribers only care about the first one.
+ */
+@Slf4j
+public class ProtectionStatusChangeStream implements AutoCloseable {
+    private static final Duration FIRST_BACKOFF = Duration.ofSeconds(1);
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(30);
+
+    private final Disposable subscription;
+
+    public ProtectionStatusChangeStream(final ReactiveMongoOperations reactiveMongoOperations,
+            final ProtectionStatusEvents statusEvents) {
+        subscription = reactiveMongoOperations
+                .changeStream(reactiveMongoOperations.getCollectionName(ProtectionRequest.class),
+                        ChangeStreamOptions.builder().returnFullDocumentOnUpdate().build(), ProtectionRequest.class)
+                .filter(event -> event.getBody() != null).map(ChangeStreamEvent::getBody)
+                .doOnError(e -> log.warn("Mongo change stream failed, reconnecting", e))
+                .retryBackoff(Long.MAX_VALUE, FIRST_BACKOFF, MAX_BACKOFF).subscribe(statusEvents::publish);
+    }
+
+    @Override
+    public void close() {
+        subscription.dispose();
+    }
+}
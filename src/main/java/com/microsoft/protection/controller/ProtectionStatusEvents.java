@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import com.microsoft.protection.data.model.ProtectionRequest;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+
+/**
+ * In-process bus of status changes of protection requests. Only subscribers
+ * of a request are kept, a change nobody is waiting for costs a map lookup.
+ */
+public class ProtectionStatusEvents {
+
+    private final ConcurrentMap<String, Set<FluxSink<ProtectionRequest>>> subscribers = new ConcurrentHashMap<>();
+
+    /**
+     * @param request
+     *            in its new state, as saved
+     */
+    public void publish(final ProtectionRequest request) {
+        final Set<FluxSink<ProtectionRequest>> sinks = subscribers.get(request.getId());
+        if (sinks != null) {
+            sinks.forEach(sink -> sink.next(request));
+        }
+    }
+
+    /**
+     * @param id
+     *            of the request
+     * @return changes of the request from subscription on, slow subscribers
+     *         only get the latest one
+     */
+    public Flux<ProtectionRequest> changesOf(final String id) {
+        return Flux.create(sink -> {
+            subscribers.compute(id, (key, sinks) -> {
+                final Set<FluxSink<ProtectionRequest>> added = sinks == null ? new CopyOnWriteArraySet<>() : sinks;
+                added.add(sink);
+                return added;
+            });
+            sink.onDispose(() -> subscribers.computeIfPresent(id, (key, sinks) -> {
+                sinks.remove(sink);
+                return sinks.isEmpty() ? null : sinks;
+            }));
+        }, FluxSink.OverflowStrategy.LATEST);
+    }
+
+    /**
+     * @return number of requests somebody is waiting for
+     */
+    public int getSubscribedRequests() {
+        return subscribers.size();
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.data.model.ProtectionRequest.Status;
+
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import brave.propagation.B3SingleFormat;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Latency and size of the operations a protection request goes through,
+ * recorded as metrics and as spans of the current trace, and the number of
+ * requests by final status. Percentile histograms are enabled per
+ * configuration, see <code>management.metrics.distribution</code>.
+ */
+public class ProtectionTelemetry {
+    static final String OPERATION_TIMER = "protection.operation";
+    static final String OPERATION_SIZE = "protection.operation.size";
+    static final String REQUESTS = "protection.requests";
+
+    public enum Operation {
+        DOWNLOAD("download", "source", Span.Kind.CLIENT),
+
+        UPLOAD_COPY("upload.copy", null, null),
+
+        AAD_TOKEN("aad.token", "aad", Span.Kind.CLIENT),
+
+        MIP_PROTECT("mip.protect", "mip-sdk", Span.Kind.CLIENT),
+
+        STORAGE_UPLOAD("storage.upload", "azure-storage", Span.Kind.CLIENT),
+
+        MONGO_SAVE("mongo.save", "mongodb", Span.Kind.CLIENT),
+
+        PUBLISH("publish", "rabbitmq", Span.Kind.PRODUCER);
+
+        private final String tag;
+        private final String remoteService;
+        private final Span.Kind kind;
+
+        Operation(final String tag, final String remoteService, final Span.Kind kind) {
+            this.tag = tag;
+            this.remoteService = remoteService;
+            this.kind = kind;
+        }
+    }
+
+    private final MeterRegistry registry;
+    private final Tracing tracing;
+    private final Map<Operation, Timer> timers = new EnumMap<>(Operation.class);
+    private final Map<Operation, DistributionSummary> sizes = new EnumMap<>(Operation.class);
+    private final Map<Status, Counter> requests = new EnumMap<>(Status.class);
+
+    public ProtectionTelemetry(final MeterRegistry registry, final Tracing tracing) {
+        this.registry = registry;
+        this.tracing = tracing;
+
+        for (final Operation operation : Operation.values()) {
+            timers.put(operation, Timer.builder(OPERATION_TIMER).tag("operation", operation.tag)
+                    .description("Latency of the operations of a protection request").register(registry));
+            sizes.put(operation, DistributionSummary.builder(OPERATION_SIZE).tag("operation", operation.tag)
+                    .baseUnit("bytes").description("Bytes processed by the operations of a protection request")
+                    .register(registry));
+        }
+
+        for (final Status status : Status.values()) {
+            requests.put(status, Counter.builder(REQUESTS).tag("status", status.name())
+                    .description("Protection requests by final status").register(registry));
+        }
+    }
+
+    /**
+     * Starts an operation as child of the current span.
+     *
+     * @param operation
+     *            to measure
+     * @return measurement to close once the operation is done
+     */
+    public Measurement start(final Operation operation) {
+        return start(operation, tracing.tracer().nextSpan());
+    }
+
+    /**
+     * Starts an operation as child of a trace that has been recorded earlier,
+     * e.g. by another thread.
+     *
+     * @param operation
+     *            to measure
+     * @param parent
+     *            as returned by {@link #currentTrace()}, may be
+     *            <code>null</code>
+     * @return measurement to close once the operation is done
+     */
+    public Measurement start(final Operation operation, final String parent) {
+        final TraceContextOrSamplingFlags extracted = parent == null ? null
+                : B3SingleFormat.parseB3SingleFormat(parent);
+        return start(operation,
+                extracted == null ? tracing.tracer().newTrace() : tracing.tracer().nextSpan(extracted));
+    }
+
+    private Measurement start(final Operation operation, final Span span) {
+        span.name(operation.tag);
+        if (operation.kind != null) {
+            span.kind(operation.kind).remoteServiceName(operation.remoteService);
+        }
+        span.start();
+        return new Measurement(operation, Timer.start(registry), span, tracing.tracer().withSpanInScope(span));
+    }
+
+    /**
+     * @return current trace context to continue later, <code>null</code> if
+     *         there is none
+     */
+    public String currentTrace() {
+        final TraceContext context = tracing.currentTraceContext().get();
+        return context == null ? null : B3SingleFormat.writeB3SingleFormat(context);
+    }
+
+    /**
+     * Adds the current trace context to an outgoing call.
+     *
+     * @param carrier
+     *            of the call, e.g. connection or message
+     * @param setter
+     *            of the carrier's headers
+     */
+    public <C> void inject(final C carrier, final Propagation.Setter<C, String> setter) {
+        final TraceContext context = tracing.currentTraceContext().get();
+        if (context != null) {
+            tracing.propagation().injector(setter).inject(context, carrier);
+        }
+    }
+
+    /**
+     * Makes the request identifiable on the current span.
+     *
+     * @param request
+     *            processed as part of the span
+     */
+    public void tag(final ProtectionRequest request) {
+        final Span span = tracing.tracer().currentSpan();
+        if (span != null) {
+            span.tag("protection.id", String.valueOf(request.getId()));
+            if (request.getCorrelationId() != null) {
+                span.tag("protection.correlation-id", request.getCorrelationId());
+            }
+        }
+    }
+
+    /**
+     * @param status
+     *            the request ended up in
+     */
+    public void completed(final Status status) {
+        requests.get(status).increment();
+    }
+
+    /**
+     * Timer and span of one operation, the span is the current one until the
+     * measurement is closed.
+     */
+    public final class Measurement implements AutoCloseable {
+        private final Operation operation;
+        private final Timer.Sample sample;
+        private final Span span;
+        private final Tracer.SpanInScope scope;
+        private long bytes = -1;
+
+        private Measurement(final Operation operation, final Timer.Sample sample, final Span span,
+                final Tracer.SpanInScope scope) {
+            this.operation = operation;
+            this.sample = sample;
+            this.span = span;
+            this.scope = scope;
+        }
+
+        /**
+         * @param bytes
+         *            processed by the operation
+         */
+        public void bytes(final long bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * @param failure
+         *            of the operation
+         */
+        public void failed(final Throwable failure) {
+            span.error(failure);
+        }
+
+        @Override
+        public void close() {
+            scope.close();
+            if (bytes >= 0) {
+                sizes.get(operation).record(bytes);
+                span.tag("protection.bytes", String.valueOf(bytes));
+            }
+            span.finish();
+            sample.stop(timers.get(operation));
+        }
+    }
+}
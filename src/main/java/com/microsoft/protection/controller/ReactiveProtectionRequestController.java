@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import static org.springframework.hateoas.mvc.ControllerLinkBuilder.linkTo;
+
+import javax.validation.Valid;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.hateoas.MediaTypes;
+import org.springframework.hateoas.mvc.ControllerLinkBuilder;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.microsoft.protection.controller.model.ProtectionRequestGet;
+import com.microsoft.protection.controller.model.ProtectionRequestPost;
+import com.microsoft.protection.data.AzureStorageRepository;
+import com.microsoft.protection.data.ProtectionRequestFilter;
+import com.microsoft.protection.data.ReactiveProtectionRequestRepository;
+import com.microsoft.protection.data.model.BaseEntity;
+import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.data.model.ProtectionRequest.Status;
+import com.microsoft.protection.error.DuplicateProtectionRequestException;
+import com.microsoft.protection.error.ProtectionCapacityExceededException;
+
+import lombok.RequiredArgsConstructor;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Non-blocking variant of the {@link ProtectionRequestController}: the
+ * request thread is released while waiting for the database, so many slow
+ * clients do not occupy the servlet container's threads. Calls that block,
+ * i.e. admission of jobs and Azure Storage, run on an elastic scheduler.
+ * Links are resolved on the request thread, the callbacks run outside of it.
+ */
+@RestController
+@RequiredArgsConstructor
+@RequestMapping("/v1/reactive/protection")
+public class ReactiveProtectionRequestController {
+
+    private final ReactiveProtectionRequestRepository protectionRequestRepository;
+
+    private final ProtectionHandler mipHandler;
+
+    private final AzureStorageRepository azureStorageRepository;
+
+    private final ProtectionStatusEvents statusEvents;
+
+    @GetMapping
+    public Flux<ProtectionRequestGet> getAllRequests(@Valid final ProtectionRequestFilter filter) {
+        final ControllerLinkBuilder base = linkTo(ReactiveProtectionRequestController.class);
+
+        return protectionRequestRepository.findByFilter(filter).map(
+                entity -> EntityConverter.toProtectionRequestGetWithSelfLink(entity, azureStorageRepository, base));
+    }
+
+    @PostMapping
+    public Mono<ResponseEntity<ProtectionRequestGet>> createRequest(
+            @Valid @RequestBody final ProtectionRequestPost request) {
+        final ControllerLinkBuilder base = linkTo(ReactiveProtectionRequestController.class);
+
+        return protectionRequestRepository.save(ProtectionRequestController.toEntity(request))
+                .onErrorResume(DuplicateKeyException.class, e -> duplicate(request.getCorrelationId(), e))
+                .flatMap(stored -> Mono.fromRunnable(() -> mipHandler.protect(stored))
+                        .subscribeOn(Schedulers.elastic())
+                        // not accepted, so there is nothing to keep track of
+                        .onErrorResume(ProtectionCapacityExceededException.class,
+                                e -> protectionRequestRepository.delete(stored).then(Mono.error(e)))
+                        .thenReturn(stored))
+                .map(stored -> ResponseEntity.status(HttpStatus.CREATED).body(
+                        EntityConverter.toProtectionRequestGetWithSelfLink(stored, azureStorageRepository, base)));
+    }
+
+    private Mono<ProtectionRequest> duplicate(final String correlationId, final DuplicateKeyException e) {
+        return protectionRequestRepository.findByCorrelationId(correlationId).map(BaseEntity::getId)
+                .map(existingId -> new DuplicateProtectionRequestException(
+                        "Request with correlation id " + correlationId + " exists already", existingId, e))
+                .defaultIfEmpty(new DuplicateProtectionRequestException(
+                        "Request with correlation id " + correlationId + " exists already", null, e))
+                .flatMap(error -> Mono.<ProtectionRequest>error(error));
+    }
+
+    @GetMapping(value = "/{id}", produces = { MediaTypes.HAL_JSON_VALUE, MediaType.APPLICATION_JSON_VALUE })
+    public Mono<ResponseEntity<ProtectionRequestGet>> getRequest(@PathVariable final String id) {
+        final ControllerLinkBuilder base = linkTo(ReactiveProtectionRequestController.class);
+
+        return protectionRequestRepository.findById(id)
+                .map(entity -> ResponseEntity
+                        .ok(EntityConverter.toProtectionRequestGetWithSelfLink(entity, azureStorageRepository, base)))
+                .defaultIfEmpty(ResponseEntity.status(HttpStatus.NOT_FOUND).body(null));
+    }
+
+    /**
+     * Current state of the request followed by its status changes, until it
+     * reaches a final state. The version of the request is the event id.
+     */
+    @GetMapping(value = "/{id}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<ProtectionRequestGet>> streamStatus(@PathVariable final String id) {
+        final ControllerLinkBuilder base = linkTo(ReactiveProtectionRequestController.class);
+
+        // subscribed to the changes before reading, so none is missed
+        return Flux.merge(statusEvents.changesOf(id),
+                protectionRequestRepository.findById(id)
+                        .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND))))
+                .takeUntil(entity -> entity.getStatus().isFinal())
+                .map(entity -> ServerSentEvent
+                        .builder(EntityConverter.toProtectionRequestGetWithSelfLink(entity, azureStorageRepository,
+                                base))
+                        .id(String.valueOf(entity.getVersion())).event(entity.getStatus().toString()).build());
+    }
+
+    @DeleteMapping("/{id}")
+    public Mono<ResponseEntity<Void>> deleteRequest(@PathVariable final String id) {
+        return protectionRequestRepository.findById(id)
+                .publishOn(Schedulers.elastic())
+                .doOnNext(stored -> {
+                    if (Status.AWAITING_UPLOAD != stored.getStatus()) {
+                        azureStorageRepository.delete(id, stored.getFileName());
+                    }
+                    if (stored.isIncomingUpload()) {
+                        azureStorageRepository.deleteIncoming(id, stored.getFileName());
+                    }
+                })
+                .flatMap(stored -> protectionRequestRepository.delete(stored)
+                        .thenReturn(ResponseEntity.ok().<Void>build()))
+                .defaultIfEmpty(ResponseEntity.notFound().build());
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import java.util.Date;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.data.AzureStorageRepository;
+import com.microsoft.protection.data.ProtectionRequestRepository;
+import com.microsoft.protection.data.model.ProtectionRequest;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Removes upload sessions that have not been committed within
+ * {@link ProtectionServiceProperties.UploadSession#getAbandonedAfterMinutes()}
+ * together with the file uploaded to the incoming container. Chunks that have
+ * only been staged are dropped by Azure Storage itself.
+ */
+@Slf4j
+public class UploadSessionSweeper implements AutoCloseable {
+
+    private final ProtectionRequestRepository protectionRequestRepository;
+    private final AzureStorageRepository azureStorageRepository;
+    private final long abandonedAfterMillis;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("upload-sweeper-%d").setDaemon(true).build());
+
+    public UploadSessionSweeper(final ProtectionRequestRepository protectionRequestRepository,
+            final AzureStorageRepository azureStorageRepository, final ProtectionServiceProperties properties) {
+        this.protectionRequestRepository = protectionRequestRepository;
+        this.azureStorageRepository = azureStorageRepository;
+
+        final ProtectionServiceProperties.UploadSession uploadSession = properties.getUploadSession();
+        this.abandonedAfterMillis = TimeUnit.MINUTES.toMillis(uploadSession.getAbandonedAfterMinutes());
+        executor.scheduleWithFixedDelay(this::sweep, uploadSession.getSweepMinutes(), uploadSession.getSweepMinutes(),
+                TimeUnit.MINUTES);
+    }
+
+    void sweep() {
+        try {
+            final Date createdBefore = new Date(System.currentTimeMillis() - abandonedAfterMillis);
+            Optional<ProtectionRequest> abandoned;
+            while ((abandoned = protectionRequestRepository.removeAbandonedUpload(createdBefore)).isPresent()) {
+                discard(abandoned.get());
+            }
+        } catch (final RuntimeException e) {
+            log.error("Failed to sweep abandoned upload sessions", e);
+        }
+    }
+
+    private void discard(final ProtectionRequest request) {
+        log.info("Removing upload session {} that has not been committed", request.getId());
+        try {
+            azureStorageRepository.deleteIncoming(request.getId(), request.getFileName());
+        } catch (final RuntimeException e) {
+            log.warn("Failed to remove upload of {}", request.getId(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller.model;
+
+import java.util.Map;
+
+import org.springframework.hateoas.ResourceSupport;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Aggregate status of a batch: {@link #getStatus()} is
+ * <code>PROCESSING</code> as long as one request is, <code>COMPLETE</code>
+ * if all requests are and <code>ERROR</code> otherwise.
+ */
+@AllArgsConstructor
+@NoArgsConstructor
+@Setter
+@Getter
+@JsonInclude(Include.NON_NULL)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ProtectionBatchGet extends ResourceSupport {
+
+    @JsonProperty(value = "id")
+    private String batchId;
+
+    @JsonProperty
+    private String status;
+
+    @JsonProperty
+    private long total;
+
+    @JsonProperty
+    private Map<String, Long> statusCounts;
+}
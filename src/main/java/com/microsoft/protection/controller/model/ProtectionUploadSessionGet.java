@@ -0,0 +1,50 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller.model;
+
+import java.util.Date;
+import java.util.List;
+
+import org.springframework.hateoas.ResourceSupport;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Where to PUT the source file of a request to: either a pre-signed URL valid
+ * until {@link #getExpiresAt()}, or the base URL of the chunks of a resumable
+ * upload, addressed by their index. The request is protected once the upload
+ * is confirmed by a POST to the <i>commit</i> link.
+ */
+@AllArgsConstructor
+@NoArgsConstructor
+@Setter
+@Getter
+@JsonInclude(Include.NON_NULL)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ProtectionUploadSessionGet extends ResourceSupport {
+
+    @JsonProperty(value = "id")
+    private String requestId;
+
+    @JsonProperty
+    private String uploadUrl;
+
+    @JsonProperty
+    private Date expiresAt;
+
+    @JsonProperty
+    private Integer chunkSize;
+
+    @JsonProperty
+    private List<Integer> missingChunks;
+}
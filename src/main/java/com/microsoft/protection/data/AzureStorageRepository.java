@@ -6,81 +6,354 @@ package com.microsoft.protection.data;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
+import com.microsoft.azure.storage.AccessCondition;
 import com.microsoft.azure.storage.CloudStorageAccount;
 import com.microsoft.azure.storage.OperationContext;
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.blob.BlobContainerPublicAccessType;
 import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.BlockEntry;
 import com.microsoft.azure.storage.blob.CloudBlobClient;
 import com.microsoft.azure.storage.blob.CloudBlobContainer;
 import com.microsoft.azure.storage.blob.CloudBlobDirectory;
 import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.CopyStatus;
+import com.microsoft.azure.storage.blob.SharedAccessBlobPermissions;
+import com.microsoft.azure.storage.blob.SharedAccessBlobPolicy;
 import com.microsoft.protection.ProtectionServiceProperties;
 import com.microsoft.protection.error.FileStorageFailedException;
 
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class AzureStorageRepository {
     // TODO handle valid until by means of auto delete entry
 
-    private final CloudBlobClient blobClient;
+    private static final long COPY_POLL_MILLISECONDS = 200;
+
     private final ProtectionServiceProperties properties;
+    private final BlockUploader blockUploader;
+    private final CloudBlobContainer container;
+    private final CloudBlobContainer incoming;
+    private volatile boolean provisioned;
 
     public AzureStorageRepository(final CloudStorageAccount storageAccount,
-            final ProtectionServiceProperties properties) {
-        this.blobClient = storageAccount.createCloudBlobClient();
+            final ProtectionServiceProperties properties, final BlockUploader blockUploader) {
+        final CloudBlobClient blobClient = storageAccount.createCloudBlobClient();
         this.properties = properties;
-    }
-
-    private CloudBlobContainer getContainer() {
+        this.blockUploader = blockUploader;
         try {
-            final CloudBlobContainer container = blobClient.getContainerReference(properties.getStorageContainerName());
-            container.createIfNotExists(BlobContainerPublicAccessType.CONTAINER, new BlobRequestOptions(),
-                    new OperationContext());
-            return container;
+            // local operation, does not talk to Azure Storage
+            this.container = blobClient.getContainerReference(properties.getStorageContainerName());
+            this.incoming = blobClient
+                    .getContainerReference(properties.getUploadSession().getIncomingContainerName());
         } catch (final StorageException | URISyntaxException e) {
             throw new FileStorageFailedException("Failed to retrieve container", e);
         }
+        // containers are provisioned on first use, so that the service starts
+        // even if Azure Storage is not reachable
+    }
+
+    /**
+     * For stand-ins that keep the files elsewhere, e.g. on the local file
+     * system during load tests. They have to override all public operations.
+     *
+     * @param properties
+     *            of the service
+     */
+    protected AzureStorageRepository(final ProtectionServiceProperties properties) {
+        this.properties = properties;
+        this.blockUploader = null;
+        this.container = null;
+        this.incoming = null;
+        this.provisioned = true;
+    }
+
+    /**
+     * Creates the containers on Azure Storage on first use, retried on the
+     * next call that needs them if it fails. Only the container of protected
+     * files is public.
+     */
+    private void provision() {
+        if (provisioned) {
+            return;
+        }
 
+        synchronized (this) {
+            if (provisioned) {
+                return;
+            }
+            try {
+                container.createIfNotExists(BlobContainerPublicAccessType.CONTAINER, new BlobRequestOptions(),
+                        new OperationContext());
+                incoming.createIfNotExists(BlobContainerPublicAccessType.OFF, new BlobRequestOptions(),
+                        new OperationContext());
+            } catch (final StorageException e) {
+                throw new FileStorageFailedException("Failed to create container", e);
+            }
+            provisioned = true;
+        }
     }
 
     public void store(final File file, final String contentType, final String id) {
+        provision();
 
         final CloudBlockBlob blob = getBlob(id, file.getName());
 
         log.info("Storing file {} with length {} to Azure Storage container {}", id, file.length(),
                 properties.getStorageContainerName());
 
+        // Creating blob only if it does not exist yet
+        if (!blockUploader.upload(blob, file.toPath(), contentType)) {
+            log.warn("Artifact {} already exists on Azure Storage container {}, don't need to upload twice", id,
+                    properties.getStorageContainerName());
+            return;
+        }
+
+        log.debug("Artifact {} stored on Azure Storage c server side Etag {}", id, blob.getProperties().getEtag());
+    }
+
+    /**
+     * Server side copy of a stored file to another request. A copy that takes
+     * longer than {@link ProtectionServiceProperties.Dedup#getCopyTimeoutSeconds()}
+     * is aborted and its target removed.
+     *
+     * @param sourceId
+     *            of the request that owns the file
+     * @param sourceFileName
+     *            of the file
+     * @param id
+     *            of the request to copy to
+     * @param fileName
+     *            of the copy
+     * @return <code>false</code> if the source does not exist
+     * @throws FileStorageFailedException
+     *             if the copy failed or did not complete in time
+     */
+    public boolean copy(final String sourceId, final String sourceFileName, final String id, final String fileName) {
+        provision();
+
+        final CloudBlockBlob source = getBlob(sourceId, sourceFileName);
+        final CloudBlockBlob target = getBlob(id, fileName);
+
         try {
-            if (blob.exists()) {
-                log.warn("Artifact {} already exists on Azure Storage container {}, don't need to upload twice", id,
-                        properties.getStorageContainerName());
-                return;
+            target.startCopy(source);
+
+            // copies within the same account are usually done right away
+            final long deadline = System.currentTimeMillis()
+                    + TimeUnit.SECONDS.toMillis(properties.getDedup().getCopyTimeoutSeconds());
+            target.downloadAttributes();
+            while (target.getCopyState().getStatus() == CopyStatus.PENDING) {
+                if (System.currentTimeMillis() > deadline) {
+                    abortCopy(target);
+                    throw new FileStorageFailedException("Copy of blob " + source.getName() + " timed out");
+                }
+                Thread.sleep(COPY_POLL_MILLISECONDS);
+                target.downloadAttributes();
             }
+
+            if (target.getCopyState().getStatus() != CopyStatus.SUCCESS) {
+                throw new FileStorageFailedException("Failed to copy blob " + source.getName() + ": "
+                        + target.getCopyState().getStatusDescription());
+            }
+            return true;
         } catch (final StorageException e) {
-            throw new FileStorageFailedException("Failed to verify if file already exists", e);
+            if (e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return false;
+            }
+            throw new FileStorageFailedException("Failed to copy blob", e);
+        } catch (final URISyntaxException e) {
+            throw new FileStorageFailedException("Failed to copy blob", e);
+        } catch (final InterruptedException e) {
+            // Restore interrupted state...
+            Thread.currentThread().interrupt();
+            throw new FileStorageFailedException("Interrupted while copying blob", e);
         }
+    }
 
-        // Creating blob and uploading file to it
-        blob.getProperties().setContentType(contentType);
+    private static void abortCopy(final CloudBlockBlob target) {
+        try {
+            target.abortCopy(target.getCopyState().getCopyId());
+        } catch (final StorageException e) {
+            // completed or failed in the meantime
+            log.debug("Failed to abort copy to {}", target.getName(), e);
+        }
         try {
-            blob.uploadFromFile(file.getPath());
-        } catch (StorageException | IOException e) {
-            throw new FileStorageFailedException("Failed to upload file", e);
+            // an aborted copy leaves an empty blob behind
+            target.deleteIfExists();
+        } catch (final StorageException e) {
+            throw new FileStorageFailedException("Failed to remove target of aborted copy " + target.getName(), e);
         }
+    }
 
-        log.debug("Artifact {} stored on Azure Storage c server side Etag {}", id, blob.getProperties().getEtag());
+    /**
+     * Pre-signed URL that allows to create the source file of a request in the
+     * incoming container and nothing else.
+     *
+     * @param id
+     *            of the request
+     * @param fileName
+     *            of the source file
+     * @param expiresAt
+     *            end of validity
+     * @return URL to PUT the file to
+     */
+    public URI getUploadUri(final String id, final String fileName, final Date expiresAt) {
+        provision();
+
+        final CloudBlockBlob blob = getBlob(incoming, id, fileName);
+
+        final SharedAccessBlobPolicy policy = new SharedAccessBlobPolicy();
+        policy.setPermissions(EnumSet.of(SharedAccessBlobPermissions.CREATE, SharedAccessBlobPermissions.WRITE));
+        policy.setSharedAccessExpiryTime(expiresAt);
+        try {
+            return URI.create(blob.getUri() + "?" + blob.generateSharedAccessSignature(policy, null));
+        } catch (final InvalidKeyException | StorageException e) {
+            throw new FileStorageFailedException("Failed to sign upload URL", e);
+        }
+    }
+
+    /**
+     * @param id
+     *            of the request
+     * @param fileName
+     *            of the source file
+     * @return the uploaded source file or empty if it has not been committed
+     *         yet
+     */
+    public Optional<IncomingFile> getIncoming(final String id, final String fileName) {
+        final CloudBlockBlob blob = getBlob(incoming, id, fileName);
+        try {
+            blob.downloadAttributes();
+            return Optional.of(new IncomingFile(blob.getProperties().getLength(), blob.getProperties().getEtag()));
+        } catch (final StorageException e) {
+            if (e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return Optional.empty();
+            }
+            throw new FileStorageFailedException("Failed to retrieve uploaded file", e);
+        }
+    }
+
+    /**
+     * Stages one chunk of a resumable upload as block of the incoming file, so
+     * that every instance of the service sees the same chunks. Staging a chunk
+     * again replaces it. The chunks only become the file with
+     * {@link #commitIncomingChunks(String, String, int)}, Azure Storage drops
+     * them if that never happens.
+     *
+     * @param id
+     *            of the request
+     * @param fileName
+     *            of the source file
+     * @param chunk
+     *            index of the chunk
+     * @param content
+     *            of the chunk, already verified
+     */
+    public void stageIncomingChunk(final String id, final String fileName, final int chunk, final Path content) {
+        provision();
+
+        final BlobRequestOptions options = new BlobRequestOptions();
+        options.setUseTransactionalContentMD5(true);
+        try (InputStream in = Files.newInputStream(content)) {
+            getBlob(incoming, id, fileName).uploadBlock(chunkBlockId(chunk), in, Files.size(content), null, options,
+                    null);
+        } catch (final StorageException | IOException e) {
+            throw new FileStorageFailedException("Failed to stage chunk " + chunk, e);
+        }
+    }
+
+    /**
+     * Puts the staged chunks of a resumable upload together in their order.
+     *
+     * @param id
+     *            of the request
+     * @param fileName
+     *            of the source file
+     * @param chunkCount
+     *            number of chunks, all of them must have been staged
+     * @return the uploaded source file
+     */
+    public IncomingFile commitIncomingChunks(final String id, final String fileName, final int chunkCount) {
+        final List<BlockEntry> blocks = new ArrayList<>(chunkCount);
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            blocks.add(new BlockEntry(chunkBlockId(chunk)));
+        }
+        try {
+            getBlob(incoming, id, fileName).commitBlockList(blocks);
+        } catch (final StorageException e) {
+            throw new FileStorageFailedException("Failed to commit chunks", e);
+        }
+        return getIncoming(id, fileName)
+                .orElseThrow(() -> new FileStorageFailedException("Committed upload is not available"));
+    }
+
+    private static String chunkBlockId(final int chunk) {
+        // all block ids of a blob must have the same length
+        return Base64.getEncoder().encodeToString(String.format("chunk-%08d", chunk).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param id
+     *            of the request
+     * @param fileName
+     *            of the source file
+     * @param etag
+     *            of the file when the upload was committed, the upload URL
+     *            allows to overwrite it until it expires
+     * @return stream of the uploaded source file, to be closed by the caller
+     */
+    public InputStream openIncoming(final String id, final String fileName, final String etag) {
+        try {
+            return getBlob(incoming, id, fileName).openInputStream(AccessCondition.generateIfMatchCondition(etag),
+                    null, null);
+        } catch (final StorageException e) {
+            if (e.getHttpStatusCode() == HttpURLConnection.HTTP_PRECON_FAILED) {
+                throw new FileStorageFailedException("Uploaded file has been changed after the commit", e);
+            }
+            throw new FileStorageFailedException("Failed to open uploaded file", e);
+        }
+    }
+
+    /**
+     * @param id
+     *            of the request
+     * @param fileName
+     *            of the source file
+     */
+    public void deleteIncoming(final String id, final String fileName) {
+        try {
+            getBlob(incoming, id, fileName).deleteIfExists();
+        } catch (final StorageException e) {
+            throw new FileStorageFailedException("Failed to delete uploaded file", e);
+        }
     }
 
     private CloudBlockBlob getBlob(final String id, final String fileName) {
-        final CloudBlobContainer container = getContainer();
-        CloudBlobDirectory directory;
+        return getBlob(container, id, fileName);
+    }
+
+    private static CloudBlockBlob getBlob(final CloudBlobContainer container, final String id,
+            final String fileName) {
         try {
-            directory = container.getDirectoryReference(id);
+            final CloudBlobDirectory directory = container.getDirectoryReference(id);
             return directory.getBlockBlobReference(fileName);
         } catch (final StorageException | URISyntaxException e) {
             throw new FileStorageFailedException("Failed to terieve blob!", e);
@@ -88,6 +361,8 @@ public class AzureStorageRepository {
     }
 
     public void delete(final String id, final String fileName) {
+        provision();
+
         final CloudBlockBlob blob = getBlob(id, fileName);
 
         log.info("Deleting Azure Storage blob from directory {} and id {}", fileName, id);
@@ -98,11 +373,27 @@ public class AzureStorageRepository {
         }
     }
 
+    /**
+     * Computed locally from the container reference, i.e. without a round
+     * trip to Azure Storage.
+     *
+     * @param id
+     *            of the request
+     * @param fileName
+     *            of the protected file
+     * @return URI of the protected file
+     */
     public URI getUri(final String id, final String fileName) {
-        final CloudBlockBlob blob = getBlob(id, fileName);
+        return getBlob(id, fileName).getUri();
+    }
 
-        log.info("Deleting Azure Storage blob from directory {} and id {}", fileName, id);
-        return blob.getUri();
+    /**
+     * Source file uploaded to the incoming container, directly or in chunks.
+     */
+    @Value
+    public static class IncomingFile {
+        private final long size;
+        private final String etag;
     }
 
 }
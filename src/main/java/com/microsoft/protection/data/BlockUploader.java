@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.error.FileStorageFailedException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Uploads files as block blobs, staging the blocks in parallel. The content
+ * MD5 is computed while the file is read and the blob is only created if it
+ * does not exist yet. Block ids are unique per upload, so that concurrent
+ * uploads of the same blob do not overwrite each other's uncommitted blocks.
+ */
+@Slf4j
+public class BlockUploader implements AutoCloseable {
+    private static final String BLOCK_ID_FORMAT = "%s-%08d";
+
+    private final int blockSizeBytes;
+    private final int concurrency;
+    private final ExecutorService executor;
+
+    public BlockUploader(final ProtectionServiceProperties properties) {
+        this.blockSizeBytes = properties.getStorageUpload().getBlockSizeBytes();
+        this.concurrency = properties.getStorageUpload().getConcurrency();
+        this.executor = Executors.newFixedThreadPool(concurrency,
+                new ThreadFactoryBuilder().setNameFormat("block-upload-%d").setDaemon(true).build());
+    }
+
+    /**
+     * @param blob
+     *            to create
+     * @param file
+     *            to upload
+     * @param contentType
+     *            of the file
+     * @return <code>false</code> if the blob existed already
+     */
+    public boolean upload(final CloudBlockBlob blob, final Path file, final String contentType) {
+        blob.getProperties().setContentType(contentType);
+
+        try {
+            final long size = Files.size(file);
+            if (size <= blockSizeBytes) {
+                uploadSingle(blob, file, size);
+                return true;
+            }
+            return uploadBlocks(blob, file);
+        } catch (final StorageException e) {
+            if (e.getHttpStatusCode() == HttpURLConnection.HTTP_CONFLICT) {
+                return false;
+            }
+            throw new FileStorageFailedException("Failed to upload file", e);
+        } catch (final IOException e) {
+            throw new FileStorageFailedException("Failed to upload file", e);
+        } catch (final InterruptedException e) {
+            // Restore interrupted state...
+            Thread.currentThread().interrupt();
+            throw new FileStorageFailedException("Interrupted while uploading file", e);
+        }
+    }
+
+    private static void uploadSingle(final CloudBlockBlob blob, final Path file, final long size)
+            throws IOException, StorageException {
+        final BlobRequestOptions options = new BlobRequestOptions();
+        options.setStoreBlobContentMD5(true);
+
+        try (InputStream in = Files.newInputStream(file)) {
+            blob.upload(in, size, AccessCondition.generateIfNotExistsCondition(), options, null);
+        }
+    }
+
+    private boolean uploadBlocks(final CloudBlockBlob blob, final Path file)
+            throws IOException, StorageException, InterruptedException {
+        // saves staging all blocks just to learn at commit that the blob
+        // exists, the commit is still conditional for concurrent uploads
+        if (blob.exists()) {
+            return false;
+        }
+
+        final String uploadId = UUID.randomUUID().toString();
+        final MessageDigest md5 = newMd5();
+        final BlobRequestOptions options = new BlobRequestOptions();
+        options.setUseTransactionalContentMD5(true);
+
+        // bounds the memory to concurrency * block size
+        final Semaphore inFlight = new Semaphore(concurrency);
+        final List<BlockEntry> blocks = new ArrayList<>();
+        final List<Future<?>> staged = new ArrayList<>();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            int read;
+            do {
+                final ByteBuffer buffer = ByteBuffer.allocate(blockSizeBytes);
+                read = fill(channel, buffer);
+                if (read == 0) {
+                    break;
+                }
+
+                md5.update(buffer.array(), 0, read);
+
+                final String blockId = blockId(uploadId, blocks.size());
+                blocks.add(new BlockEntry(blockId));
+
+                inFlight.acquire();
+                final int length = read;
+                staged.add(executor.submit(() -> {
+                    try {
+                        blob.uploadBlock(blockId, new ByteArrayInputStream(buffer.array(), 0, length), length, null,
+                                options, null);
+                        return null;
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            } while (read == blockSizeBytes);
+
+            awaitStaged(staged);
+        } catch (IOException | InterruptedException | StorageException | RuntimeException e) {
+            staged.forEach(future -> future.cancel(true));
+            throw e;
+        }
+
+        blob.getProperties().setContentMD5(Base64.getEncoder().encodeToString(md5.digest()));
+        blob.commitBlockList(blocks, AccessCondition.generateIfNotExistsCondition(), new BlobRequestOptions(), null);
+
+        log.debug("Uploaded {} blocks of {} bytes to {}", blocks.size(), blockSizeBytes, blob.getName());
+        return true;
+    }
+
+    private static int fill(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    private static String blockId(final String uploadId, final int index) {
+        // all block ids of a blob must have the same length
+        return Base64.getEncoder()
+                .encodeToString(String.format(BLOCK_ID_FORMAT, uploadId, index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void awaitStaged(final List<Future<?>> staged) throws InterruptedException, StorageException {
+        for (final Future<?> future : staged) {
+            try {
+                future.get();
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof StorageException) {
+                    throw (StorageException) e.getCause();
+                }
+                throw new FileStorageFailedException("Failed to upload block", e.getCause());
+            }
+        }
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import java.util.List;
+
+import org.bson.Document;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.MongoPersistentEntityIndexResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.ClassTypeInformation;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Ensures the indexes declared on the documents exist before the service
+ * accepts traffic, independent of whether the mapping context creates them
+ * on first use.
+ * <p>
+ * Documents written before a unique index was declared may share a value,
+ * which would fail the index creation and thereby the startup. For unique
+ * indexes on a single field the oldest document keeps the value and it is
+ * removed from the others, so that they are still found by id but no longer
+ * by that field.
+ */
+@RequiredArgsConstructor
+@Slf4j
+public class MongoIndexInitializer implements InitializingBean {
+
+    private final MongoOperations mongoOperations;
+    private final MongoMappingContext mappingContext;
+    private final List<Class<?>> documents;
+
+    @Override
+    public void afterPropertiesSet() {
+        final MongoPersistentEntityIndexResolver resolver = new MongoPersistentEntityIndexResolver(mappingContext);
+
+        for (final Class<?> document : documents) {
+            final IndexOperations indexOperations = mongoOperations.indexOps(document);
+            for (final IndexDefinition index : resolver.resolveIndexFor(ClassTypeInformation.from(document))) {
+                if (index.getIndexOptions().getBoolean("unique", false) && index.getIndexKeys().size() == 1) {
+                    releaseDuplicates(document, index.getIndexKeys().keySet().iterator().next());
+                }
+                indexOperations.ensureIndex(index);
+            }
+            log.info("Ensured indexes of {}: {}", document.getSimpleName(), indexOperations.getIndexInfo());
+        }
+    }
+
+    private void releaseDuplicates(final Class<?> document, final String field) {
+        final List<Document> pipeline = List.of(
+                new Document("$match", new Document(field, new Document("$exists", true).append("$ne", null))),
+                new Document("$sort", new Document("createdAt", 1).append("_id", 1)),
+                new Document("$group",
+                        new Document("_id", "$" + field).append("ids", new Document("$push", "$_id"))
+                                .append("count", new Document("$sum", 1))),
+                new Document("$match", new Document("count", new Document("$gt", 1))));
+
+        for (final Document duplicates : mongoOperations.getCollection(mongoOperations.getCollectionName(document))
+                .aggregate(pipeline).allowDiskUse(true)) {
+            final List<?> ids = duplicates.get("ids", List.class);
+            final List<?> others = ids.subList(1, ids.size());
+            log.warn("Removing duplicate {} {} from {} {} documents, {} keeps it", field, duplicates.get("_id"),
+                    others.size(), document.getSimpleName(), ids.get(0));
+            mongoOperations.updateMulti(Query.query(Criteria.where("_id").in(others)), new Update().unset(field),
+                    document);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.Optional;
+import java.util.TreeSet;
+
+import com.google.common.io.BaseEncoding;
+import com.microsoft.protection.data.model.ProtectedContent;
+import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.error.FileStorageFailedException;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Index of protected files by content hash, user and rights, so that
+ * identical requests are served by a server side copy of the protected blob
+ * instead of another MIP SDK call and upload.
+ */
+@RequiredArgsConstructor
+@Slf4j
+public class ProtectedContentCache {
+
+    private final ProtectedContentRepository protectedContentRepository;
+    private final AzureStorageRepository azureStorageRepository;
+
+    /**
+     * @return digest to feed with the source file
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    /**
+     * @param digest
+     *            of the source file
+     * @param request
+     *            to protect the file for
+     * @return key of the protected file
+     */
+    public static String key(final MessageDigest digest, final ProtectionRequest request) {
+        digest.update(("\n" + request.getUser() + "\n" + new TreeSet<>(request.getRights()))
+                .getBytes(StandardCharsets.UTF_8));
+        return BaseEncoding.base16().lowerCase().encode(digest.digest());
+    }
+
+    /**
+     * Copies the protected file with the same key to the request, if there is
+     * one.
+     *
+     * @param key
+     *            of the source file
+     * @param request
+     *            to copy the protected file to
+     * @return <code>true</code> if the protected file has been reused,
+     *         <code>false</code> if it has to be protected and uploaded,
+     *         e.g. because the copy failed or timed out
+     */
+    public boolean reuse(final String key, final ProtectionRequest request) {
+        final Optional<ProtectedContent> content = protectedContentRepository.findById(key);
+        if (!content.isPresent()) {
+            return false;
+        }
+
+        final boolean copied;
+        try {
+            copied = azureStorageRepository.copy(content.get().getRequestId(), content.get().getFileName(),
+                    request.getId(), request.getFileName());
+        } catch (final FileStorageFailedException e) {
+            log.warn("Failed to copy protected file of {}, protecting {} again", content.get(), request.getId(), e);
+            return false;
+        }
+
+        if (!copied) {
+            log.info("Protected file of {} is gone, protecting {} again", content.get(), request.getId());
+            protectedContentRepository.delete(content.get());
+            return false;
+        }
+
+        log.info("Reused protected file of {} for {}", content.get().getRequestId(), request.getId());
+        return true;
+    }
+
+    /**
+     * @param key
+     *            of the source file
+     * @param request
+     *            the protected file has been stored for
+     * @param fileName
+     *            of the stored protected file
+     */
+    public void remember(final String key, final ProtectionRequest request, final String fileName) {
+        protectedContentRepository.save(new ProtectedContent(key, request.getId(), fileName, new Date()));
+    }
+}
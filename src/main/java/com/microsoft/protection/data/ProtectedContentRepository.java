@@ -0,0 +1,15 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
+
+import com.microsoft.protection.data.model.ProtectedContent;
+
+@Repository
+public interface ProtectedContentRepository extends CrudRepository<ProtectedContent, String> {
+
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.data.model.ProtectionJobLease;
+import com.mongodb.client.result.UpdateResult;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Lease based work queue on top of the {@link ProtectionJobLease} collection.
+ * Every worker holds a lease for the jobs it is working on and renews it
+ * periodically. Jobs of a worker that is gone are claimed by another one as
+ * soon as the lease expired.
+ */
+@Slf4j
+public class ProtectionJobQueue {
+    private static final String ID = "id";
+    private static final String OWNER = "owner";
+    private static final String EXPIRES_AT = "expiresAt";
+
+    private final MongoOperations mongoOperations;
+    private final long leaseMillis;
+    private final long pollMillis;
+
+    @Getter
+    private final String workerId = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+
+    private final Set<String> leased = ConcurrentHashMap.newKeySet();
+
+    public ProtectionJobQueue(final MongoOperations mongoOperations, final ProtectionServiceProperties properties) {
+        this.mongoOperations = mongoOperations;
+        this.leaseMillis = TimeUnit.SECONDS.toMillis(properties.getQueue().getLeaseSeconds());
+        this.pollMillis = TimeUnit.SECONDS.toMillis(properties.getQueue().getPollSeconds());
+    }
+
+    /**
+     * Takes a lease on a newly accepted job.
+     *
+     * @param id
+     *            of the request
+     */
+    public void enqueue(final String id) {
+        mongoOperations.save(new ProtectionJobLease(id, workerId, nextExpiry(), 1));
+        leased.add(id);
+    }
+
+    /**
+     * Takes leases on many newly accepted jobs with one bulk insert.
+     *
+     * @param ids
+     *            of the requests
+     */
+    public void enqueueAll(final Collection<String> ids) {
+        final Date expiry = nextExpiry();
+        mongoOperations.insertAll(
+                ids.stream().map(id -> new ProtectionJobLease(id, workerId, expiry, 1)).collect(Collectors.toList()));
+        leased.addAll(ids);
+    }
+
+    /**
+     * Atomically claims the job with the oldest expired lease.
+     *
+     * @return the claimed lease or empty if there is nothing to claim
+     */
+    public Optional<ProtectionJobLease> claimNext() {
+        final Query query = Query.query(Criteria.where(EXPIRES_AT).lt(new Date())).with(Sort.by(EXPIRES_AT));
+        final Update update = new Update().set(OWNER, workerId).set(EXPIRES_AT, nextExpiry()).inc("attempts", 1);
+
+        final ProtectionJobLease lease = mongoOperations.findAndModify(query, update,
+                FindAndModifyOptions.options().returnNew(true), ProtectionJobLease.class);
+
+        if (lease != null) {
+            leased.add(lease.getId());
+        }
+
+        return Optional.ofNullable(lease);
+    }
+
+    /**
+     * Heartbeat for all jobs this worker holds a lease on.
+     */
+    public void renew() {
+        if (leased.isEmpty()) {
+            return;
+        }
+
+        final ArrayList<String> ids = new ArrayList<>(leased);
+        final UpdateResult result = mongoOperations.updateMulti(
+                Query.query(Criteria.where(ID).in(ids).and(OWNER).is(workerId)),
+                Update.update(EXPIRES_AT, nextExpiry()), ProtectionJobLease.class);
+
+        if (result.getMatchedCount() < ids.size()) {
+            log.warn("Renewed only {} of {} leases of worker {}", result.getMatchedCount(), ids.size(), workerId);
+        }
+    }
+
+    /**
+     * Gives up the lease after a failed attempt, the job can be claimed again
+     * with the next poll.
+     *
+     * @param id
+     *            of the request
+     */
+    public void release(final String id) {
+        giveBack(id, Update.update(EXPIRES_AT, nextPoll()));
+    }
+
+    /**
+     * Gives up the lease of a job this worker has no capacity for. It is not
+     * counted as an attempt and can be claimed again with the next poll, so it
+     * is not claimed over and over while all workers are busy.
+     *
+     * @param id
+     *            of the request
+     */
+    public void postpone(final String id) {
+        giveBack(id, Update.update(EXPIRES_AT, nextPoll()).inc("attempts", -1));
+    }
+
+    private void giveBack(final String id, final Update update) {
+        leased.remove(id);
+        mongoOperations.updateFirst(Query.query(Criteria.where(ID).is(id).and(OWNER).is(workerId)), update,
+                ProtectionJobLease.class);
+    }
+
+    /**
+     * Removes the job from the queue once it reached a terminal state.
+     *
+     * @param id
+     *            of the request
+     */
+    public void complete(final String id) {
+        leased.remove(id);
+        mongoOperations.remove(Query.query(Criteria.where(ID).is(id).and(OWNER).is(workerId)),
+                ProtectionJobLease.class);
+    }
+
+    private Date nextExpiry() {
+        return new Date(System.currentTimeMillis() + leaseMillis);
+    }
+
+    private Date nextPoll() {
+        return new Date(System.currentTimeMillis() + pollMillis);
+    }
+}
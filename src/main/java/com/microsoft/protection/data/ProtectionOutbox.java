@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.data.model.ProtectionOutboxMessage;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Durable outbox of completion messages. A message is recorded before it is
+ * handed to the broker and removed once it has been sent, so messages of a
+ * worker that is gone or of a broker that was not reachable are picked up
+ * again.
+ * <p>
+ * Removal and retry only apply to the attempt they are about, so that a
+ * negative acknowledgement arriving after the removal still schedules a retry
+ * and a removal after the retry does not drop it.
+ */
+@Slf4j
+public class ProtectionOutbox {
+    private static final String ID = "id";
+    private static final String NEXT_ATTEMPT_AT = "nextAttemptAt";
+    private static final String ATTEMPTS = "attempts";
+
+    private final MongoOperations mongoOperations;
+    private final long redeliverMillis;
+    private final long maxBackoffMillis;
+
+    public ProtectionOutbox(final MongoOperations mongoOperations, final ProtectionServiceProperties properties) {
+        this.mongoOperations = mongoOperations;
+        this.redeliverMillis = TimeUnit.SECONDS.toMillis(properties.getOutbox().getRedeliverSeconds());
+        this.maxBackoffMillis = TimeUnit.SECONDS.toMillis(properties.getOutbox().getMaxBackoffSeconds());
+    }
+
+    /**
+     * Records a message that is about to be sent. Recording a message for the
+     * same request again replaces it.
+     *
+     * @param id
+     *            of the request
+     * @param payload
+     *            of the message
+     * @param trace
+     *            to continue when sending, may be <code>null</code>
+     * @return the recorded message
+     */
+    public ProtectionOutboxMessage add(final String id, final String payload, final String trace) {
+        return mongoOperations.save(new ProtectionOutboxMessage(id, payload, trace, nextAttempt(0), 0));
+    }
+
+    /**
+     * Like {@link #add(String, String, String)}, but records all messages with
+     * one bulk write.
+     *
+     * @param messages
+     *            to record, their next attempt is set
+     */
+    public void addAll(final List<ProtectionOutboxMessage> messages) {
+        final Date nextAttemptAt = nextAttempt(0);
+        final BulkOperations bulk = mongoOperations.bulkOps(BulkMode.UNORDERED, ProtectionOutboxMessage.class);
+        for (final ProtectionOutboxMessage message : messages) {
+            message.setNextAttemptAt(nextAttemptAt);
+            message.setAttempts(0);
+            bulk.upsert(Query.query(Criteria.where(ID).is(message.getId())),
+                    Update.update("payload", message.getPayload()).set("trace", message.getTrace())
+                            .set(NEXT_ATTEMPT_AT, nextAttemptAt).set(ATTEMPTS, 0));
+        }
+        bulk.execute();
+    }
+
+    /**
+     * Atomically claims the message that is due the longest.
+     *
+     * @return the claimed message or empty if there is nothing due
+     */
+    public Optional<ProtectionOutboxMessage> claimDue() {
+        final Query query = Query.query(Criteria.where(NEXT_ATTEMPT_AT).lte(new Date()))
+                .with(Sort.by(NEXT_ATTEMPT_AT));
+        final Update update = Update.update(NEXT_ATTEMPT_AT, nextAttempt(0)).inc(ATTEMPTS, 1);
+
+        return Optional.ofNullable(mongoOperations.findAndModify(query, update,
+                FindAndModifyOptions.options().returnNew(true), ProtectionOutboxMessage.class));
+    }
+
+    /**
+     * @param messages
+     *            the broker accepted, a message is kept if another attempt has
+     *            been started since
+     */
+    public void remove(final Collection<ProtectionOutboxMessage> messages) {
+        mongoOperations.remove(Query.query(new Criteria().orOperator(messages.stream()
+                .map(message -> Criteria.where(ID).is(message.getId()).and(ATTEMPTS).is(message.getAttempts()))
+                .toArray(Criteria[]::new))), ProtectionOutboxMessage.class);
+    }
+
+    /**
+     * Schedules another attempt with exponential backoff. The message is
+     * recorded again if it has been removed in the meantime.
+     *
+     * @param message
+     *            that failed
+     */
+    public void retry(final ProtectionOutboxMessage message) {
+        final int attempts = message.getAttempts() + 1;
+        final Update update = Update.update(NEXT_ATTEMPT_AT, nextAttempt(attempts)).set(ATTEMPTS, attempts)
+                .set("payload", message.getPayload());
+        if (message.getTrace() != null) {
+            update.set("trace", message.getTrace());
+        }
+        try {
+            mongoOperations.upsert(
+                    Query.query(Criteria.where(ID).is(message.getId()).and(ATTEMPTS).is(message.getAttempts())),
+                    update, ProtectionOutboxMessage.class);
+        } catch (final DuplicateKeyException e) {
+            log.debug("Outbox message {} is at a later attempt already", message.getId());
+        }
+    }
+
+    private Date nextAttempt(final int attempts) {
+        final long backoff = attempts == 0 ? redeliverMillis
+                : Math.min(maxBackoffMillis, TimeUnit.SECONDS.toMillis(1L << Math.min(attempts, 20)));
+        return new Date(System.currentTimeMillis() + backoff);
+    }
+}
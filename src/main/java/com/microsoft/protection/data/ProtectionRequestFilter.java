@@ -0,0 +1,53 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import java.util.Date;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.Pattern;
+
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.format.annotation.DateTimeFormat.ISO;
+
+import com.microsoft.protection.data.model.ProtectionRequest.Status;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * Filter and keyset cursor for listing protection requests. Results are
+ * ordered by id, so <code>after</code> is the id of the last request of the
+ * previous page.
+ */
+@Getter
+@Setter
+@ToString
+public class ProtectionRequestFilter {
+    public static final int MAX_LIMIT = 500;
+
+    private Status status;
+
+    private String user;
+
+    private String correlationId;
+
+    private String batchId;
+
+    @DateTimeFormat(iso = ISO.DATE_TIME)
+    private Date createdAfter;
+
+    @DateTimeFormat(iso = ISO.DATE_TIME)
+    private Date createdBefore;
+
+    @Pattern(regexp = "^[0-9a-fA-F]{24}$")
+    private String after;
+
+    @Min(1)
+    @Max(MAX_LIMIT)
+    private int limit = MAX_LIMIT;
+}
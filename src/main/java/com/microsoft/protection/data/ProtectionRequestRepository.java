@@ -4,12 +4,51 @@
  */
 package com.microsoft.protection.data;
 
+import java.util.Optional;
+
 import org.springframework.data.repository.PagingAndSortingRepository;
 import org.springframework.stereotype.Repository;
 
 import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.data.model.ProtectionRequest.Status;
 
 @Repository
-public interface ProtectionRequestRepository extends PagingAndSortingRepository<ProtectionRequest, String> {
+public interface ProtectionRequestRepository extends PagingAndSortingRepository<ProtectionRequest, String>,
+        ProtectionRequestRepositoryCustom {
+
+    Optional<ProtectionRequest> findByCorrelationId(String correlationId);
+
+    Optional<IdOnly> findIdByCorrelationId(String correlationId);
+
+    Optional<StoredFile> findFileById(String id);
+
+    long countByStatus(Status status);
+
+    long deleteByBatchId(String batchId);
+
+    /**
+     * Projection on the id.
+     */
+    interface IdOnly {
+        String getId();
+    }
+
+    /**
+     * Projection on what is needed to locate the protected file.
+     */
+    interface StoredFile {
+        String getId();
+
+        String getFileName();
+
+        Status getStatus();
+
+        boolean isDirectUpload();
+
+        Integer getChunkSize();
 
+        default boolean isIncomingUpload() {
+            return isDirectUpload() || getChunkSize() != null;
+        }
+    }
 }
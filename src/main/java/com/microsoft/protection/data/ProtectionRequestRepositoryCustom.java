@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.springframework.data.util.CloseableIterator;
+
+import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.data.model.ProtectionRequest.Status;
+
+public interface ProtectionRequestRepositoryCustom {
+
+    /**
+     * @param filter
+     *            to apply
+     * @return one page of matching requests ordered by id
+     */
+    List<ProtectionRequest> findByFilter(ProtectionRequestFilter filter);
+
+    /**
+     * Streams all matching requests off the Mongo cursor, ignoring the limit
+     * of the filter. The iterator has to be closed by the caller.
+     *
+     * @param filter
+     *            to apply
+     * @return matching requests ordered by id
+     */
+    CloseableIterator<ProtectionRequest> streamByFilter(ProtectionRequestFilter filter);
+
+    /**
+     * @param batchId
+     *            of the requests
+     * @return number of requests of the batch per status, counted by the
+     *         database
+     */
+    Map<Status, Long> countStatusesOfBatch(String batchId);
+
+    /**
+     * Records a chunk of a resumable upload atomically, so chunks can be
+     * uploaded in parallel.
+     *
+     * @param id
+     *            of the request
+     * @param chunk
+     *            index of the chunk
+     * @return <code>false</code> if the request is not awaiting its upload
+     *         (anymore)
+     */
+    boolean addReceivedChunk(String id, int chunk);
+
+    /**
+     * Atomically removes one request whose upload has not been committed in
+     * time, so that concurrent sweeps and commits do not race.
+     *
+     * @param createdBefore
+     *            upload sessions created earlier are abandoned
+     * @return the removed request or empty if there is none
+     */
+    Optional<ProtectionRequest> removeAbandonedUpload(Date createdBefore);
+}
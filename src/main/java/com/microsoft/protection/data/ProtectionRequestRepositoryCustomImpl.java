@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+
+import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.data.model.ProtectionRequest.Status;
+
+import lombok.RequiredArgsConstructor;
+
+@RequiredArgsConstructor
+class ProtectionRequestRepositoryCustomImpl implements ProtectionRequestRepositoryCustom {
+    private static final String ID = "id";
+    private static final String STATUS = "status";
+    private static final String USER = "user";
+    private static final String CORRELATION_ID = "correlationId";
+    private static final String BATCH_ID = "batchId";
+    private static final String COUNT = "count";
+    private static final String CREATED_AT = "createdAt";
+    private static final String RECEIVED_CHUNKS = "receivedChunks";
+
+    private final MongoOperations mongoOperations;
+
+    @Override
+    public List<ProtectionRequest> findByFilter(final ProtectionRequestFilter filter) {
+        return mongoOperations.find(toQuery(filter).limit(filter.getLimit()), ProtectionRequest.class);
+    }
+
+    @Override
+    public CloseableIterator<ProtectionRequest> streamByFilter(final ProtectionRequestFilter filter) {
+        return mongoOperations.stream(toQuery(filter), ProtectionRequest.class);
+    }
+
+    @Override
+    public Map<Status, Long> countStatusesOfBatch(final String batchId) {
+        final Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where(BATCH_ID).is(batchId)), Aggregation.group(STATUS).count().as(COUNT));
+
+        final Map<Status, Long> counts = new EnumMap<>(Status.class);
+        for (final Document group : mongoOperations.aggregate(aggregation, ProtectionRequest.class, Document.class)) {
+            counts.put(Status.valueOf(group.getString("_id")), group.get(COUNT, Number.class).longValue());
+        }
+        return counts;
+    }
+
+    @Override
+    public boolean addReceivedChunk(final String id, final int chunk) {
+        final Query query = Query.query(Criteria.where(ID).is(id).and(STATUS).is(Status.AWAITING_UPLOAD));
+        return mongoOperations.updateFirst(query, new Update().addToSet(RECEIVED_CHUNKS, chunk),
+                ProtectionRequest.class).getMatchedCount() > 0;
+    }
+
+    @Override
+    public Optional<ProtectionRequest> removeAbandonedUpload(final Date createdBefore) {
+        final Query query = Query
+                .query(Criteria.where(STATUS).is(Status.AWAITING_UPLOAD).and(CREATED_AT).lt(createdBefore));
+        return Optional.ofNullable(mongoOperations.findAndRemove(query, ProtectionRequest.class));
+    }
+
+    static Query toQuery(final ProtectionRequestFilter filter) {
+        final Query query = new Query();
+
+        if (filter.getStatus() != null) {
+            query.addCriteria(Criteria.where(STATUS).is(filter.getStatus()));
+        }
+        if (filter.getUser() != null) {
+            query.addCriteria(Criteria.where(USER).is(filter.getUser()));
+        }
+        if (filter.getCorrelationId() != null) {
+            query.addCriteria(Criteria.where(CORRELATION_ID).is(filter.getCorrelationId()));
+        }
+        if (filter.getBatchId() != null) {
+            query.addCriteria(Criteria.where(BATCH_ID).is(filter.getBatchId()));
+        }
+        if (filter.getCreatedAfter() != null || filter.getCreatedBefore() != null) {
+            final Criteria created = Criteria.where(CREATED_AT);
+            if (filter.getCreatedAfter() != null) {
+                created.gte(filter.getCreatedAfter());
+            }
+            if (filter.getCreatedBefore() != null) {
+                created.lt(filter.getCreatedBefore());
+            }
+            query.addCriteria(created);
+        }
+        if (filter.getAfter() != null) {
+            query.addCriteria(Criteria.where(ID).gt(new ObjectId(filter.getAfter())));
+        }
+
+        return query.with(Sort.by(ID));
+    }
+}
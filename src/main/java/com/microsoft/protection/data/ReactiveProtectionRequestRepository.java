@@ -0,0 +1,23 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import org.springframework.data.repository.reactive.ReactiveCrudRepository;
+import org.springframework.stereotype.Repository;
+
+import com.microsoft.protection.data.model.ProtectionRequest;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Non-blocking access to the same collection as the
+ * {@link ProtectionRequestRepository}.
+ */
+@Repository
+public interface ReactiveProtectionRequestRepository extends ReactiveCrudRepository<ProtectionRequest, String>,
+        ReactiveProtectionRequestRepositoryCustom {
+
+    Mono<ProtectionRequest> findByCorrelationId(String correlationId);
+}
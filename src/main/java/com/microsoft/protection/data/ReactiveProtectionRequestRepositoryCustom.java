@@ -0,0 +1,20 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import com.microsoft.protection.data.model.ProtectionRequest;
+
+import reactor.core.publisher.Flux;
+
+public interface ReactiveProtectionRequestRepositoryCustom {
+
+    /**
+     * @param filter
+     *            to apply
+     * @return one page of matching requests ordered by id, emitted as they
+     *         are read from the database
+     */
+    Flux<ProtectionRequest> findByFilter(ProtectionRequestFilter filter);
+}
@@ -0,0 +1,25 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+
+import com.microsoft.protection.data.model.ProtectionRequest;
+
+import lombok.RequiredArgsConstructor;
+import reactor.core.publisher.Flux;
+
+@RequiredArgsConstructor
+class ReactiveProtectionRequestRepositoryCustomImpl implements ReactiveProtectionRequestRepositoryCustom {
+
+    private final ReactiveMongoOperations reactiveMongoOperations;
+
+    @Override
+    public Flux<ProtectionRequest> findByFilter(final ProtectionRequestFilter filter) {
+        return reactiveMongoOperations.find(
+                ProtectionRequestRepositoryCustomImpl.toQuery(filter).limit(filter.getLimit()),
+                ProtectionRequest.class);
+    }
+}
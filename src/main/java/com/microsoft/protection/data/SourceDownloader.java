@@ -0,0 +1,336 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.protection.ProtectionServiceProperties;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Downloads the source files of protection requests into the
+ * {@link SpoolArea}. Connections are pooled and kept alive, HTTP/2 is used if
+ * the server offers it and responses are decompressed transparently. Large
+ * files of servers that accept byte ranges are fetched in parallel ranges,
+ * each written to its position of a preallocated spool file. The ranges are
+ * bound to the version of the first response by <code>If-Range</code>, files
+ * without a validator are downloaded as a whole. Requests are retried with
+ * exponential backoff and limited per host.
+ */
+@Slf4j
+public class SourceDownloader implements AutoCloseable {
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes 0-\\d+/(\\d+)");
+
+    private final ProtectionServiceProperties.Download properties;
+    private final SpoolArea spoolArea;
+    private final OkHttpClient client;
+    private final ExecutorService rangeExecutor;
+    private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+    public SourceDownloader(final ProtectionServiceProperties properties, final SpoolArea spoolArea) {
+        this.properties = properties.getDownload();
+        this.spoolArea = spoolArea;
+        this.client = new OkHttpClient.Builder()
+                .connectTimeout(this.properties.getConnectTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .readTimeout(this.properties.getReadTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .connectionPool(new ConnectionPool(this.properties.getMaxIdleConnections(),
+                        this.properties.getKeepAliveSeconds(), TimeUnit.SECONDS))
+                .build();
+        this.rangeExecutor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("download-range-%d").setDaemon(true).build());
+    }
+
+    /**
+     * @param url
+     *            to download
+     * @param target
+     *            spool file, replaced if it exists
+     * @param expectedSize
+     *            of the file or <code>null</code> if unknown
+     * @param digest
+     *            to update with the content or <code>null</code>
+     * @param headers
+     *            to send with every request, e.g. the trace context
+     * @return number of bytes downloaded
+     * @throws IOException
+     *             if the download fails after all attempts
+     */
+    public long download(final String url, final Path target, final Long expectedSize, final MessageDigest digest,
+            final Map<String, String> headers) throws IOException {
+        // asks for the first range right away if the file is known to be large
+        final String firstRange = expectedSize != null && expectedSize >= properties.getRangeThresholdBytes()
+                ? range(0, properties.getRangeSizeBytes())
+                : null;
+
+        final long size;
+        final String validator;
+        final Semaphore permits = acquire(url);
+        try (Response first = firstResponse(url, headers, firstRange)) {
+            validator = validator(first);
+            size = rangedSize(first, validator);
+            if (size < 0) {
+                try (ReadableByteChannel in = Channels.newChannel(first.body().byteStream())) {
+                    return digest == null ? spoolArea.transferFrom(in, target)
+                            : spoolArea.transferFrom(in, target, digest);
+                }
+            }
+            spoolArea.preallocate(target, size);
+            // the first response provides the first range either way
+            writeRange(first, target, 0, Math.min(properties.getRangeSizeBytes(), size));
+        } finally {
+            permits.release();
+        }
+
+        fetchRanges(url, headers, validator, target, size);
+        if (digest != null) {
+            // the ranges arrive out of order
+            spoolArea.digest(target, digest);
+        }
+        return size;
+    }
+
+    private Response firstResponse(final String url, final Map<String, String> headers, final String range)
+            throws IOException {
+        final Response response = withRetries(url, () -> execute(url, headers, range, null));
+        if (response.code() != HttpURLConnection.HTTP_PARTIAL || validator(response) != null) {
+            return response;
+        }
+        // the other ranges could come from another version of the file
+        response.close();
+        return withRetries(url, () -> execute(url, headers, null, null));
+    }
+
+    /**
+     * @return strong ETag or last modification time of the response,
+     *         <code>null</code> if it has neither
+     */
+    private static String validator(final Response response) {
+        final String etag = response.header("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return response.header("Last-Modified");
+    }
+
+    /**
+     * @return size of the file if it is fetched in ranges, -1 if the response
+     *         is read as a whole
+     */
+    private long rangedSize(final Response response, final String validator) throws IOException {
+        if (response.code() == HttpURLConnection.HTTP_PARTIAL) {
+            final Matcher contentRange = CONTENT_RANGE.matcher(Objects.toString(response.header("Content-Range"), ""));
+            if (!contentRange.matches()) {
+                throw new IOException("Unexpected content range " + response.header("Content-Range"));
+            }
+            return Long.parseLong(contentRange.group(1));
+        }
+        final long length = response.body().contentLength();
+        return validator != null && "bytes".equalsIgnoreCase(response.header("Accept-Ranges"))
+                && length >= properties.getRangeThresholdBytes() ? length : -1;
+    }
+
+    private void fetchRanges(final String url, final Map<String, String> headers, final String validator,
+            final Path target, final long size) throws IOException {
+        final long rangeSize = properties.getRangeSizeBytes();
+        final int ranges = (int) ((size + rangeSize - 1) / rangeSize);
+        final AtomicInteger next = new AtomicInteger(1);
+
+        // this thread is one of the workers
+        final List<Future<Void>> helpers = new ArrayList<>();
+        for (int i = 1; i < Math.min(properties.getRangeParallelism(), ranges - 1); i++) {
+            helpers.add(rangeExecutor.submit(() -> {
+                fetchRanges(url, headers, validator, target, size, next, ranges);
+                return null;
+            }));
+        }
+        try {
+            fetchRanges(url, headers, validator, target, size, next, ranges);
+            for (final Future<Void> helper : helpers) {
+                helper.get();
+            }
+        } catch (final ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                    : new IOException("Failed to fetch range of " + url, e.getCause());
+        } catch (final InterruptedException e) {
+            log.warn("Interrupted!", e);
+            // Restore interrupted state...
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching ranges of " + url);
+        } finally {
+            // stops the other workers after a failure
+            next.set(ranges);
+            helpers.forEach(helper -> helper.cancel(true));
+        }
+    }
+
+    private void fetchRanges(final String url, final Map<String, String> headers, final String validator,
+            final Path target, final long size, final AtomicInteger next, final int ranges) throws IOException {
+        for (int range = next.getAndIncrement(); range < ranges; range = next.getAndIncrement()) {
+            final long position = range * (long) properties.getRangeSizeBytes();
+            final long length = Math.min(properties.getRangeSizeBytes(), size - position);
+            withRetries(url, () -> {
+                final Semaphore permits = acquire(url);
+                try (Response response = execute(url, headers, range(position, length), validator)) {
+                    if (response.code() == HttpURLConnection.HTTP_OK) {
+                        // If-Range did not match, a retry would not help
+                        throw new SourceChangedException(url);
+                    }
+                    if (response.code() != HttpURLConnection.HTTP_PARTIAL) {
+                        throw new IOException("Server ignored range at " + position + " of " + url);
+                    }
+                    writeRange(response, target, position, length);
+                } finally {
+                    permits.release();
+                }
+                return null;
+            });
+        }
+    }
+
+    private void writeRange(final Response response, final Path target, final long position, final long length)
+            throws IOException {
+        try (ReadableByteChannel in = Channels
+                .newChannel(ByteStreams.limit(response.body().byteStream(), length))) {
+            final long written = spoolArea.write(in, target, position, null);
+            if (written != length) {
+                throw new IOException("Range at " + position + " ended after " + written + " of " + length + " bytes");
+            }
+        }
+    }
+
+    private static String range(final long position, final long length) {
+        return "bytes=" + position + "-" + (position + length - 1);
+    }
+
+    private Response execute(final String url, final Map<String, String> headers, final String range,
+            final String validator) throws IOException {
+        final Request.Builder request = new Request.Builder().url(url);
+        headers.forEach(request::header);
+        if (range != null) {
+            request.header("Range", range);
+            if (validator != null) {
+                request.header("If-Range", validator);
+            }
+        }
+        final Response response = client.newCall(request.build()).execute();
+        if (!response.isSuccessful()) {
+            response.close();
+            throw new StatusException(url, response.code());
+        }
+        return response;
+    }
+
+    private <T> T withRetries(final String url, final Attempt<T> attempt) throws IOException {
+        long backoff = properties.getRetryBackoffMillis();
+        for (int attempts = 1;; attempts++) {
+            try {
+                return attempt.run();
+            } catch (final IOException e) {
+                if (attempts >= properties.getMaxAttempts() || e instanceof InterruptedIOException
+                        || e instanceof SourceChangedException
+                        || e instanceof StatusException && !((StatusException) e).isRetryable()) {
+                    throw e;
+                }
+                log.debug("Attempt {} to download {} failed, retrying in {}ms", attempts, url, backoff, e);
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(backoff);
+            } catch (final InterruptedException e) {
+                log.warn("Interrupted!", e);
+                // Restore interrupted state...
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while retrying download of " + url);
+            }
+            backoff = Math.min(2 * backoff, properties.getMaxRetryBackoffMillis());
+        }
+    }
+
+    private Semaphore acquire(final String url) throws IOException {
+        final Semaphore permits = hostPermits.computeIfAbsent(URI.create(url).getHost(),
+                host -> new Semaphore(properties.getMaxConnectionsPerHost()));
+        try {
+            permits.acquire();
+        } catch (final InterruptedException e) {
+            log.warn("Interrupted!", e);
+            // Restore interrupted state...
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + url);
+        }
+        return permits;
+    }
+
+    @Override
+    public void close() {
+        rangeExecutor.shutdownNow();
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+
+    @FunctionalInterface
+    private interface Attempt<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Unsuccessful response, only server errors and throttling are worth
+     * another attempt.
+     */
+    private static class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        StatusException(final String url, final int status) {
+            super("Download of " + url + " failed with status " + status);
+            this.status = status;
+        }
+
+        boolean isRetryable() {
+            return status >= HttpURLConnection.HTTP_INTERNAL_ERROR || status == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                    || status == 429;
+        }
+    }
+
+    /**
+     * The server answered a range with the whole file, it has been changed
+     * since the first response.
+     */
+    private static class SourceChangedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        SourceChangedException(final String url) {
+            super("Source " + url + " has been changed during the download");
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+import org.apache.commons.io.FileUtils;
+
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.error.FileStorageFailedException;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Managed local spool area where source files are staged for protection. Every
+ * request gets its own directory that is removed as a whole once the request
+ * is done.
+ */
+@Slf4j
+public class SpoolArea {
+    private static final long TRANSFER_CHUNK_BYTES = 8L * 1024 * 1024;
+    private static final int DIGEST_BUFFER_BYTES = 64 * 1024;
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+
+    @Getter
+    private final Path root;
+
+    public SpoolArea(final ProtectionServiceProperties properties) {
+        this.root = Paths.get(properties.getSpoolDirectory()).toAbsolutePath();
+        try {
+            Files.createDirectories(root);
+        } catch (final IOException e) {
+            throw new FileStorageFailedException("Failed to create spool area " + root, e);
+        }
+        log.info("Spooling files to {}", root);
+    }
+
+    /**
+     * @return bytes that can still be written to the file store of the spool
+     *         area
+     */
+    public long getUsableSpace() {
+        try {
+            return Files.getFileStore(root).getUsableSpace();
+        } catch (final IOException e) {
+            throw new FileStorageFailedException("Failed to determine free space of spool area " + root, e);
+        }
+    }
+
+    /**
+     * @param id
+     *            of the request
+     * @param fileName
+     *            of the file to spool
+     * @return path of the spool file, its parent directory exists
+     */
+    public Path allocate(final String id, final String fileName) {
+        final Path directory = directory(id);
+        try {
+            Files.createDirectories(directory);
+        } catch (final IOException e) {
+            throw new FileStorageFailedException("Failed to create spool directory " + directory, e);
+        }
+        return directory.resolve(fileName);
+    }
+
+    /**
+     * Streams given channel into the target file without intermediate heap
+     * buffers.
+     *
+     * @param source
+     *            to read from until its end
+     * @param target
+     *            file to write, replaced if it exists
+     * @return number of bytes transferred
+     * @throws IOException
+     *             if reading or writing fails
+     */
+    public long transferFrom(final ReadableByteChannel source, final Path target) throws IOException {
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            long transferred;
+            while ((transferred = out.transferFrom(source, position, TRANSFER_CHUNK_BYTES)) > 0) {
+                position += transferred;
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Like {@link #transferFrom(ReadableByteChannel, Path)}, but feeds the
+     * transferred bytes into given digest on the way.
+     *
+     * @param source
+     *            to read from until its end
+     * @param target
+     *            file to write, replaced if it exists
+     * @param digest
+     *            to update
+     * @return number of bytes transferred
+     * @throws IOException
+     *             if reading or writing fails
+     */
+    public long transferFrom(final ReadableByteChannel source, final Path target, final MessageDigest digest)
+            throws IOException {
+        return transferFrom(digesting(source, digest), target);
+    }
+
+    /**
+     * Writes given channel into the target file at a fixed position, leaving
+     * the rest of the file as it is. Parts of one file may be written
+     * concurrently.
+     *
+     * @param source
+     *            to read from until its end
+     * @param target
+     *            file to write, created if it does not exist
+     * @param position
+     *            in the target file to start at
+     * @param digest
+     *            to update with the written bytes or <code>null</code>
+     * @return number of bytes written
+     * @throws IOException
+     *             if reading or writing fails
+     */
+    public long write(final ReadableByteChannel source, final Path target, final long position,
+            final MessageDigest digest) throws IOException {
+        final ReadableByteChannel in = digest == null ? source : digesting(source, digest);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long written = 0;
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    written += out.write(buffer, position + written);
+                }
+                buffer.clear();
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Sets the final size of a file before its parts are written, so they do
+     * not extend it one after the other.
+     *
+     * @param target
+     *            file, created if it does not exist
+     * @param size
+     *            of the file in bytes
+     * @throws IOException
+     *             if the file cannot be resized
+     */
+    public void preallocate(final Path target, final long size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(target.toFile(), "rw")) {
+            file.setLength(size);
+        }
+    }
+
+    private static ReadableByteChannel digesting(final ReadableByteChannel source, final MessageDigest digest) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(final ByteBuffer dst) throws IOException {
+                final int start = dst.position();
+                final int read = source.read(dst);
+                if (read > 0) {
+                    final ByteBuffer transferred = dst.duplicate();
+                    transferred.position(start).limit(start + read);
+                    digest.update(transferred);
+                }
+                return read;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return source.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                source.close();
+            }
+        };
+    }
+
+    /**
+     * @param file
+     *            to read
+     * @param digest
+     *            to update with the content of the file
+     * @throws IOException
+     *             if reading fails
+     */
+    public void digest(final Path file, final MessageDigest digest) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(DIGEST_BUFFER_BYTES);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Removes all artifacts of given request from the spool area.
+     *
+     * @param id
+     *            of the request
+     */
+    public void release(final String id) {
+        final Path directory = directory(id);
+        if (!FileUtils.deleteQuietly(directory.toFile())) {
+            log.debug("Nothing to release in spool directory {}", directory);
+        }
+    }
+
+    private Path directory(final String id) {
+        return root.resolve(id);
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data.model;
+
+import java.util.Date;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * Protected file of a {@link ProtectionRequest} that can be reused for
+ * requests with the same content, user and rights.
+ */
+@Document(collection = "protectedcontents")
+@Getter
+@Setter
+@ToString
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProtectedContent {
+
+    /**
+     * SHA-256 of the source file, user and rights.
+     */
+    @Id
+    private String key;
+
+    private String requestId;
+
+    private String fileName;
+
+    private Date createdAt;
+}
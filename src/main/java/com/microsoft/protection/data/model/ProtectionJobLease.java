@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data.model;
+
+import java.util.Date;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * Lease of a worker on the {@link ProtectionRequest} with the same id. Leases
+ * that are not renewed in time expire and the request is claimed by another
+ * worker.
+ */
+@Document(collection = "protectionjobleases")
+@Getter
+@Setter
+@ToString
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProtectionJobLease {
+
+    @Id
+    private String id;
+
+    private String owner;
+
+    @Indexed
+    private Date expiresAt;
+
+    private int attempts;
+}
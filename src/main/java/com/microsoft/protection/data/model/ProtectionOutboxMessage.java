@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data.model;
+
+import java.util.Date;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * Completion message of the {@link ProtectionRequest} with the same id that
+ * has not been confirmed by the broker yet.
+ */
+@Document(collection = "protectionoutbox")
+@Getter
+@Setter
+@ToString(exclude = "payload")
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProtectionOutboxMessage {
+
+    @Id
+    private String id;
+
+    private String payload;
+
+    /**
+     * Trace the message was recorded in, in B3 single header format.
+     */
+    private String trace;
+
+    /**
+     * The message is only picked up from the database after that time, until
+     * then it is expected to be in flight.
+     */
+    @Indexed
+    private Date nextAttemptAt;
+
+    private int attempts;
+}
@@ -14,6 +14,10 @@ import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
 
 import org.hibernate.validator.constraints.URL;
+import org.springframework.data.annotation.CreatedDate;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.util.CollectionUtils;
 import org.springframework.util.StringUtils;
@@ -25,6 +29,8 @@ import lombok.Setter;
 import lombok.ToString;
 
 @Document(collection = "protectionrequests")
+@CompoundIndexes({ @CompoundIndex(name = "status_createdAt", def = "{ 'status': 1, 'createdAt': 1 }"),
+        @CompoundIndex(name = "user_createdAt", def = "{ 'user': 1, 'createdAt': 1 }") })
 @Getter
 @Setter
 @ToString
@@ -47,9 +53,41 @@ public class ProtectionRequest extends BaseEntity {
     @Size(max = 1024)
     private String statusReason;
 
+    // null values are not stored, so the index only covers requests with one
     @Size(max = 256)
+    @Indexed(unique = true, sparse = true)
     private String correlationId;
 
+    @Indexed(sparse = true)
+    private String batchId;
+
+    /**
+     * The client uploads the file to the incoming container itself, see
+     * {@link Status#AWAITING_UPLOAD}.
+     */
+    private boolean directUpload;
+
+    /**
+     * ETag of the file in the incoming container when the upload was
+     * committed, the file is only protected in that version.
+     */
+    private String incomingEtag;
+
+    /**
+     * Chunk size of a resumable upload through the service, <code>null</code>
+     * for all other requests.
+     */
+    private Integer chunkSize;
+
+    /**
+     * Indexes of the chunks of a resumable upload that have been staged in the
+     * incoming container, <code>null</code> until the first one is.
+     */
+    private Set<Integer> receivedChunks;
+
+    @NotNull
+    private Priority priority = Priority.INTERACTIVE;
+
     @URL(regexp = "^(http|https)")
     private String url;
 
@@ -60,6 +98,9 @@ public class ProtectionRequest extends BaseEntity {
 
     private Long size;
 
+    @CreatedDate
+    private Date createdAt;
+
     // TODO: implement including introducing an extra status
     private Date validUntil;
 
@@ -75,6 +116,21 @@ public class ProtectionRequest extends BaseEntity {
         }
     }
 
+    /**
+     * @return number of chunks of a resumable upload, 0 for other requests
+     */
+    public int getChunkCount() {
+        return chunkSize == null ? 0 : (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * @return whether the file is uploaded to the incoming container, directly
+     *         or in chunks
+     */
+    public boolean isIncomingUpload() {
+        return directUpload || chunkSize != null;
+    }
+
     public String getRightsAsString() {
         return rights.stream().map(Enum::toString).collect(Collectors.joining(","));
     }
@@ -87,11 +143,32 @@ public class ProtectionRequest extends BaseEntity {
         READ, VIEW;
     }
 
+    /**
+     * Lane of the request in the
+     * {@link com.microsoft.protection.controller.ProtectionJobScheduler}.
+     */
+    public enum Priority {
+        INTERACTIVE, BULK;
+    }
+
     public enum Status {
+        /**
+         * Upload session is open, protection starts once the client commits
+         * the upload.
+         */
+        AWAITING_UPLOAD,
+
         PROCESSING,
 
         COMPLETE,
 
         ERROR;
+
+        /**
+         * @return <code>true</code> if the request does not change anymore
+         */
+        public boolean isFinal() {
+            return this == COMPLETE || this == ERROR;
+        }
     }
 }
@@ -0,0 +1,24 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.error;
+
+import lombok.Getter;
+
+/**
+ * Thrown if a request with the same correlation id exists already.
+ */
+@Getter
+public class DuplicateProtectionRequestException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String existingId;
+
+    public DuplicateProtectionRequestException(final String message, final String existingId,
+            final Throwable cause) {
+        super(message, cause);
+        this.existingId = existingId;
+    }
+}
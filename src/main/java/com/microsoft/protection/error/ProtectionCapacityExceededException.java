@@ -0,0 +1,24 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.error;
+
+import lombok.Getter;
+
+/**
+ * Thrown if the service has no capacity left to accept another protection
+ * job. Callers are expected to retry after {@link #getRetryAfterSeconds()}.
+ */
+@Getter
+public class ProtectionCapacityExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int retryAfterSeconds;
+
+    public ProtectionCapacityExceededException(final String message, final int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.mip;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.springframework.util.StringUtils;
+
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.error.ProtectionFailedException;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Common base for {@link MipSdkCaller}s that drive the MIP SDK file sample
+ * either as one shot CLI or as long lived worker.
+ */
+@RequiredArgsConstructor
+abstract class AbstractMipSdkCaller implements MipSdkCaller {
+
+    protected final ProtectionServiceProperties protectionServiceProperties;
+
+    protected String buildMipSdkArguments(final ProtectionRequest request, final File toProtect,
+            final String accessToken) {
+        final StringBuilder sdkCall = new StringBuilder();
+
+        sdkCall.append("--username ");
+        sdkCall.append(protectionServiceProperties.getUser());
+        sdkCall.append(" ");
+
+        sdkCall.append("--rights ");
+        sdkCall.append(request.getRightsAsString());
+        sdkCall.append(" ");
+
+        sdkCall.append("--protect ");
+        sdkCall.append(request.getUser());
+        sdkCall.append(" ");
+
+        sdkCall.append("--clientid ");
+        sdkCall.append(protectionServiceProperties.getAad().getClientId());
+        sdkCall.append(" ");
+
+        sdkCall.append("--protectiontoken ");
+        sdkCall.append(accessToken);
+        sdkCall.append(" ");
+
+        sdkCall.append("--protectionbaseurl ");
+        sdkCall.append(protectionServiceProperties.getProtectionBaseurl());
+        sdkCall.append(" ");
+
+        sdkCall.append("--file ");
+        sdkCall.append(toProtect.getAbsolutePath());
+        sdkCall.append(" ");
+
+        return sdkCall.toString();
+    }
+
+    /**
+     * Replaces the unprotected file with the protected one as reported by the
+     * MIP SDK, i.e. the last token of its output.
+     *
+     * @param output
+     *            of the MIP SDK call
+     * @param toProtect
+     *            the original file
+     * @return the protected file, located at the path of the original file
+     */
+    protected static File replaceWithProtectedFile(final String output, final File toProtect) {
+        if (!StringUtils.hasText(output)) {
+            throw new ProtectionFailedException("Failed to protect file: no result from MIP SDK.");
+        }
+
+        final String[] items = output.split(" ");
+        final File protectedFile = new File(items[items.length - 1].trim());
+
+        if (!protectedFile.getAbsoluteFile().exists()) {
+            throw new ProtectionFailedException(
+                    "MIP SDK has no created a protected file (returned with with message: " + output + ")");
+        }
+
+        try {
+            FileUtils.forceDelete(toProtect);
+        } catch (final IOException e) {
+            throw new ProtectionFailedException("Failed to delete " + toProtect, e);
+        }
+
+        if (!protectedFile.renameTo(toProtect.getAbsoluteFile())) {
+            throw new ProtectionFailedException("Failed to rename " + protectedFile + " to " + toProtect);
+        }
+
+        return toProtect;
+    }
+}
@@ -9,9 +9,7 @@ import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.time.StopWatch;
-import org.springframework.util.StringUtils;
 import org.zeroturnaround.exec.InvalidExitValueException;
 import org.zeroturnaround.exec.ProcessExecutor;
 import org.zeroturnaround.exec.stream.slf4j.Slf4jStream;
@@ -20,14 +18,15 @@ import com.microsoft.protection.ProtectionServiceProperties;
 import com.microsoft.protection.data.model.ProtectionRequest;
 import com.microsoft.protection.error.ProtectionFailedException;
 
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
-@RequiredArgsConstructor
 @Slf4j
-public class FileSampleMipSdkCaller implements MipSdkCaller {
+public class FileSampleMipSdkCaller extends AbstractMipSdkCaller {
     private static final int CLI_CALL_TIMEOUT_SECONDS = 60;
-    private final ProtectionServiceProperties protectionServiceProperties;
+
+    public FileSampleMipSdkCaller(final ProtectionServiceProperties protectionServiceProperties) {
+        super(protectionServiceProperties);
+    }
 
     @Override
     public File protect(final ProtectionRequest request, final File toProtect, final String accessToken) {
@@ -49,69 +48,18 @@ public class FileSampleMipSdkCaller implements MipSdkCaller {
             Thread.currentThread().interrupt();
         }
 
-        if (!StringUtils.hasText(output)) {
-            throw new ProtectionFailedException("Failed to protect file: no result from MIP SDK.");
-        }
-
-        final String[] items = output.split(" ");
-        final File protectedFile = new File(items[items.length - 1].trim());
-
-        if (!protectedFile.getAbsoluteFile().exists()) {
-            throw new ProtectionFailedException(
-                    "MIP SDK has no created a protected file (returned with with message: " + output + ")");
-        }
-
-        try {
-            FileUtils.forceDelete(toProtect);
-        } catch (final IOException e) {
-            throw new ProtectionFailedException("Failed to delete " + toProtect, e);
-        }
-
-        if (!protectedFile.renameTo(toProtect.getAbsoluteFile())) {
-            throw new ProtectionFailedException("Failed to rename " + protectedFile + " to " + toProtect);
-        }
+        final File protectedFile = replaceWithProtectedFile(output, toProtect);
 
         watch.stop();
         log.info("Completed protection of : {} in {} ms", protectedFile.getAbsolutePath(), watch.getTime());
 
-        return toProtect;
+        return protectedFile;
 
     }
 
     private String buildMipSdkCall(final ProtectionRequest request, final File toProtect, final String accessToken) {
-        final StringBuilder sdkCall = new StringBuilder();
-        sdkCall.append(protectionServiceProperties.getFileApiCli());
-        sdkCall.append(" ");
-
-        sdkCall.append("--username ");
-        sdkCall.append(protectionServiceProperties.getUser());
-        sdkCall.append(" ");
-
-        sdkCall.append("--rights ");
-        sdkCall.append(request.getRightsAsString());
-        sdkCall.append(" ");
-
-        sdkCall.append("--protect ");
-        sdkCall.append(request.getUser());
-        sdkCall.append(" ");
-
-        sdkCall.append("--clientid ");
-        sdkCall.append(protectionServiceProperties.getAad().getClientId());
-        sdkCall.append(" ");
-
-        sdkCall.append("--protectiontoken ");
-        sdkCall.append(accessToken);
-        sdkCall.append(" ");
-
-        sdkCall.append("--protectionbaseurl ");
-        sdkCall.append(protectionServiceProperties.getProtectionBaseurl());
-        sdkCall.append(" ");
-
-        sdkCall.append("--file ");
-        sdkCall.append(toProtect.getAbsolutePath());
-        sdkCall.append(" ");
-
-        return sdkCall.toString();
+        return protectionServiceProperties.getFileApiCli() + " "
+                + buildMipSdkArguments(request, toProtect, accessToken);
     }
 
 }
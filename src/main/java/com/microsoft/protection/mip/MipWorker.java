@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.mip;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A long lived MIP SDK worker process that accepts protection jobs line by
+ * line on stdin and answers each with one line on stdout:
+ * <ul>
+ * <li>{@code PING} is answered with {@code PONG}</li>
+ * <li>file sample arguments are answered with {@code OK <protected file>} or
+ * {@code ERROR <message>}</li>
+ * </ul>
+ */
+@Slf4j
+class MipWorker implements Closeable {
+    static final String PING = "PING";
+    static final String PONG = "PONG";
+    static final String OK = "OK ";
+
+    @Getter
+    private final int number;
+    private final Process process;
+    private final BufferedWriter stdin;
+    private final BufferedReader stdout;
+
+    @Getter
+    private int jobs;
+
+    private MipWorker(final int number, final Process process) {
+        this.number = number;
+        this.process = process;
+        this.stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        this.stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    static MipWorker start(final int number, final String command) throws IOException {
+        final Process process = new ProcessBuilder(command.split(" ")).redirectError(Redirect.INHERIT).start();
+        log.info("Started MIP worker {} (pid {})", number, process.pid());
+        return new MipWorker(number, process);
+    }
+
+    boolean isAlive() {
+        return process.isAlive();
+    }
+
+    /**
+     * Sends a job to the worker and waits for its answer.
+     *
+     * @param line
+     *            to send
+     * @param timeout
+     *            to wait for the answer
+     * @param unit
+     *            of the timeout
+     * @param ioExecutor
+     *            to read the answer on
+     * @return the answer line of the worker
+     * @throws IOException
+     *             if the worker is gone or closed its output
+     * @throws TimeoutException
+     *             if the worker did not answer in time
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    String execute(final String line, final long timeout, final TimeUnit unit, final ExecutorService ioExecutor)
+            throws IOException, TimeoutException, InterruptedException {
+        jobs++;
+
+        stdin.write(line);
+        stdin.newLine();
+        stdin.flush();
+
+        final Future<String> answer = ioExecutor.submit((Callable<String>) stdout::readLine);
+        final String result;
+        try {
+            result = answer.get(timeout, unit);
+        } catch (final ExecutionException e) {
+            throw new IOException("Failed to read answer of MIP worker " + number, e.getCause());
+        } catch (final TimeoutException e) {
+            // interrupting does not unblock the read, the end of the stream
+            // does
+            abort();
+            answer.cancel(true);
+            throw e;
+        }
+
+        if (result == null) {
+            throw new IOException("MIP worker " + number + " closed its output");
+        }
+
+        return result;
+    }
+
+    boolean ping(final long timeout, final TimeUnit unit, final ExecutorService ioExecutor) {
+        try {
+            final boolean pong = PONG.equals(execute(PING, timeout, unit, ioExecutor));
+            // health checks are not jobs
+            jobs--;
+            return pong;
+        } catch (IOException | TimeoutException e) {
+            log.warn("MIP worker {} failed health check", number, e);
+            return false;
+        } catch (final InterruptedException e) {
+            log.warn("Interrupted!", e);
+            // Restore interrupted state...
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Kills the worker including the processes it started, so that nothing
+     * holds on to its output anymore, and closes the streams.
+     */
+    private void abort() {
+        log.warn("Aborting MIP worker {}", number);
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+        closeQuietly(process.getOutputStream());
+        closeQuietly(process.getInputStream());
+    }
+
+    private void closeQuietly(final Closeable stream) {
+        try {
+            stream.close();
+        } catch (final IOException e) {
+            log.debug("Failed to close stream of MIP worker {}", number, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        log.info("Stopping MIP worker {} after {} jobs", number, jobs);
+        process.descendants().forEach(ProcessHandle::destroy);
+        process.destroy();
+        try {
+            if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        } catch (final InterruptedException e) {
+            process.destroyForcibly();
+            // Restore interrupted state...
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.mip;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.time.StopWatch;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.ProtectionServiceProperties.MipPool;
+import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.error.ProtectionFailedException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link MipSdkCaller} that keeps a pool of long lived {@link MipWorker}s so
+ * that process start, SDK initialization and policy download are paid once
+ * per worker instead of once per file.
+ * <p>
+ * A supervisor keeps the pool at its configured size, health checks idle
+ * workers and restarts crashed ones. Workers are recycled after
+ * {@link MipPool#getMaxJobsPerWorker()} jobs.
+ */
+@Slf4j
+public class PooledMipSdkCaller extends AbstractMipSdkCaller implements AutoCloseable {
+    private static final int PING_TIMEOUT_SECONDS = 10;
+
+    private final MipPool pool;
+    private final BlockingQueue<MipWorker> idle = new LinkedBlockingQueue<>();
+    private final AtomicInteger live = new AtomicInteger();
+    private final AtomicInteger numbers = new AtomicInteger();
+
+    private final ScheduledExecutorService supervisor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("mip-supervisor-%d").setDaemon(true).build());
+    private final ExecutorService ioExecutor = Executors
+            .newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("mip-io-%d").setDaemon(true).build());
+
+    public PooledMipSdkCaller(final ProtectionServiceProperties protectionServiceProperties) {
+        super(protectionServiceProperties);
+        this.pool = protectionServiceProperties.getMipPool();
+
+        Assert.isTrue(StringUtils.hasText(pool.getWorkerCommand()), "MIP worker command must not be empty");
+
+        supervisor.scheduleWithFixedDelay(this::supervise, 0, pool.getHealthCheckIntervalSeconds(),
+                TimeUnit.SECONDS);
+    }
+
+    @Override
+    public File protect(final ProtectionRequest request, final File toProtect, final String accessToken) {
+        final StopWatch watch = new StopWatch();
+        watch.start();
+
+        final MipWorker worker = acquire();
+        boolean healthy = false;
+        String answer = null;
+        try {
+            answer = worker.execute(buildMipSdkArguments(request, toProtect, accessToken),
+                    pool.getJobTimeoutMinutes(), TimeUnit.MINUTES, ioExecutor);
+            healthy = true;
+        } catch (IOException | TimeoutException e) {
+            throw new ProtectionFailedException("Failed to protect " + toProtect, e);
+        } catch (final InterruptedException e) {
+            log.warn("Interrupted!", e);
+            // Restore interrupted state...
+            Thread.currentThread().interrupt();
+        } finally {
+            release(worker, healthy);
+        }
+
+        if (answer != null && !answer.startsWith(MipWorker.OK)) {
+            throw new ProtectionFailedException("MIP worker failed to protect " + toProtect + ": " + answer);
+        }
+
+        final File protectedFile = replaceWithProtectedFile(
+                answer == null ? null : answer.substring(MipWorker.OK.length()), toProtect);
+
+        watch.stop();
+        log.info("Completed protection of : {} in {} ms on worker {}", protectedFile.getAbsolutePath(),
+                watch.getTime(), worker.getNumber());
+
+        return protectedFile;
+    }
+
+    private MipWorker acquire() {
+        try {
+            final MipWorker worker = idle.poll(pool.getAcquireTimeoutSeconds(), TimeUnit.SECONDS);
+            if (worker == null) {
+                throw new ProtectionFailedException(
+                        "No MIP worker available within " + pool.getAcquireTimeoutSeconds() + " seconds");
+            }
+            return worker;
+        } catch (final InterruptedException e) {
+            // Restore interrupted state...
+            Thread.currentThread().interrupt();
+            throw new ProtectionFailedException("Interrupted while waiting for MIP worker", e);
+        }
+    }
+
+    private void release(final MipWorker worker, final boolean healthy) {
+        if (healthy && worker.isAlive() && worker.getJobs() < pool.getMaxJobsPerWorker()) {
+            idle.offer(worker);
+            return;
+        }
+
+        retire(worker);
+        supervisor.execute(this::replenish);
+    }
+
+    private void retire(final MipWorker worker) {
+        live.decrementAndGet();
+        worker.close();
+    }
+
+    private void supervise() {
+        try {
+            healthCheck();
+            replenish();
+        } catch (final RuntimeException e) {
+            log.error("Failed to supervise MIP workers", e);
+        }
+    }
+
+    private void healthCheck() {
+        final int toCheck = idle.size();
+        for (int i = 0; i < toCheck; i++) {
+            final MipWorker worker = idle.poll();
+            if (worker == null) {
+                return;
+            }
+
+            if (worker.isAlive() && worker.ping(PING_TIMEOUT_SECONDS, TimeUnit.SECONDS, ioExecutor)) {
+                idle.offer(worker);
+            } else {
+                log.warn("MIP worker {} is not healthy, restarting", worker.getNumber());
+                retire(worker);
+            }
+        }
+    }
+
+    private void replenish() {
+        while (live.get() < pool.getSize()) {
+            try {
+                final MipWorker worker = MipWorker.start(numbers.incrementAndGet(), pool.getWorkerCommand());
+                live.incrementAndGet();
+                idle.offer(worker);
+            } catch (final IOException e) {
+                log.error("Failed to start MIP worker, retrying in {} seconds", pool.getHealthCheckIntervalSeconds(),
+                        e);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        supervisor.shutdownNow();
+        MipWorker worker;
+        while ((worker = idle.poll()) != null) {
+            retire(worker);
+        }
+        ioExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.awaitility.Awaitility;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microsoft.protection.ProtectionServiceProperties;
+
+public class AadHandlerTest {
+    private static final String RESOURCE = "https://protection.here";
+
+    private final ProtectionServiceProperties properties = new ProtectionServiceProperties();
+    private final AtomicInteger calls = new AtomicInteger();
+    private final CountDownLatch blocked = new CountDownLatch(1);
+    private final ExecutorService callers = Executors.newFixedThreadPool(8);
+    private volatile long lifetimeMillis = TimeUnit.HOURS.toMillis(1);
+    private AadHandler aadHandler;
+
+    @Before
+    public void setUp() {
+        properties.getAad().setExpiryBufferMillis(0);
+        aadHandler = new AadHandler(properties, key -> {
+            if ("slow".equals(key.getTenant())) {
+                await(blocked);
+            }
+            return new AadHandler.Token(key.getTenant() + "-" + calls.incrementAndGet(),
+                    System.currentTimeMillis() + lifetimeMillis);
+        });
+    }
+
+    @After
+    public void tearDown() {
+        blocked.countDown();
+        callers.shutdownNow();
+        aadHandler.close();
+    }
+
+    @Test
+    public void testConcurrentAcquisitionsAreCoalesced() throws Exception {
+        final List<Future<Optional<String>>> tokens = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            tokens.add(callers.submit(() -> aadHandler.getAccessToken("slow", RESOURCE)));
+        }
+
+        // all callers wait for the same acquisition
+        TimeUnit.MILLISECONDS.sleep(200);
+        blocked.countDown();
+        for (final Future<Optional<String>> token : tokens) {
+            assertThat(token.get(5, TimeUnit.SECONDS)).contains("slow-1");
+        }
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testTokenIsRefreshedAhead() {
+        lifetimeMillis = 400;
+        assertThat(aadHandler.getAccessToken("tenant", RESOURCE)).contains("tenant-1");
+
+        // refreshed half way through its lifetime without anybody waiting
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> calls.get() >= 2);
+        lifetimeMillis = TimeUnit.HOURS.toMillis(1);
+        Awaitility.await().atMost(5, TimeUnit.SECONDS)
+                .until(() -> !aadHandler.getAccessToken("tenant", RESOURCE).get().equals("tenant-1"));
+    }
+
+    @Test
+    public void testIdleTokenIsDropped() throws Exception {
+        properties.getAad().setIdleMillis(100);
+        lifetimeMillis = 400;
+        assertThat(aadHandler.getAccessToken("tenant", RESOURCE)).contains("tenant-1");
+
+        // would have been refreshed a few times if it was still in use
+        TimeUnit.MILLISECONDS.sleep(1000);
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(aadHandler.getAccessToken("tenant", RESOURCE)).contains("tenant-2");
+    }
+
+    @Test
+    public void testSlowTenantDoesNotBlockOthers() {
+        callers.submit(() -> aadHandler.getAccessToken("slow", RESOURCE));
+
+        assertThat(aadHandler.getAccessToken("tenant", RESOURCE)).contains("tenant-1");
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
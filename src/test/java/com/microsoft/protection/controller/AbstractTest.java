@@ -18,6 +18,7 @@ import org.springframework.test.context.junit4.SpringRunner;
 
 import com.microsoft.protection.ProtectionServiceConfiguration;
 import com.microsoft.protection.data.AzureStorageRepository;
+import com.microsoft.protection.data.ProtectedContentRepository;
 import com.microsoft.protection.data.ProtectionRequestRepository;
 import com.microsoft.protection.data.model.ProtectionRequest;
 import com.microsoft.protection.data.model.ProtectionRequest.Right;
@@ -33,9 +34,13 @@ public abstract class AbstractTest {
     @Autowired
     protected ProtectionRequestRepository protectionRequestRepository;
 
+    @Autowired
+    protected ProtectedContentRepository protectedContentRepository;
+
     @Before
     public void cleanup() {
         protectionRequestRepository.deleteAll();
+        protectedContentRepository.deleteAll();
     }
 
     protected ProtectionRequest storeTestRequest() {
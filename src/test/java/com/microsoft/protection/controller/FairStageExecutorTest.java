@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.ProtectionServiceProperties.Scheduler.Lane;
+import com.microsoft.protection.data.model.ProtectionRequest.Priority;
+
+public class FairStageExecutorTest {
+
+    private final ProtectionServiceProperties.Scheduler properties = new ProtectionServiceProperties.Scheduler();
+    private final List<String> order = Collections.synchronizedList(new ArrayList<>());
+    private ThreadPoolExecutor pool;
+
+    @After
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testTenantsTakeTurns() throws Exception {
+        final FairStageExecutor executor = newExecutor(1);
+        final CountDownLatch blocked = block(executor);
+
+        final CountDownLatch done = new CountDownLatch(4);
+        run(executor, Priority.INTERACTIVE, "a", "a1", done);
+        run(executor, Priority.INTERACTIVE, "a", "a2", done);
+        run(executor, Priority.INTERACTIVE, "a", "a3", done);
+        run(executor, Priority.INTERACTIVE, "b", "b1", done);
+        assertThat(executor.getQueued(Priority.INTERACTIVE)).isEqualTo(4);
+        assertThat(executor.getWaitingTenants(Priority.INTERACTIVE)).isEqualTo(2);
+
+        blocked.countDown();
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(order).containsExactly("a1", "b1", "a2", "a3");
+        assertThat(executor.getQueued()).isEqualTo(0);
+    }
+
+    @Test
+    public void testLanesShareByWeight() throws Exception {
+        properties.setInteractive(new Lane(2, 100, 100));
+        properties.setBulk(new Lane(1, 100, 100));
+        final FairStageExecutor executor = newExecutor(1);
+        final CountDownLatch blocked = block(executor);
+
+        final CountDownLatch done = new CountDownLatch(9);
+        for (int i = 0; i < 3; i++) {
+            run(executor, Priority.BULK, "backfill", "bulk", done);
+        }
+        for (int i = 0; i < 6; i++) {
+            run(executor, Priority.INTERACTIVE, "user", "interactive", done);
+        }
+
+        blocked.countDown();
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(order).containsExactly("bulk", "interactive", "interactive", "bulk", "interactive",
+                "interactive", "bulk", "interactive", "interactive");
+    }
+
+    @Test
+    public void testLaneConcurrencyIsCapped() throws Exception {
+        properties.setBulk(new Lane(1, 100, 50));
+        final FairStageExecutor executor = newExecutor(4);
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int i = 0; i < 8; i++) {
+            executor.forJob(Priority.BULK, "backfill").execute(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    TimeUnit.MILLISECONDS.sleep(20);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+        assertThat(executor.getRunning(Priority.BULK)).isEqualTo(2);
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(maxRunning.get()).isEqualTo(2);
+    }
+
+    private FairStageExecutor newExecutor(final int concurrency) {
+        pool = new ThreadPoolExecutor(concurrency, concurrency, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        return new FairStageExecutor(pool, concurrency, properties);
+    }
+
+    /**
+     * Occupies the only thread until the returned latch is counted down, so
+     * that the following tasks queue up.
+     */
+    private CountDownLatch block(final FairStageExecutor executor) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        executor.forJob(Priority.INTERACTIVE, "blocker").execute(() -> {
+            started.countDown();
+            try {
+                blocked.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        return blocked;
+    }
+
+    private void run(final FairStageExecutor executor, final Priority priority, final String tenant,
+            final String name, final CountDownLatch done) {
+        executor.forJob(priority, tenant).execute(() -> {
+            order.add(name);
+            done.countDown();
+        });
+    }
+}
@@ -5,15 +5,30 @@
 package com.microsoft.protection.controller;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -25,8 +40,11 @@ import org.springframework.mock.web.MockMultipartFile;
 
 import com.google.common.io.Files;
 import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.error.ProtectionFailedException;
 import com.microsoft.protection.mip.MipSdkCaller;
 
+import io.micrometer.core.instrument.MeterRegistry;
+
 public class MipHandlerTest extends AbstractTest {
 
     @MockBean
@@ -41,6 +59,9 @@ public class MipHandlerTest extends AbstractTest {
     @Autowired
     private ProtectionHandler mipHandler;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     @LocalServerPort
     private int randomServerPort;
 
@@ -68,7 +89,11 @@ public class MipHandlerTest extends AbstractTest {
 
         final String testAccessToken = UUID.randomUUID().toString();
         when(aadHandler.getAccessToken()).thenReturn(Optional.of(testAccessToken));
-        when(mipSdkCaller.protect(eq(test), any(File.class), eq(testAccessToken))).thenReturn(testProtectFile);
+        final AtomicReference<byte[]> toProtectContent = new AtomicReference<>();
+        when(mipSdkCaller.protect(eq(test), any(File.class), eq(testAccessToken))).thenAnswer(invocation -> {
+            toProtectContent.set(Files.toByteArray(invocation.getArgument(1)));
+            return testProtectFile;
+        });
 
         // test
         mipHandler.protect(test, mockMultipartFile);
@@ -80,7 +105,8 @@ public class MipHandlerTest extends AbstractTest {
 
         final ArgumentCaptor<File> fileCaptor = ArgumentCaptor.forClass(File.class);
         verify(mipSdkCaller, timeout(2_000)).protect(eq(test), fileCaptor.capture(), eq(testAccessToken));
-        assertThat(Files.toByteArray(fileCaptor.getValue())).isEqualTo(fileContent);
+        assertThat(toProtectContent.get()).isEqualTo(fileContent);
+        assertThat(fileCaptor.getValue()).doesNotExist();
 
     }
 
@@ -89,7 +115,11 @@ public class MipHandlerTest extends AbstractTest {
 
         final String testAccessToken = UUID.randomUUID().toString();
         when(aadHandler.getAccessToken()).thenReturn(Optional.of(testAccessToken));
-        when(mipSdkCaller.protect(eq(test), any(File.class), eq(testAccessToken))).thenReturn(testProtectFile);
+        final AtomicReference<byte[]> toProtectContent = new AtomicReference<>();
+        when(mipSdkCaller.protect(eq(test), any(File.class), eq(testAccessToken))).thenAnswer(invocation -> {
+            toProtectContent.set(Files.toByteArray(invocation.getArgument(1)));
+            return testProtectFile;
+        });
 
         // test
         mipHandler.protect(test);
@@ -101,7 +131,138 @@ public class MipHandlerTest extends AbstractTest {
 
         final ArgumentCaptor<File> fileCaptor = ArgumentCaptor.forClass(File.class);
         verify(mipSdkCaller, timeout(2_000)).protect(eq(test), fileCaptor.capture(), eq(testAccessToken));
-        assertThat(Files.toByteArray(fileCaptor.getValue())).isEqualTo(fileContent);
+        assertThat(toProtectContent.get()).isEqualTo(fileContent);
+        assertThat(fileCaptor.getValue()).doesNotExist();
+    }
+
+    @Test
+    public void testProtectBatchSharesAccessToken() throws Exception {
+        final ProtectionRequest second = storeTestRequest();
+
+        final String testAccessToken = UUID.randomUUID().toString();
+        when(aadHandler.getAccessToken()).thenReturn(Optional.of(testAccessToken));
+        when(mipSdkCaller.protect(any(ProtectionRequest.class), any(File.class), eq(testAccessToken)))
+                .thenReturn(testProtectFile);
+
+        // test
+        mipHandler.protect(List.of(test, second), List.of(mockMultipartFile,
+                new MockMultipartFile("file", "filename.pdf", "application/pdf", fileContent)));
+
+        // verify
+        // recorded together
+        verify(protectionPublisher, timeout(2_000)).orderComplete(List.of(test, second));
+        verify(azureStorageRepository).store(testProtectFile, "application/pdf", test.getId());
+        verify(azureStorageRepository).store(testProtectFile, "application/pdf", second.getId());
+        verify(mipSdkCaller, times(2)).protect(any(ProtectionRequest.class), any(File.class), eq(testAccessToken));
+        verify(aadHandler, times(1)).getAccessToken();
+    }
+
+    @Test
+    public void testProtectReusesProtectedFileOfIdenticalRequest() throws Exception {
+        final String testAccessToken = UUID.randomUUID().toString();
+        when(aadHandler.getAccessToken()).thenReturn(Optional.of(testAccessToken));
+        when(mipSdkCaller.protect(eq(test), any(File.class), eq(testAccessToken))).thenReturn(testProtectFile);
+
+        mipHandler.protect(test, mockMultipartFile);
+        verify(protectionPublisher, timeout(2_000)).orderComplete(test);
+
+        // same content, user and rights
+        final ProtectionRequest second = storeTestRequest();
+        when(azureStorageRepository.copy(test.getId(), testProtectFile.getName(), second.getId(),
+                second.getFileName())).thenReturn(true);
+
+        mipHandler.protect(second, new MockMultipartFile("file", "filename.pdf", "application/pdf", fileContent));
+
+        verify(protectionPublisher, timeout(2_000)).orderComplete(second);
+        verify(azureStorageRepository).copy(test.getId(), testProtectFile.getName(), second.getId(),
+                second.getFileName());
+        verify(mipSdkCaller, never()).protect(eq(second), any(File.class), any(String.class));
+        verify(azureStorageRepository, never()).store(any(File.class), any(String.class), eq(second.getId()));
+        assertThat(protectionRequestRepository.findById(second.getId()).get().getStatus())
+                .isEqualTo(ProtectionRequest.Status.COMPLETE);
+    }
+
+    @Test
+    public void testProtectChunkedUpload() throws Exception {
+        test.setUrl(null);
+        test.setSize((long) fileContent.length);
+        test.setChunkSize(4);
+        test.setStatus(ProtectionRequest.Status.AWAITING_UPLOAD);
+        test = protectionRequestRepository.save(test);
+
+        final String testAccessToken = UUID.randomUUID().toString();
+        when(aadHandler.getAccessToken()).thenReturn(Optional.of(testAccessToken));
+        final AtomicReference<byte[]> toProtectContent = new AtomicReference<>();
+        when(mipSdkCaller.protect(eq(test), any(File.class), eq(testAccessToken))).thenAnswer(invocation -> {
+            toProtectContent.set(Files.toByteArray(invocation.getArgument(1)));
+            return testProtectFile;
+        });
+
+        // the incoming container keeps the staged chunks
+        final Map<Integer, byte[]> staged = new ConcurrentHashMap<>();
+        doAnswer(invocation -> staged.put(invocation.getArgument(2),
+                Files.toByteArray(invocation.<Path>getArgument(3).toFile()))).when(azureStorageRepository)
+                        .stageIncomingChunk(eq(test.getId()), eq(test.getFileName()), anyInt(), any(Path.class));
+        when(azureStorageRepository.openIncoming(test.getId(), test.getFileName(), "etag")).thenAnswer(invocation -> {
+            final ByteArrayOutputStream uploaded = new ByteArrayOutputStream();
+            for (int chunk = 0; chunk < staged.size(); chunk++) {
+                uploaded.write(staged.get(chunk));
+            }
+            return new ByteArrayInputStream(uploaded.toByteArray());
+        });
+
+        // test, out of order and the last chunk is shorter
+        for (final int chunk : new int[] { 2, 0, 1 }) {
+            final byte[] part = Arrays.copyOfRange(fileContent, chunk * 4, Math.min(fileContent.length, chunk * 4 + 4));
+            mipHandler.writeChunk(test, chunk, new ByteArrayInputStream(part),
+                    MessageDigest.getInstance("MD5").digest(part));
+        }
+        // a broken retransmit does not replace the chunk
+        final byte[] first = Arrays.copyOf(fileContent, 4);
+        assertThatThrownBy(() -> mipHandler.writeChunk(test, 0, new ByteArrayInputStream(new byte[4]),
+                MessageDigest.getInstance("MD5").digest(first))).isInstanceOf(ProtectionFailedException.class);
+        assertThat(staged.get(0)).isEqualTo(first);
+
+        test.setStatus(ProtectionRequest.Status.PROCESSING);
+        test.setIncomingEtag("etag");
+        mipHandler.protectUploaded(test);
+
+        // verify
+        verify(protectionPublisher, timeout(2_000)).orderComplete(test);
+        verify(azureStorageRepository).store(testProtectFile, "application/pdf", test.getId());
+        assertThat(toProtectContent.get()).isEqualTo(fileContent);
+        verify(azureStorageRepository, timeout(2_000)).deleteIncoming(test.getId(), test.getFileName());
+    }
+
+    @Test
+    public void testProtectRecordsOperationMetrics() throws Exception {
+        final List<String> operations = List.of("download", "aad.token", "mip.protect", "storage.upload",
+                "mongo.save");
+        final List<Long> before = operations.stream().map(this::operationCount).collect(Collectors.toList());
+        final double completedBefore = completedCount();
+
+        final String testAccessToken = UUID.randomUUID().toString();
+        when(aadHandler.getAccessToken()).thenReturn(Optional.of(testAccessToken));
+        when(mipSdkCaller.protect(eq(test), any(File.class), eq(testAccessToken))).thenReturn(testProtectFile);
+
+        // test
+        mipHandler.protect(test);
+
+        // verify
+        verify(protectionPublisher, timeout(2_000)).orderComplete(test);
+        for (int i = 0; i < operations.size(); i++) {
+            assertThat(operationCount(operations.get(i))).as(operations.get(i)).isEqualTo(before.get(i) + 1);
+        }
+        assertThat(completedCount()).isEqualTo(completedBefore + 1);
+        assertThat(meterRegistry.get(ProtectionTelemetry.OPERATION_SIZE).tag("operation", "download").summary()
+                .max()).isEqualTo((double) test.getSize());
     }
 
+    private long operationCount(final String operation) {
+        return meterRegistry.get(ProtectionTelemetry.OPERATION_TIMER).tag("operation", operation).timer().count();
+    }
+
+    private double completedCount() {
+        return meterRegistry.get(ProtectionTelemetry.REQUESTS).tag("status", "COMPLETE").counter().count();
+    }
 }
@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.awaitility.Awaitility;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.context.TestPropertySource;
+
+import com.microsoft.protection.data.ProtectionJobQueue;
+import com.microsoft.protection.data.model.ProtectionJobLease;
+import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.data.model.ProtectionRequest.Status;
+
+// no job fits into the spool area
+@TestPropertySource(properties = { "com.microsoft.protection.queue.poll-seconds=1",
+        "com.microsoft.protection.scheduler.min-free-spool-bytes=" + Long.MAX_VALUE })
+public class ProtectionJobReclaimerTest extends AbstractTest {
+
+    @Autowired
+    private ProtectionJobQueue jobQueue;
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    @Before
+    public void cleanupLeases() {
+        mongoOperations.dropCollection(ProtectionJobLease.class);
+    }
+
+    @Test
+    public void testLeaseIsNotAbandonedWithoutSpoolSpace() {
+        final ProtectionRequest test = storeTestRequest();
+        jobQueue.enqueue(test.getId());
+        // a worker that is gone, the next claim is the last attempt
+        mongoOperations.updateFirst(Query.query(Criteria.where("id").is(test.getId())),
+                Update.update("expiresAt", new Date(0)).set("owner", "gone").set("attempts", 2),
+                ProtectionJobLease.class);
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS)
+                .until(() -> jobQueue.getWorkerId().equals(lease(test).getOwner()));
+        // a few more polls that find no capacity for it
+        Awaitility.await().pollDelay(2500, TimeUnit.MILLISECONDS).atMost(5, TimeUnit.SECONDS)
+                .until(() -> lease(test) != null);
+
+        assertThat(protectionRequestRepository.findById(test.getId()).get().getStatus())
+                .isEqualTo(Status.PROCESSING);
+        assertThat(lease(test).getAttempts()).isLessThanOrEqualTo(3);
+    }
+
+    private ProtectionJobLease lease(final ProtectionRequest request) {
+        return mongoOperations.findById(request.getId(), ProtectionJobLease.class);
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.awaitility.Awaitility;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.controller.ProtectionJobScheduler.Pool;
+import com.microsoft.protection.controller.ProtectionJobScheduler.Stage;
+import com.microsoft.protection.data.SpoolArea;
+import com.microsoft.protection.data.model.ProtectionRequest.Priority;
+import com.microsoft.protection.error.ProtectionCapacityExceededException;
+
+import brave.Tracing;
+
+public class ProtectionJobSchedulerTest {
+    private static final long MB = 1024L * 1024;
+
+    private final ProtectionServiceProperties properties = new ProtectionServiceProperties();
+    private final SpoolArea spoolArea = mock(SpoolArea.class);
+    private final CountDownLatch fetching = new CountDownLatch(1);
+    private final AtomicInteger fetchingJobs = new AtomicInteger();
+    private ProtectionJobScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        final ProtectionServiceProperties.Scheduler.LargeFiles largeFiles = properties.getScheduler()
+                .getLargeFiles();
+        largeFiles.setThresholdBytes(10 * MB);
+        largeFiles.setMaxSpoolBytes(100 * MB);
+        properties.getScheduler().setMinFreeSpoolBytes(0);
+        when(spoolArea.getUsableSpace()).thenReturn(1024 * MB);
+        scheduler = new ProtectionJobScheduler(properties, Tracing.newBuilder().build(), spoolArea);
+    }
+
+    @After
+    public void tearDown() {
+        fetching.countDown();
+        scheduler.close();
+    }
+
+    @Test
+    public void testLargeFilesHaveTheirOwnBudget() {
+        scheduler.submit(new BlockingJob(40 * MB));
+        assertThat(scheduler.getReservedSpoolBytes(Pool.LARGE)).isEqualTo(80 * MB);
+
+        assertThatThrownBy(() -> scheduler.submit(new BlockingJob(20 * MB)))
+                .isInstanceOf(ProtectionCapacityExceededException.class);
+        // small files are not held up by the large ones
+        scheduler.submit(new BlockingJob(MB));
+        assertThat(scheduler.getReservedSpoolBytes(Pool.SMALL)).isEqualTo(2 * MB);
+
+        fetching.countDown();
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> scheduler.getPendingJobs() == 0);
+        assertThat(scheduler.getReservedSpoolBytes(Pool.LARGE)).isEqualTo(0L);
+        assertThat(scheduler.getReservedSpoolBytes(Pool.SMALL)).isEqualTo(0L);
+    }
+
+    @Test
+    public void testOversizedJobRunsAlone() {
+        scheduler.submit(new BlockingJob(200 * MB));
+
+        assertThatThrownBy(() -> scheduler.submit(new BlockingJob(10 * MB)))
+                .isInstanceOf(ProtectionCapacityExceededException.class);
+    }
+
+    @Test
+    public void testRejectedWithoutSpoolSpace() {
+        when(spoolArea.getUsableSpace()).thenReturn(MB);
+
+        assertThat(scheduler.hasCapacity(Priority.INTERACTIVE, MB)).isFalse();
+        assertThatThrownBy(() -> scheduler.submit(new BlockingJob(MB)))
+                .isInstanceOf(ProtectionCapacityExceededException.class);
+        assertThat(scheduler.getPendingJobs()).isEqualTo(0);
+    }
+
+    @Test
+    public void testFullLaneHasNoCapacity() {
+        properties.getScheduler().setMaxPendingJobs(4);
+        properties.getScheduler().getLane(Priority.BULK).setMaxPendingPercent(50);
+        scheduler.close();
+        scheduler = new ProtectionJobScheduler(properties, Tracing.newBuilder().build(), spoolArea);
+
+        scheduler.submit(new BlockingJob(MB, Priority.BULK));
+        scheduler.submit(new BlockingJob(MB, Priority.BULK));
+
+        assertThat(scheduler.hasCapacity(Priority.BULK)).isFalse();
+        assertThat(scheduler.hasCapacity(Priority.INTERACTIVE)).isTrue();
+        assertThat(scheduler.hasCapacity()).isTrue();
+
+        fetching.countDown();
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> scheduler.hasCapacity(Priority.BULK));
+    }
+
+    @Test
+    public void testThreadPerJobWithVirtualThreads() {
+        properties.getScheduler().setFetchConcurrency(1);
+        properties.getScheduler().getVirtualThreads().setEnabled(true);
+        scheduler.close();
+        scheduler = new ProtectionJobScheduler(properties, Tracing.newBuilder().build(), spoolArea);
+
+        for (int i = 0; i < 5; i++) {
+            scheduler.submit(new BlockingJob(MB));
+        }
+
+        // falls back to platform threads on JDKs without virtual ones
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> fetchingJobs.get() == 5);
+        assertThat(scheduler.getQueuedJobs(Stage.FETCH)).isEqualTo(0);
+    }
+
+    private class BlockingJob implements ProtectionJobScheduler.Job {
+        private final long size;
+        private final Priority priority;
+
+        BlockingJob(final long size) {
+            this(size, Priority.INTERACTIVE);
+        }
+
+        BlockingJob(final long size, final Priority priority) {
+            this.size = size;
+            this.priority = priority;
+        }
+
+        @Override
+        public Priority getPriority() {
+            return priority;
+        }
+
+        @Override
+        public Long getSize() {
+            return size;
+        }
+
+        @Override
+        public void fetch() {
+            fetchingJobs.incrementAndGet();
+            try {
+                fetching.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void protect() {
+            // nothing to protect
+        }
+
+        @Override
+        public void store() {
+            // nothing to store
+        }
+
+        @Override
+        public void complete(final Throwable failure) {
+            // nothing to publish
+        }
+    }
+}
@@ -7,19 +7,33 @@ package com.microsoft.protection.controller;
 import static org.assertj.core.api.Assertions.assertThat;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import org.awaitility.Awaitility;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cloud.stream.messaging.Source;
 import org.springframework.cloud.stream.test.binder.MessageCollector;
+import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.messaging.Message;
+import org.springframework.messaging.MessagingException;
+import org.springframework.messaging.support.ErrorMessage;
+import org.springframework.messaging.support.MessageBuilder;
 
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.microsoft.protection.controller.model.ProtectionRequestGet;
+import com.microsoft.protection.data.ProtectionOutbox;
+import com.microsoft.protection.data.model.ProtectionOutboxMessage;
 import com.microsoft.protection.data.model.ProtectionRequest;
 
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+
 public class ProtectionPublisherTest extends AbstractTest {
 
     @Autowired
@@ -34,13 +48,23 @@ public class ProtectionPublisherTest extends AbstractTest {
     @Autowired
     private ObjectMapper objectMapper;
 
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    @Autowired
+    private ProtectionOutbox outbox;
+
+    @Autowired
+    private Tracing tracing;
+
     @Test
-    public void testOrderComplete() throws JsonParseException, JsonMappingException, IOException {
+    public void testOrderComplete() throws JsonParseException, JsonMappingException, IOException, InterruptedException {
         final ProtectionRequest test = storeTestRequest();
 
         protectionPublisher.orderComplete(test);
 
-        final Message<String> received = (Message<String>) messageCollector.forChannel(source.output()).poll();
+        final Message<String> received = (Message<String>) messageCollector.forChannel(source.output()).poll(5,
+                TimeUnit.SECONDS);
 
         final ProtectionRequestGet payload = objectMapper.readValue(received.getPayload(), ProtectionRequestGet.class);
 
@@ -52,6 +76,72 @@ public class ProtectionPublisherTest extends AbstractTest {
         assertThat(payload.getSize()).isEqualTo(test.getSize());
         assertThat(payload.getRights()).isEqualTo(test.getRightsAsString());
 
+        // removed from the outbox once sent
+        Awaitility.await().atMost(5, TimeUnit.SECONDS)
+                .until(() -> mongoOperations.findById(test.getId(), ProtectionOutboxMessage.class) == null);
+
+    }
+
+    @Test
+    public void testOrderCompleteOfManyRequests() throws InterruptedException {
+        final ProtectionRequest test = storeTestRequest();
+        final ProtectionRequest second = storeTestRequest();
+
+        protectionPublisher.orderComplete(List.of(test, second));
+
+        assertThat(messageCollector.forChannel(source.output()).poll(5, TimeUnit.SECONDS)).isNotNull();
+        assertThat(messageCollector.forChannel(source.output()).poll(5, TimeUnit.SECONDS)).isNotNull();
+        Awaitility.await().atMost(5, TimeUnit.SECONDS)
+                .until(() -> mongoOperations.findById(test.getId(), ProtectionOutboxMessage.class) == null
+                        && mongoOperations.findById(second.getId(), ProtectionOutboxMessage.class) == null);
+    }
+
+    @Test
+    public void testOrderCompleteContinuesTrace() throws InterruptedException {
+        final ProtectionRequest test = storeTestRequest();
+
+        final Span span = tracing.tracer().nextSpan().name("test").start();
+        try (Tracer.SpanInScope scope = tracing.tracer().withSpanInScope(span)) {
+            protectionPublisher.orderComplete(test);
+        } finally {
+            span.finish();
+        }
+
+        final Message<?> received = messageCollector.forChannel(source.output()).poll(5, TimeUnit.SECONDS);
+
+        // sent by the dispatcher, but with the trace context of the caller
+        assertThat(received.getHeaders().values())
+                .anySatisfy(value -> assertThat(String.valueOf(value)).contains(span.context().traceIdString()));
+    }
+
+    @Test
+    public void testNackAfterRemovalIsRetried() {
+        final ProtectionRequest test = storeTestRequest();
+        final ProtectionOutboxMessage message = outbox.add(test.getId(), "{}", null);
+        outbox.remove(List.of(message));
+
+        protectionPublisher.onSendFailure(new ErrorMessage(new MessagingException(
+                MessageBuilder.withPayload("{}".getBytes(StandardCharsets.UTF_8))
+                        .setHeader(ProtectionPublisher.OUTBOX_ID_HEADER, test.getId())
+                        .setHeader(ProtectionPublisher.OUTBOX_ATTEMPTS_HEADER, 0)
+                        .setHeader(ProtectionPublisher.OUTBOX_TRACE_HEADER, "trace").build())));
+
+        final ProtectionOutboxMessage retried = mongoOperations.findById(test.getId(), ProtectionOutboxMessage.class);
+        assertThat(retried).isNotNull();
+        assertThat(retried.getAttempts()).isEqualTo(1);
+        // the retry continues the trace the message was recorded in
+        assertThat(retried.getTrace()).isEqualTo("trace");
+    }
+
+    @Test
+    public void testRemovalAfterRetryKeepsMessage() {
+        final ProtectionRequest test = storeTestRequest();
+        final ProtectionOutboxMessage message = outbox.add(test.getId(), "{}", null);
+        outbox.retry(message);
+
+        outbox.remove(List.of(message));
+
+        assertThat(mongoOperations.findById(test.getId(), ProtectionOutboxMessage.class)).isNotNull();
     }
 
 }
@@ -6,21 +6,32 @@ package com.microsoft.protection.controller;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.hamcrest.CoreMatchers.any;
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.hasSize;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import java.net.URI;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 
 import org.junit.Test;
@@ -29,14 +40,21 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.hateoas.MediaTypes;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.protection.controller.model.ProtectionBatchPost;
 import com.microsoft.protection.controller.model.ProtectionRequestPost;
+import com.microsoft.protection.data.AzureStorageRepository.IncomingFile;
 import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.data.model.ProtectionRequest.Priority;
 import com.microsoft.protection.data.model.ProtectionRequest.Status;
+import com.microsoft.protection.error.ProtectionCapacityExceededException;
+import com.microsoft.protection.error.ProtectionFailedException;
 
 @AutoConfigureMockMvc
 public class ProtectionRequestControllerTest extends AbstractTest {
@@ -50,6 +68,9 @@ public class ProtectionRequestControllerTest extends AbstractTest {
     @Autowired
     private ObjectMapper objectMapper;
 
+    @Autowired
+    private ProtectionStatusEvents statusEvents;
+
     private final ProtectionRequestPost testPost = new ProtectionRequestPost("https://download.here/filename.pdf",
             "user@contoso.com", UUID.randomUUID().toString(), "READ", "filename.pdf", "application/pdf", 123L, null);
 
@@ -80,6 +101,64 @@ public class ProtectionRequestControllerTest extends AbstractTest {
 
     }
 
+    @Test
+    public void testCreateProtectionRequestRejectedWhenSaturated() throws Exception {
+        doThrow(new ProtectionCapacityExceededException("saturated", 7)).when(mipHandler)
+                .protect(Mockito.any(ProtectionRequest.class));
+
+        mvc.perform(post("/v1/protection").contentType(MediaType.APPLICATION_JSON_UTF8)
+                .accept(MediaType.APPLICATION_JSON_UTF8).content(objectMapper.writeValueAsString(testPost)))
+                .andExpect(status().isServiceUnavailable()).andExpect(header().string(HttpHeaders.RETRY_AFTER, "7"));
+
+        assertThat(protectionRequestRepository.count()).isEqualTo(0L);
+    }
+
+    @Test
+    public void testCreateProtectionRequestWithDuplicateCorrelationId() throws Exception {
+        final ProtectionRequest existing = storeTestRequest();
+        testPost.setCorrelationId(existing.getCorrelationId());
+
+        mvc.perform(post("/v1/protection").contentType(MediaType.APPLICATION_JSON_UTF8)
+                .accept(MediaType.APPLICATION_JSON_UTF8).content(objectMapper.writeValueAsString(testPost)))
+                .andExpect(status().isConflict())
+                .andExpect(header().string(HttpHeaders.LOCATION, containsString(existing.getId())));
+
+        assertThat(protectionRequestRepository.count()).isEqualTo(1L);
+        assertThat(protectionRequestRepository.findByCorrelationId(existing.getCorrelationId())).contains(existing);
+        verifyZeroInteractions(mipHandler);
+    }
+
+    @Test
+    public void testCreateProtectionBatch() throws Exception {
+        final ProtectionRequestPost other = new ProtectionRequestPost("https://download.here/other.pdf",
+                "user@contoso.com", null, "READ", "other.pdf", "application/pdf", 42L, null);
+
+        final String created = mvc
+                .perform(post("/v1/protection/batch").contentType(MediaType.APPLICATION_JSON_UTF8)
+                        .accept(MediaType.APPLICATION_JSON_UTF8)
+                        .content(objectMapper.writeValueAsString(new ProtectionBatchPost(List.of(testPost, other)))))
+                .andExpect(status().isCreated()).andExpect(jsonPath("status", is(Status.PROCESSING.toString())))
+                .andExpect(jsonPath("total", is(2))).andReturn().getResponse().getContentAsString();
+        final String batchId = objectMapper.readTree(created).get("id").asText();
+
+        assertThat(protectionRequestRepository.count()).isEqualTo(2L);
+        verify(mipHandler).protect(Mockito.anyList(), Mockito.isNull());
+
+        protectionRequestRepository.findAll().forEach(stored -> {
+            assertThat(stored.getPriority()).isEqualTo(Priority.BULK);
+            stored.setStatus("other.pdf".equals(stored.getFileName()) ? Status.ERROR : Status.COMPLETE);
+            protectionRequestRepository.save(stored);
+        });
+
+        mvc.perform(get("/v1/protection/batch/{batchId}", batchId).accept(MediaType.APPLICATION_JSON_UTF8))
+                .andExpect(status().isOk()).andExpect(jsonPath("status", is(Status.ERROR.toString())))
+                .andExpect(jsonPath("statusCounts.COMPLETE", is(1)))
+                .andExpect(jsonPath("statusCounts.ERROR", is(1)));
+
+        mvc.perform(get("/v1/protection").param("batchId", batchId).accept(MediaTypes.HAL_JSON_UTF8_VALUE))
+                .andExpect(status().isOk()).andExpect(jsonPath("$", hasSize(2)));
+    }
+
     @Test
     public void testCreateProtectionRequestWithUpload() throws Exception {
         final MockMultipartFile mockMultipartFile = new MockMultipartFile("file", "filename.pdf", "application/pdf",
@@ -110,6 +189,80 @@ public class ProtectionRequestControllerTest extends AbstractTest {
 
     }
 
+    @Test
+    public void testCreateUploadSessionAndCommit() throws Exception {
+        final URI uploadUri = new URI("https://storage.here/incoming/filename.pdf?sig=signed");
+        when(azureStorageRepository.getUploadUri(Mockito.anyString(), eq(testPost.getFileName()), Mockito.any()))
+                .thenReturn(uploadUri);
+
+        final String created = mvc
+                .perform(post("/v1/protection/upload-session").contentType(MediaType.APPLICATION_JSON_UTF8)
+                        .accept(MediaType.APPLICATION_JSON_UTF8).content(objectMapper.writeValueAsString(testPost)))
+                .andExpect(status().isCreated()).andExpect(jsonPath("uploadUrl", is(uploadUri.toString())))
+                .andExpect(jsonPath("expiresAt").exists())
+                .andExpect(jsonPath("_links.commit.href", containsString("/commit"))).andReturn().getResponse()
+                .getContentAsString();
+        final String id = objectMapper.readTree(created).get("id").asText();
+
+        final ProtectionRequest awaiting = protectionRequestRepository.findById(id).orElseThrow();
+        assertThat(awaiting.getStatus()).isEqualTo(Status.AWAITING_UPLOAD);
+        assertThat(awaiting.isDirectUpload()).isTrue();
+        assertThat(awaiting.getUrl()).isNull();
+
+        when(azureStorageRepository.getIncoming(id, testPost.getFileName())).thenReturn(Optional.empty());
+        mvc.perform(post("/v1/protection/{id}/commit", id)).andExpect(status().isConflict());
+        verifyZeroInteractions(mipHandler);
+
+        when(azureStorageRepository.getIncoming(id, testPost.getFileName()))
+                .thenReturn(Optional.of(new IncomingFile(testPost.getSize(), "\"etag\"")));
+        mvc.perform(post("/v1/protection/{id}/commit", id).accept(MediaType.APPLICATION_JSON_UTF8))
+                .andExpect(status().isAccepted()).andExpect(jsonPath("status", is(Status.PROCESSING.toString())));
+
+        final ProtectionRequest committed = protectionRequestRepository.findById(id).orElseThrow();
+        assertThat(committed.getStatus()).isEqualTo(Status.PROCESSING);
+        // protected in the version that has been committed
+        assertThat(committed.getIncomingEtag()).isEqualTo("\"etag\"");
+        verify(mipHandler).protectUploaded(committed);
+
+        mvc.perform(post("/v1/protection/{id}/commit", id)).andExpect(status().isConflict());
+    }
+
+    @Test
+    public void testChunkedUploadAndCommit() throws Exception {
+        final String created = mvc
+                .perform(post("/v1/protection/chunked-upload").contentType(MediaType.APPLICATION_JSON_UTF8)
+                        .accept(MediaType.APPLICATION_JSON_UTF8).content(objectMapper.writeValueAsString(testPost)))
+                .andExpect(status().isCreated()).andExpect(jsonPath("uploadUrl", containsString("/chunks")))
+                .andExpect(jsonPath("missingChunks", hasSize(1))).andReturn().getResponse().getContentAsString();
+        final String id = objectMapper.readTree(created).get("id").asText();
+
+        final byte[] chunk = new byte[testPost.getSize().intValue()];
+        final byte[] md5 = MessageDigest.getInstance("MD5").digest(chunk);
+        doThrow(new ProtectionFailedException("Checksum of chunk 0 does not match")).when(mipHandler).writeChunk(
+                Mockito.any(ProtectionRequest.class), eq(0), Mockito.any(),
+                Mockito.argThat(given -> !MessageDigest.isEqual(given, md5)));
+        when(azureStorageRepository.commitIncomingChunks(eq(id), Mockito.anyString(), eq(1)))
+                .thenReturn(new IncomingFile(chunk.length, "etag"));
+
+        mvc.perform(put("/v1/protection/{id}/chunks/{chunk}", id, 0).content(chunk).header("Content-MD5",
+                Base64.getEncoder().encodeToString(new byte[16]))).andExpect(status().isBadRequest());
+        mvc.perform(post("/v1/protection/{id}/commit", id)).andExpect(status().isConflict());
+
+        mvc.perform(put("/v1/protection/{id}/chunks/{chunk}", id, 0).content(chunk).header("Content-MD5",
+                Base64.getEncoder().encodeToString(md5))).andExpect(status().isNoContent());
+        mvc.perform(get("/v1/protection/{id}/upload-session", id).accept(MediaType.APPLICATION_JSON_UTF8))
+                .andExpect(status().isOk()).andExpect(jsonPath("missingChunks", hasSize(0)));
+
+        mvc.perform(post("/v1/protection/{id}/commit", id).accept(MediaType.APPLICATION_JSON_UTF8))
+                .andExpect(status().isAccepted()).andExpect(jsonPath("status", is(Status.PROCESSING.toString())));
+
+        final ProtectionRequest committed = protectionRequestRepository.findById(id).orElseThrow();
+        assertThat(committed.getIncomingEtag()).isEqualTo("etag");
+        verify(mipHandler).protectUploaded(committed);
+        mvc.perform(put("/v1/protection/{id}/chunks/{chunk}", id, 0).content(chunk).header("Content-MD5",
+                Base64.getEncoder().encodeToString(md5))).andExpect(status().isConflict());
+    }
+
     @Test
     public void testGetProtectionRequests() throws Exception {
         ProtectionRequest testStored = storeTestRequest();
@@ -145,6 +298,79 @@ public class ProtectionRequestControllerTest extends AbstractTest {
         verify(azureStorageRepository, times(2)).getUri(testStored.getId(), testStored.getFileName());
     }
 
+    @Test
+    public void testGetProtectionRequestNotModified() throws Exception {
+        final ProtectionRequest testStored = storeTestRequest();
+        final String etag = "\"" + testStored.getVersion() + "\"";
+
+        mvc.perform(get("/v1/protection/{id}", testStored.getId()).accept(MediaType.APPLICATION_JSON_UTF8))
+                .andExpect(status().isOk()).andExpect(header().string(HttpHeaders.ETAG, etag));
+        mvc.perform(get("/v1/protection/{id}", testStored.getId()).accept(MediaType.APPLICATION_JSON_UTF8)
+                .header(HttpHeaders.IF_NONE_MATCH, etag)).andExpect(status().isNotModified());
+    }
+
+    @Test
+    public void testWaitForStatusChange() throws Exception {
+        final ProtectionRequest testStored = storeTestRequest();
+        final String etag = "\"" + testStored.getVersion() + "\"";
+
+        final MvcResult waiting = mvc.perform(get("/v1/protection/{id}", testStored.getId()).param("wait", "30")
+                .header(HttpHeaders.IF_NONE_MATCH, etag).accept(MediaType.APPLICATION_JSON_UTF8))
+                .andExpect(request().asyncStarted()).andReturn();
+
+        testStored.setStatus(Status.COMPLETE);
+        final ProtectionRequest completed = protectionRequestRepository.save(testStored);
+        statusEvents.publish(completed);
+
+        mvc.perform(asyncDispatch(waiting)).andExpect(status().isOk())
+                .andExpect(jsonPath("status", is(Status.COMPLETE.toString())))
+                .andExpect(header().string(HttpHeaders.ETAG, "\"" + completed.getVersion() + "\""));
+
+        // final state does not change anymore
+        final MvcResult done = mvc.perform(get("/v1/protection/{id}", testStored.getId()).param("wait", "30")
+                .header(HttpHeaders.IF_NONE_MATCH, "\"" + completed.getVersion() + "\"")
+                .accept(MediaType.APPLICATION_JSON_UTF8)).andExpect(request().asyncStarted()).andReturn();
+        mvc.perform(asyncDispatch(done)).andExpect(status().isNotModified());
+    }
+
+    @Test
+    public void testGetProtectionRequestsFilteredWithCursor() throws Exception {
+        final ProtectionRequest first = storeTestRequest();
+        final ProtectionRequest second = storeTestRequest();
+        final ProtectionRequest complete = storeTestRequest();
+        complete.setStatus(Status.COMPLETE);
+        protectionRequestRepository.save(complete);
+
+        mvc.perform(get("/v1/protection").param("status", Status.PROCESSING.toString()).param("limit", "1")
+                .accept(MediaTypes.HAL_JSON_UTF8_VALUE)).andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1))).andExpect(jsonPath("[0].id", is(first.getId())))
+                .andExpect(header().string(HttpHeaders.LINK, containsString("after=" + first.getId())));
+
+        mvc.perform(get("/v1/protection").param("status", Status.PROCESSING.toString()).param("limit", "2")
+                .param("after", first.getId()).accept(MediaTypes.HAL_JSON_UTF8_VALUE)).andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1))).andExpect(jsonPath("[0].id", is(second.getId())))
+                .andExpect(header().doesNotExist(HttpHeaders.LINK));
+
+        mvc.perform(get("/v1/protection").param("after", "not-an-id")).andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testStreamProtectionRequests() throws Exception {
+        final ProtectionRequest first = storeTestRequest();
+        final ProtectionRequest second = storeTestRequest();
+
+        final MvcResult result = mvc.perform(get("/v1/protection").param("user", first.getUser())
+                .accept(ProtectionRequestController.NDJSON_VALUE)).andExpect(request().asyncStarted()).andReturn();
+
+        final String[] lines = mvc.perform(asyncDispatch(result)).andExpect(status().isOk()).andReturn()
+                .getResponse().getContentAsString().split("\n");
+
+        assertThat(lines).hasSize(2);
+        assertThat(objectMapper.readTree(lines[0]).get("id").asText()).isEqualTo(first.getId());
+        assertThat(objectMapper.readTree(lines[1]).get("id").asText()).isEqualTo(second.getId());
+        assertThat(objectMapper.readTree(lines[1]).at("/_links/self/href").asText()).endsWith(second.getId());
+    }
+
     @Test
     public void testDeleteProtectionRequest() throws Exception {
         final ProtectionRequest testStored = storeTestRequest();
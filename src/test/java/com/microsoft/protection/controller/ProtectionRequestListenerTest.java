@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.cloud.stream.messaging.Sink;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.test.context.TestPropertySource;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.protection.controller.model.ProtectionRequestPost;
+import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.data.model.ProtectionRequest.Priority;
+import com.microsoft.protection.data.model.ProtectionRequest.Status;
+import com.microsoft.protection.error.ProtectionCapacityExceededException;
+import com.rabbitmq.client.Channel;
+
+@TestPropertySource(properties = "com.microsoft.protection.status-events.listener-poll-seconds=1")
+public class ProtectionRequestListenerTest extends AbstractTest {
+
+    @MockBean
+    private ProtectionHandler mipHandler;
+
+    @Autowired
+    private Sink sink;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private final ProtectionRequestPost testPost = new ProtectionRequestPost("https://download.here/filename.pdf",
+            "user@contoso.com", UUID.randomUUID().toString(), "READ", "filename.pdf", "application/pdf", 123L, null);
+
+    @Test
+    public void testReceiveProtectionRequest() throws Exception {
+        sink.input().send(MessageBuilder.withPayload(objectMapper.writeValueAsBytes(testPost)).build());
+
+        final ProtectionRequest stored = protectionRequestRepository.findByCorrelationId(testPost.getCorrelationId())
+                .orElseThrow();
+        assertThat(stored.getUrl()).isEqualTo(testPost.getUrl());
+        assertThat(stored.getStatus()).isEqualTo(Status.PROCESSING);
+        assertThat(stored.getPriority()).isEqualTo(Priority.BULK);
+        verify(mipHandler).protect(stored);
+    }
+
+    @Test
+    public void testReceiveWaitsForCapacity() throws Exception {
+        doThrow(new ProtectionCapacityExceededException("saturated", 0)).doNothing().when(mipHandler)
+                .protect(Mockito.any(ProtectionRequest.class));
+
+        sink.input().send(MessageBuilder.withPayload(objectMapper.writeValueAsBytes(testPost)).build());
+
+        verify(mipHandler, times(2)).protect(Mockito.any(ProtectionRequest.class));
+        assertThat(protectionRequestRepository.count()).isEqualTo(1L);
+    }
+
+    @Test
+    public void testRedeliveryOfCompletedRequestIsIgnored() throws Exception {
+        final ProtectionRequest existing = storeTestRequest();
+        existing.setStatus(Status.COMPLETE);
+        protectionRequestRepository.save(existing);
+        testPost.setCorrelationId(existing.getCorrelationId());
+
+        sink.input().send(MessageBuilder.withPayload(objectMapper.writeValueAsBytes(testPost)).build());
+
+        assertThat(protectionRequestRepository.count()).isEqualTo(1L);
+        verifyZeroInteractions(mipHandler);
+    }
+
+    @Test
+    public void testRedeliveryIsAcknowledgedOnceFinishedElsewhere() throws Exception {
+        final ProtectionRequest existing = storeTestRequest();
+        existing.setStatus(Status.PROCESSING);
+        protectionRequestRepository.save(existing);
+        testPost.setCorrelationId(existing.getCorrelationId());
+        final Channel channel = mock(Channel.class);
+
+        sink.input().send(MessageBuilder.withPayload(objectMapper.writeValueAsBytes(testPost))
+                .setHeader(AmqpHeaders.CHANNEL, channel).setHeader(AmqpHeaders.DELIVERY_TAG, 1L).build());
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+        // finished by another instance, no status event reaches this one
+        final ProtectionRequest finished = protectionRequestRepository.findById(existing.getId()).orElseThrow();
+        finished.setStatus(Status.COMPLETE);
+        protectionRequestRepository.save(finished);
+
+        verify(channel, timeout(5_000)).basicAck(1L, false);
+        verifyZeroInteractions(mipHandler);
+    }
+
+    @Test
+    public void testRejectedRequestIsNotAcknowledged() throws Exception {
+        doThrow(new IllegalStateException("broken")).when(mipHandler).protect(Mockito.any(ProtectionRequest.class));
+        final Channel channel = mock(Channel.class);
+
+        sink.input().send(MessageBuilder.withPayload(objectMapper.writeValueAsBytes(testPost))
+                .setHeader(AmqpHeaders.CHANNEL, channel).setHeader(AmqpHeaders.DELIVERY_TAG, 1L).build());
+
+        verify(channel).basicReject(1L, false);
+        assertThat(protectionRequestRepository.count()).isEqualTo(0L);
+        // a few polls of the removed request later
+        verify(channel, after(3_000).never()).basicAck(anyLong(), anyBoolean());
+    }
+
+    @Test
+    public void testRejectMalformedRequest() throws Exception {
+        sink.input().send(MessageBuilder.withPayload("not json".getBytes(StandardCharsets.UTF_8)).build());
+        testPost.setUrl(null);
+        sink.input().send(MessageBuilder.withPayload(objectMapper.writeValueAsBytes(testPost)).build());
+
+        assertThat(protectionRequestRepository.count()).isEqualTo(0L);
+        verifyZeroInteractions(mipHandler);
+    }
+}
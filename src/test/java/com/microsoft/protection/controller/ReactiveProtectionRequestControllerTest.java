@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.awaitility.Awaitility;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.protection.controller.model.ProtectionRequestPost;
+import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.data.model.ProtectionRequest.Status;
+import com.microsoft.protection.error.ProtectionCapacityExceededException;
+
+@AutoConfigureMockMvc
+public class ReactiveProtectionRequestControllerTest extends AbstractTest {
+
+    @MockBean
+    private ProtectionHandler mipHandler;
+
+    @Autowired
+    private ProtectionStatusEvents statusEvents;
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private final ProtectionRequestPost testPost = new ProtectionRequestPost("https://download.here/filename.pdf",
+            "user@contoso.com", UUID.randomUUID().toString(), "READ", "filename.pdf", "application/pdf", 123L, null);
+
+    @Test
+    public void testCreateAndGetProtectionRequest() throws Exception {
+        final MvcResult created = mvc
+                .perform(post("/v1/reactive/protection").contentType(MediaType.APPLICATION_JSON_UTF8)
+                        .accept(MediaType.APPLICATION_JSON_UTF8).content(objectMapper.writeValueAsString(testPost)))
+                .andExpect(request().asyncStarted()).andReturn();
+        final String body = mvc.perform(asyncDispatch(created)).andExpect(status().isCreated())
+                .andExpect(jsonPath("status", is(Status.PROCESSING.toString())))
+                .andExpect(jsonPath("_links.self.href", containsString("/v1/reactive/protection/"))).andReturn()
+                .getResponse().getContentAsString();
+        final String id = objectMapper.readTree(body).get("id").asText();
+
+        final ProtectionRequest stored = protectionRequestRepository.findById(id).orElseThrow();
+        assertThat(stored.getCorrelationId()).isEqualTo(testPost.getCorrelationId());
+        verify(mipHandler, timeout(2_000)).protect(stored);
+
+        final MvcResult found = mvc.perform(get("/v1/reactive/protection/{id}", id)
+                .accept(MediaType.APPLICATION_JSON_UTF8)).andExpect(request().asyncStarted()).andReturn();
+        mvc.perform(asyncDispatch(found)).andExpect(status().isOk()).andExpect(jsonPath("id", is(id)));
+
+        final MvcResult missing = mvc.perform(get("/v1/reactive/protection/{id}", "unknown")
+                .accept(MediaType.APPLICATION_JSON_UTF8)).andExpect(request().asyncStarted()).andReturn();
+        mvc.perform(asyncDispatch(missing)).andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void testCreateProtectionRequestRejectedWhenSaturated() throws Exception {
+        doThrow(new ProtectionCapacityExceededException("saturated", 7)).when(mipHandler)
+                .protect(Mockito.any(ProtectionRequest.class));
+
+        final MvcResult created = mvc
+                .perform(post("/v1/reactive/protection").contentType(MediaType.APPLICATION_JSON_UTF8)
+                        .accept(MediaType.APPLICATION_JSON_UTF8).content(objectMapper.writeValueAsString(testPost)))
+                .andExpect(request().asyncStarted()).andReturn();
+        mvc.perform(asyncDispatch(created)).andExpect(status().isServiceUnavailable());
+
+        assertThat(protectionRequestRepository.count()).isEqualTo(0L);
+    }
+
+    @Test
+    public void testStreamStatusUntilFinal() throws Exception {
+        final ProtectionRequest processing = storeTestRequest();
+
+        final MvcResult events = mvc.perform(get("/v1/reactive/protection/{id}/events", processing.getId())
+                .accept(MediaType.TEXT_EVENT_STREAM)).andExpect(request().asyncStarted()).andReturn();
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> statusEvents.getSubscribedRequests() == 1);
+
+        processing.setStatus(Status.COMPLETE);
+        statusEvents.publish(protectionRequestRepository.save(processing));
+
+        mvc.perform(asyncDispatch(events)).andExpect(status().isOk())
+                .andExpect(content().string(containsString("event:" + Status.PROCESSING)))
+                .andExpect(content().string(containsString("event:" + Status.COMPLETE)))
+                .andExpect(content().string(not(containsString("event:" + Status.ERROR))));
+        assertThat(statusEvents.getSubscribedRequests()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.controller;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.Date;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.data.model.ProtectionRequest.Status;
+
+public class UploadSessionSweeperTest extends AbstractTest {
+
+    @Autowired
+    private UploadSessionSweeper sweeper;
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    @Test
+    public void testAbandonedUploadSessionIsRemoved() {
+        final ProtectionRequest abandoned = storeUploadSession();
+        final ProtectionRequest recent = storeUploadSession();
+        mongoOperations.updateFirst(Query.query(Criteria.where("id").is(abandoned.getId())),
+                Update.update("createdAt", new Date(0)), ProtectionRequest.class);
+
+        sweeper.sweep();
+
+        assertThat(protectionRequestRepository.findById(abandoned.getId())).isEmpty();
+        assertThat(protectionRequestRepository.findById(recent.getId())).isPresent();
+        verify(azureStorageRepository).deleteIncoming(abandoned.getId(), abandoned.getFileName());
+        verify(azureStorageRepository, never()).deleteIncoming(recent.getId(), recent.getFileName());
+    }
+
+    @Test
+    public void testCommittedUploadIsKept() {
+        final ProtectionRequest committed = storeUploadSession();
+        mongoOperations.updateFirst(Query.query(Criteria.where("id").is(committed.getId())),
+                Update.update("createdAt", new Date(0)).set("status", Status.PROCESSING), ProtectionRequest.class);
+
+        sweeper.sweep();
+
+        assertThat(protectionRequestRepository.findById(committed.getId())).isPresent();
+        verify(azureStorageRepository, never()).deleteIncoming(anyString(), anyString());
+    }
+
+    private ProtectionRequest storeUploadSession() {
+        final ProtectionRequest request = storeTestRequest();
+        request.setUrl(null);
+        request.setDirectUpload(true);
+        request.setStatus(Status.AWAITING_UPLOAD);
+        return protectionRequestRepository.save(request);
+    }
+}
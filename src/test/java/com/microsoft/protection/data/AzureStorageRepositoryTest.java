@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobContainerPublicAccessType;
+import com.microsoft.azure.storage.blob.BlobProperties;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlobDirectory;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.CopyState;
+import com.microsoft.azure.storage.blob.CopyStatus;
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.error.FileStorageFailedException;
+
+public class AzureStorageRepositoryTest {
+
+    private final ProtectionServiceProperties properties = new ProtectionServiceProperties();
+    private final CloudBlobContainer container = mock(CloudBlobContainer.class);
+    private final CloudBlobContainer incoming = mock(CloudBlobContainer.class);
+    private final CloudBlockBlob blob = mock(CloudBlockBlob.class);
+    private AzureStorageRepository repository;
+
+    @Before
+    public void setUp() throws Exception {
+        properties.setStorageContainerName("protected");
+        properties.getUploadSession().setIncomingContainerName("incoming");
+
+        final CloudStorageAccount storageAccount = mock(CloudStorageAccount.class);
+        final CloudBlobClient blobClient = mock(CloudBlobClient.class);
+        when(storageAccount.createCloudBlobClient()).thenReturn(blobClient);
+        when(blobClient.getContainerReference("protected")).thenReturn(container);
+        when(blobClient.getContainerReference("incoming")).thenReturn(incoming);
+
+        final CloudBlobDirectory directory = mock(CloudBlobDirectory.class);
+        when(container.getDirectoryReference(anyString())).thenReturn(directory);
+        when(incoming.getDirectoryReference(anyString())).thenReturn(directory);
+        when(directory.getBlockBlobReference(anyString())).thenReturn(blob);
+
+        repository = new AzureStorageRepository(storageAccount, properties, mock(BlockUploader.class));
+    }
+
+    @Test
+    public void testContainersAreProvisionedOnFirstUse() throws Exception {
+        verify(container, never()).createIfNotExists(any(), any(), any());
+
+        repository.delete("id", "test.pdf");
+        repository.delete("id", "test.pdf");
+
+        verify(container, times(1)).createIfNotExists(any(BlobContainerPublicAccessType.class), any(), any());
+        verify(incoming, times(1)).createIfNotExists(any(BlobContainerPublicAccessType.class), any(), any());
+    }
+
+    @Test
+    public void testFailedProvisioningIsRetried() throws Exception {
+        when(container.createIfNotExists(any(BlobContainerPublicAccessType.class), any(), any()))
+                .thenThrow(new StorageException("ServerBusy", "unavailable", 503, null, null)).thenReturn(true);
+
+        assertThatThrownBy(() -> repository.delete("id", "test.pdf"))
+                .isInstanceOf(FileStorageFailedException.class);
+        repository.delete("id", "test.pdf");
+
+        verify(container, times(2)).createIfNotExists(any(BlobContainerPublicAccessType.class), any(), any());
+    }
+
+    @Test
+    public void testPendingCopyIsAbortedAfterTimeout() throws Exception {
+        properties.getDedup().setCopyTimeoutSeconds(1);
+        final CopyState copyState = mock(CopyState.class);
+        when(copyState.getStatus()).thenReturn(CopyStatus.PENDING);
+        when(copyState.getCopyId()).thenReturn("copy");
+        when(blob.getCopyState()).thenReturn(copyState);
+
+        assertThatThrownBy(() -> repository.copy("source", "test.pdf", "id", "test.pdf"))
+                .isInstanceOf(FileStorageFailedException.class).hasMessageContaining("timed out");
+
+        verify(blob).abortCopy("copy");
+        verify(blob).deleteIfExists();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testChunksAreCommittedInTheirOrder() throws Exception {
+        when(blob.getProperties()).thenReturn(new BlobProperties());
+
+        repository.commitIncomingChunks("id", "test.pdf", 2);
+
+        final ArgumentCaptor<Iterable<BlockEntry>> blocks = ArgumentCaptor.forClass(Iterable.class);
+        verify(blob).commitBlockList(blocks.capture());
+        final List<String> chunks = new ArrayList<>();
+        blocks.getValue().forEach(
+                block -> chunks.add(new String(Base64.getDecoder().decode(block.getId()), StandardCharsets.UTF_8)));
+        assertThat(chunks).containsExactly("chunk-00000000", "chunk-00000001");
+    }
+}
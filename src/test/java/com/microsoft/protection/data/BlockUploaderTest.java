@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import com.microsoft.azure.storage.blob.BlobProperties;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.protection.ProtectionServiceProperties;
+
+public class BlockUploaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ProtectionServiceProperties properties = new ProtectionServiceProperties();
+    private BlockUploader uploader;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        properties.getStorageUpload().setBlockSizeBytes(4);
+        properties.getStorageUpload().setConcurrency(2);
+        uploader = new BlockUploader(properties);
+
+        file = folder.newFile("test.pdf");
+        Files.write(file.toPath(), "test data".getBytes());
+    }
+
+    @After
+    public void tearDown() {
+        uploader.close();
+    }
+
+    @Test
+    public void testSmallFileIsUploadedAtOnce() throws Exception {
+        properties.getStorageUpload().setBlockSizeBytes(1024);
+        uploader.close();
+        uploader = new BlockUploader(properties);
+        final CloudBlockBlob blob = newBlob(false);
+
+        assertThat(uploader.upload(blob, file.toPath(), "application/pdf")).isTrue();
+
+        verify(blob).upload(any(InputStream.class), eq(9L), any(), any(), any());
+        verify(blob, never()).uploadBlock(anyString(), any(), anyLong(), any(), any(), any());
+    }
+
+    @Test
+    public void testBlocksAreStagedAndCommitted() throws Exception {
+        final CloudBlockBlob blob = newBlob(false);
+
+        assertThat(uploader.upload(blob, file.toPath(), "application/pdf")).isTrue();
+
+        final List<String> committed = committedBlockIds(blob);
+        assertThat(committed).hasSize(3).doesNotHaveDuplicates();
+        assertThat(committed.stream().map(String::length).collect(Collectors.toSet())).hasSize(1);
+        assertThat(blob.getProperties().getContentMD5()).isNotNull();
+    }
+
+    @Test
+    public void testExistingBlobIsNotStaged() throws Exception {
+        final CloudBlockBlob blob = newBlob(true);
+
+        assertThat(uploader.upload(blob, file.toPath(), "application/pdf")).isFalse();
+
+        verify(blob, never()).uploadBlock(anyString(), any(), anyLong(), any(), any(), any());
+        verify(blob, never()).commitBlockList(any(), any(), any(), any());
+    }
+
+    @Test
+    public void testBlockIdsAreUniquePerUpload() throws Exception {
+        final CloudBlockBlob first = newBlob(false);
+        final CloudBlockBlob second = newBlob(false);
+
+        uploader.upload(first, file.toPath(), "application/pdf");
+        uploader.upload(second, file.toPath(), "application/pdf");
+
+        final Set<String> ids = new HashSet<>(committedBlockIds(first));
+        assertThat(ids).doesNotContainAnyElementsOf(committedBlockIds(second));
+    }
+
+    private static CloudBlockBlob newBlob(final boolean exists) throws Exception {
+        final CloudBlockBlob blob = mock(CloudBlockBlob.class);
+        when(blob.getProperties()).thenReturn(new BlobProperties());
+        when(blob.exists()).thenReturn(exists);
+        return blob;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> committedBlockIds(final CloudBlockBlob blob) throws Exception {
+        final ArgumentCaptor<Iterable<BlockEntry>> blocks = ArgumentCaptor.forClass(Iterable.class);
+        verify(blob, times(1)).commitBlockList(blocks.capture(), any(), any(), any());
+        final List<String> ids = new ArrayList<>();
+        blocks.getValue().forEach(block -> ids.add(block.getId()));
+        return ids;
+    }
+}
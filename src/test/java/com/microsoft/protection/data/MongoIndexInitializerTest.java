@@ -0,0 +1,47 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Date;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import com.microsoft.protection.controller.AbstractTest;
+import com.microsoft.protection.data.model.ProtectionRequest;
+
+public class MongoIndexInitializerTest extends AbstractTest {
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    @Autowired
+    private MongoMappingContext mappingContext;
+
+    @Test
+    public void testDuplicatesOfUniqueIndexAreReleased() {
+        // written before the unique index was declared
+        mongoOperations.indexOps(ProtectionRequest.class).dropIndex("correlationId");
+        mongoOperations.getCollection(mongoOperations.getCollectionName(ProtectionRequest.class)).insertMany(List.of(
+                new Document("_id", "newer").append("correlationId", "duplicate").append("createdAt", new Date(2)),
+                new Document("_id", "older").append("correlationId", "duplicate").append("createdAt", new Date(1)),
+                new Document("_id", "other").append("correlationId", "unique").append("createdAt", new Date(1))));
+
+        new MongoIndexInitializer(mongoOperations, mappingContext, List.of(ProtectionRequest.class))
+                .afterPropertiesSet();
+
+        assertThat(protectionRequestRepository.findById("older").get().getCorrelationId()).isEqualTo("duplicate");
+        assertThat(protectionRequestRepository.findById("newer").get().getCorrelationId()).isNull();
+        assertThat(protectionRequestRepository.findById("other").get().getCorrelationId()).isEqualTo("unique");
+        assertThat(mongoOperations.indexOps(ProtectionRequest.class).getIndexInfo())
+                .anyMatch(index -> index.isUnique() && index.isIndexForFields(List.of("correlationId")));
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Date;
+import java.util.Optional;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.microsoft.protection.controller.AbstractTest;
+import com.microsoft.protection.data.model.ProtectionJobLease;
+import com.microsoft.protection.data.model.ProtectionRequest;
+
+public class ProtectionJobQueueTest extends AbstractTest {
+
+    @Autowired
+    private ProtectionJobQueue jobQueue;
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    @Before
+    public void cleanupLeases() {
+        mongoOperations.dropCollection(ProtectionJobLease.class);
+    }
+
+    @Test
+    public void testActiveLeaseIsNotClaimed() {
+        final ProtectionRequest test = storeTestRequest();
+
+        jobQueue.enqueue(test.getId());
+
+        assertThat(jobQueue.claimNext()).isEmpty();
+    }
+
+    @Test
+    public void testExpiredLeaseIsClaimed() {
+        final ProtectionRequest test = storeTestRequest();
+        jobQueue.enqueue(test.getId());
+
+        // simulate a worker that stopped sending heartbeats
+        mongoOperations.updateFirst(Query.query(Criteria.where("id").is(test.getId())),
+                Update.update("expiresAt", new Date(0)), ProtectionJobLease.class);
+
+        final Optional<ProtectionJobLease> claimed = jobQueue.claimNext();
+
+        assertThat(claimed).isPresent();
+        assertThat(claimed.get().getId()).isEqualTo(test.getId());
+        assertThat(claimed.get().getOwner()).isEqualTo(jobQueue.getWorkerId());
+        assertThat(claimed.get().getAttempts()).isEqualTo(2);
+        assertThat(claimed.get().getExpiresAt()).isInTheFuture();
+        assertThat(jobQueue.claimNext()).isEmpty();
+    }
+
+    @Test
+    public void testPostponedLeaseIsNotCountedAsAttempt() {
+        final ProtectionRequest test = storeTestRequest();
+        jobQueue.enqueue(test.getId());
+        mongoOperations.updateFirst(Query.query(Criteria.where("id").is(test.getId())),
+                Update.update("expiresAt", new Date(0)), ProtectionJobLease.class);
+        jobQueue.claimNext();
+
+        jobQueue.postpone(test.getId());
+
+        final ProtectionJobLease postponed = mongoOperations.findById(test.getId(), ProtectionJobLease.class);
+        assertThat(postponed.getAttempts()).isEqualTo(1);
+        // not claimed again before the next poll
+        assertThat(postponed.getExpiresAt()).isInTheFuture();
+        assertThat(jobQueue.claimNext()).isEmpty();
+    }
+
+    @Test
+    public void testCompletedJobIsRemoved() {
+        final ProtectionRequest test = storeTestRequest();
+        jobQueue.enqueue(test.getId());
+
+        jobQueue.complete(test.getId());
+
+        assertThat(mongoOperations.findById(test.getId(), ProtectionJobLease.class)).isNull();
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.data;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.controller.AbstractTest;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class SourceDownloaderTest extends AbstractTest {
+    // content of the static test.pdf
+    private static final byte[] CONTENT = "test data".getBytes();
+
+    @LocalServerPort
+    private int randomServerPort;
+
+    @Autowired
+    private SpoolArea spoolArea;
+
+    private final ProtectionServiceProperties properties = new ProtectionServiceProperties();
+    private SourceDownloader downloader;
+    private Path target;
+    private HttpServer server;
+    // requests the server got, their If-Range headers
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() {
+        properties.getDownload().setRetryBackoffMillis(1);
+        target = spoolArea.allocate("download-test", "test.pdf");
+    }
+
+    @After
+    public void tearDown() {
+        downloader.close();
+        spoolArea.release("download-test");
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testDownloadInOneStream() throws Exception {
+        downloader = new SourceDownloader(properties, spoolArea);
+
+        assertThat(downloader.download(url("/test.pdf"), target, null, null, Map.of())).isEqualTo(CONTENT.length);
+        assertThat(Files.readAllBytes(target)).isEqualTo(CONTENT);
+    }
+
+    @Test
+    public void testDownloadInParallelRanges() throws Exception {
+        properties.getDownload().setRangeThresholdBytes(1);
+        properties.getDownload().setRangeSizeBytes(2);
+        properties.getDownload().setRangeParallelism(3);
+        downloader = new SourceDownloader(properties, spoolArea);
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+        assertThat(downloader.download(url("/test.pdf"), target, (long) CONTENT.length, digest, Map.of()))
+                .isEqualTo(CONTENT.length);
+        assertThat(Files.readAllBytes(target)).isEqualTo(CONTENT);
+        assertThat(digest.digest()).isEqualTo(MessageDigest.getInstance("SHA-256").digest(CONTENT));
+    }
+
+    @Test
+    public void testMissingSourceIsNotRetried() throws Exception {
+        properties.getDownload().setMaxAttempts(3);
+        downloader = new SourceDownloader(properties, spoolArea);
+        final String url = serve(exchange -> respond(exchange, 404, new byte[0]));
+
+        assertThatThrownBy(() -> downloader.download(url, target, null, null, Map.of()))
+                .isInstanceOf(IOException.class).hasMessageContaining("404");
+        assertThat(requests).hasSize(1);
+    }
+
+    @Test
+    public void testSourceChangedBetweenRangesFails() throws Exception {
+        properties.getDownload().setMaxAttempts(3);
+        properties.getDownload().setRangeThresholdBytes(1);
+        properties.getDownload().setRangeSizeBytes(2);
+        properties.getDownload().setRangeParallelism(1);
+        downloader = new SourceDownloader(properties, spoolArea);
+        final String url = serve(exchange -> {
+            if (exchange.getRequestHeaders().containsKey("If-Range")) {
+                // the file has a new version, If-Range does not match
+                exchange.getResponseHeaders().set("ETag", "\"v2\"");
+                respond(exchange, 200, CONTENT);
+            } else {
+                exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                exchange.getResponseHeaders().set("Content-Range", "bytes 0-1/" + CONTENT.length);
+                respond(exchange, 206, new byte[] { CONTENT[0], CONTENT[1] });
+            }
+        });
+
+        assertThatThrownBy(() -> downloader.download(url, target, (long) CONTENT.length, null, Map.of()))
+                .isInstanceOf(IOException.class).hasMessageContaining("changed");
+        assertThat(requests).containsExactly("", "\"v1\"");
+    }
+
+    private String url(final String path) {
+        return "http://localhost:" + randomServerPort + path;
+    }
+
+    private String serve(final HttpHandler handler) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/source.pdf", exchange -> {
+            requests.add(Objects.toString(exchange.getRequestHeaders().getFirst("If-Range"), ""));
+            handler.handle(exchange);
+        });
+        server.start();
+        return "http://localhost:" + server.getAddress().getPort() + "/source.pdf";
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final byte[] body)
+            throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
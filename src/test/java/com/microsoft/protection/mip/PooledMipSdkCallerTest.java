@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+package com.microsoft.protection.mip;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.awaitility.Awaitility;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.microsoft.protection.ProtectionServiceProperties;
+import com.microsoft.protection.data.model.ProtectionRequest;
+import com.microsoft.protection.error.ProtectionFailedException;
+
+public class PooledMipSdkCallerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ProtectionServiceProperties properties = new ProtectionServiceProperties();
+    private final ProtectionRequest request = new ProtectionRequest();
+    private File state;
+    private PooledMipSdkCaller caller;
+
+    @Before
+    public void setUp() throws IOException {
+        state = folder.newFolder("state");
+        properties.getMipPool().setWorkerCommand(workerCommand());
+        properties.getMipPool().setSize(1);
+        properties.getMipPool().setAcquireTimeoutSeconds(5);
+        properties.getMipPool().setHealthCheckIntervalSeconds(1);
+        request.setUser("user@example.com");
+    }
+
+    @After
+    public void tearDown() {
+        if (caller != null) {
+            caller.close();
+        }
+    }
+
+    @Test
+    public void testProtect() throws IOException {
+        caller = new PooledMipSdkCaller(properties);
+        final File toProtect = newFile("test.pdf");
+
+        assertThat(caller.protect(request, toProtect, "token")).isEqualTo(toProtect);
+        assertThat(toProtect).hasContent("test data");
+        assertThat(new File(toProtect + ".protected")).doesNotExist();
+    }
+
+    @Test
+    public void testWorkerIsRecycledAfterMaxJobs() throws IOException {
+        properties.getMipPool().setMaxJobsPerWorker(2);
+        caller = new PooledMipSdkCaller(properties);
+
+        for (int i = 0; i < 3; i++) {
+            caller.protect(request, newFile("test" + i + ".pdf"), "token");
+        }
+
+        assertThat(starts()).isEqualTo(2);
+    }
+
+    @Test
+    public void testCrashedWorkerIsRestarted() throws IOException {
+        caller = new PooledMipSdkCaller(properties);
+
+        assertThatThrownBy(() -> caller.protect(request, newFile("crash.pdf"), "token"))
+                .isInstanceOf(ProtectionFailedException.class);
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> starts() == 2);
+        final File toProtect = newFile("test.pdf");
+        assertThat(caller.protect(request, toProtect, "token")).isEqualTo(toProtect);
+    }
+
+    @Test
+    public void testUnhealthyWorkerIsReplaced() throws IOException {
+        caller = new PooledMipSdkCaller(properties);
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> starts() == 1);
+
+        final File unhealthy = new File(state, "unhealthy");
+        assertThat(unhealthy.createNewFile()).isTrue();
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> starts() >= 2);
+        Files.delete(unhealthy.toPath());
+
+        final File toProtect = newFile("test.pdf");
+        assertThat(caller.protect(request, toProtect, "token")).isEqualTo(toProtect);
+    }
+
+    @Test
+    public void testTimeoutReleasesReader() throws Exception {
+        final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+        try (MipWorker worker = MipWorker.start(1, workerCommand())) {
+            assertThatThrownBy(
+                    () -> worker.execute("--file " + newFile("hang.pdf"), 200, TimeUnit.MILLISECONDS, ioExecutor))
+                            .isInstanceOf(TimeoutException.class);
+
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> !worker.isAlive());
+            // the only io thread is no longer stuck in the read
+            final Future<?> next = ioExecutor.submit(() -> {
+                // nothing to do
+            });
+            next.get(5, TimeUnit.SECONDS);
+        } finally {
+            ioExecutor.shutdownNow();
+        }
+    }
+
+    private String workerCommand() {
+        final String script = getClass().getResource("/mip/fake-mip-worker.sh").getPath();
+        return "bash " + script + " " + state.getAbsolutePath();
+    }
+
+    private File newFile(final String name) throws IOException {
+        final File file = folder.newFile(name);
+        Files.write(file.toPath(), "test data".getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private int starts() throws IOException {
+        final Path starts = new File(state, "starts").toPath();
+        return Files.exists(starts) ? Files.readAllLines(starts).size() : 0;
+    }
+}
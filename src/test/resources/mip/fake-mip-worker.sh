@@ -0,0 +1,35 @@
+#!/bin/bash
+# Stand-in for a MIP SDK worker that speaks the line protocol of MipWorker.
+# Every start is recorded in <state dir>/starts. The name of the file to
+# protect selects the behavior: "crash" exits, "hang" never answers. While
+# <state dir>/unhealthy exists health checks are not answered with PONG.
+state="$1"
+echo started >> "$state/starts"
+
+while read -r line; do
+    if [ "$line" = "PING" ]; then
+        if [ -e "$state/unhealthy" ]; then
+            echo "BUSY"
+        else
+            echo "PONG"
+        fi
+        continue
+    fi
+
+    file=$(echo "$line" | sed -n 's/.*--file \([^ ]*\).*/\1/p')
+    case "$file" in
+        *crash*)
+            exit 1
+            ;;
+        *hang*)
+            sleep 600
+            ;;
+        "")
+            echo "ERROR no file"
+            ;;
+        *)
+            cp "$file" "$file.protected"
+            echo "OK $file.protected"
+            ;;
+    esac
+done